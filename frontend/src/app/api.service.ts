@@ -1,8 +1,8 @@
 import { Injectable, inject, OnDestroy } from '@angular/core';
-import { HttpClient, HttpHeaders } from '@angular/common/http';
+import { HttpClient, HttpErrorResponse, HttpHeaders } from '@angular/common/http';
 import { Auth, idToken, user } from '@angular/fire/auth';
 import { Firestore, collection, collectionData, query, where, orderBy, limit, onSnapshot, deleteDoc, doc, updateDoc, Unsubscribe } from '@angular/fire/firestore';
-import { switchMap, first, Observable, of, map, BehaviorSubject, startWith, shareReplay } from 'rxjs';
+import { switchMap, first, Observable, of, map, BehaviorSubject, startWith, shareReplay, catchError, throwError } from 'rxjs';
 import { environment } from '../environments/environment';
 
 export interface MemoryData {
@@ -13,6 +13,9 @@ export interface MemoryData {
   timestamp: number;
   type: string;
   emotions: { [key: string]: number; };
+  imageStatus?: string;
+  thumbnailUrl?: string;
+  mediumUrl?: string;
 }
 
 export interface InsightData {
@@ -26,6 +29,14 @@ export interface PosterResponse {
   base64Image: string;
 }
 
+export interface PosterExportJob {
+  jobId: string;
+  status: string;
+  progress?: number;
+  url?: string;
+  error?: string;
+}
+
 export interface AtmosphereData {
   weather: string;
   backgroundColor: string;
@@ -89,6 +100,10 @@ export class ApiService implements OnDestroy {
   private insightAudioFunctionUrl = environment.apis.getInsightAudio;
   private poeticRephrasingUrl = environment.apis.poeticRephrasing;
 
+  // Last atmosphere and its ETag; an unchanged atmosphere comes back as an empty 304.
+  private cachedAtmosphere: AtmosphereData | null = null;
+  private atmosphereEtag: string | null = null;
+
   constructor() {
     // Initialize real-time listeners when user state changes
     this.user$.subscribe(currentUser => {
@@ -129,7 +144,22 @@ export class ApiService implements OnDestroy {
     );
   }
 
-  getAtmosphere(): Observable<AtmosphereData> {
+  // Binary variant: the poster arrives as a PNG blob, without the base64 JSON envelope.
+  exportGardenAsPosterPng(): Observable<Blob> {
+    return idToken(this.auth).pipe(
+      first(),
+      switchMap(token => {
+        if (!token) {
+          throw new Error('User not logged in!');
+        }
+        const headers = new HttpHeaders().set('Authorization', `Bearer ${token}`).set('Accept', 'image/png');
+        return this.http.post(this.exportGardenFunctionUrl, {}, { headers, responseType: 'blob' });
+      })
+    );
+  }
+
+  // Job mode for large posters: the render runs in the background and is polled by job id.
+  startPosterExport(size: string, dpi: number): Observable<PosterExportJob> {
     return idToken(this.auth).pipe(
       first(),
       switchMap(token => {
@@ -137,12 +167,57 @@ export class ApiService implements OnDestroy {
           throw new Error('User not logged in!');
         }
         const headers = new HttpHeaders().set('Authorization', `Bearer ${token}`);
-        return this.http.post<AtmosphereData>(this.atmosphereFunctionUrl, {}, { headers });
+        const params = { mode: 'job', size, dpi: String(dpi) };
+        return this.http.post<PosterExportJob>(this.exportGardenFunctionUrl, {}, { headers, params });
+      })
+    );
+  }
+
+  getPosterExportStatus(jobId: string): Observable<PosterExportJob> {
+    return idToken(this.auth).pipe(
+      first(),
+      switchMap(token => {
+        if (!token) {
+          throw new Error('User not logged in!');
+        }
+        const headers = new HttpHeaders().set('Authorization', `Bearer ${token}`);
+        const params = { jobId };
+        return this.http.get<PosterExportJob>(this.exportGardenFunctionUrl, { headers, params });
+      })
+    );
+  }
+
+  getAtmosphere(): Observable<AtmosphereData> {
+    return idToken(this.auth).pipe(
+      first(),
+      switchMap(token => {
+        if (!token) {
+          throw new Error('User not logged in!');
+        }
+        let headers = new HttpHeaders().set('Authorization', `Bearer ${token}`);
+        if (this.cachedAtmosphere && this.atmosphereEtag) {
+          headers = headers.set('If-None-Match', this.atmosphereEtag);
+        }
+        return this.http.post<AtmosphereData>(this.atmosphereFunctionUrl, {}, { headers, observe: 'response' }).pipe(
+          map(response => {
+            this.cachedAtmosphere = response.body;
+            this.atmosphereEtag = response.headers.get('ETag');
+            return response.body as AtmosphereData;
+          }),
+          catchError((error: HttpErrorResponse) => {
+            if (error.status === 304 && this.cachedAtmosphere) {
+              return of(this.cachedAtmosphere);
+            }
+            return throwError(() => error);
+          })
+        );
       })
     );
   }
 
   createMemory(text: string): Observable<MemoryData> {
+    // One key per planted memory, so retries of this request are not planted twice.
+    const idempotencyKey = crypto.randomUUID();
     return idToken(this.auth).pipe(
       first(),
       switchMap(token => {
@@ -150,7 +225,9 @@ export class ApiService implements OnDestroy {
           throw new Error('User not logged in!');
         }
 
-        const headers = new HttpHeaders().set('Authorization', `Bearer ${token}`);
+        const headers = new HttpHeaders()
+          .set('Authorization', `Bearer ${token}`)
+          .set('Idempotency-Key', idempotencyKey);
         const body = { text };
         return this.http.post<MemoryData>(this.generateFunctionUrl, body, { headers });
       })
@@ -312,6 +389,8 @@ export class ApiService implements OnDestroy {
   }
 
   private resetGardenState(): void {
+    this.cachedAtmosphere = null;
+    this.atmosphereEtag = null;
     this.gardenStateSubject.next({
       memories: [],
       insights: [],
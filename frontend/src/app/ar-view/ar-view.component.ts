@@ -129,7 +129,7 @@ export class ArViewComponent implements OnInit, OnDestroy {
         };
 
         if (memory.imageUrl) {
-            this.textureLoader.load(memory.imageUrl, createMemoryPlane);
+            this.textureLoader.load(memory.thumbnailUrl || memory.imageUrl, createMemoryPlane);
         } else {
             const canvas = this.createTextCanvas(memory.userText);
             const texture = new THREE.CanvasTexture(canvas);
@@ -160,7 +160,7 @@ export class GardenComponent implements AfterViewInit, OnDestroy {
     const geometry = new THREE.PlaneGeometry(1, 1);
 
     this.memories.forEach((memory, index) => {
-      const texture = textureLoader.load(memory.imageUrl);
+      const texture = textureLoader.load(memory.mediumUrl || memory.imageUrl);
       const material = new THREE.MeshBasicMaterial({ map: texture, transparent: true });
       const plane = new THREE.Mesh(geometry, material);
 
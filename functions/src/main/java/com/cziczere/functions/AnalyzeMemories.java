@@ -1,11 +1,10 @@
 package com.cziczere.functions;
 
 import com.google.auth.oauth2.GoogleCredentials;
-import com.google.cloud.firestore.CollectionReference;
 import com.google.cloud.firestore.DocumentSnapshot;
 import com.google.cloud.firestore.Firestore;
 import com.google.cloud.firestore.FirestoreOptions;
-import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
 import com.google.cloud.functions.HttpFunction;
 import com.google.cloud.functions.HttpRequest;
 import com.google.cloud.functions.HttpResponse;
@@ -21,6 +20,11 @@ import com.google.gson.Gson;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.ExecutionException;
@@ -36,9 +40,16 @@ public class AnalyzeMemories implements HttpFunction {
     private static final String PROJECT_ID = System.getenv().getOrDefault("GCP_PROJECT_ID", "your-gcp-project-id");
     private static final String REGION = System.getenv().getOrDefault("GCP_REGION", "us-central1");
 
+    private static final long WEEK_MILLIS = 7L * 24 * 60 * 60 * 1000;
+    private static final long MONTH_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
     Firestore db;
     VertexAI vertexAI;
     FirebaseAuth firebaseAuth;
+    WriteBehindQueue writeBehindQueue;
+    InsightCache insightCache;
+    MemorySummarizer memorySummarizer;
+    MemoryQueries memoryQueries;
 
     static {
         // Firebase Admin SDK initialization
@@ -61,15 +72,35 @@ public class AnalyzeMemories implements HttpFunction {
         this.db = FirestoreOptions.getDefaultInstance().getService();
         this.vertexAI = new VertexAI(PROJECT_ID, REGION);
         this.firebaseAuth = FirebaseAuth.getInstance();
+        this.writeBehindQueue = WriteBehindQueue.shared();
+        this.insightCache = new InsightCache(db, writeBehindQueue);
+        this.memorySummarizer = new MemorySummarizer(db, writeBehindQueue);
+        this.memoryQueries = new MemoryQueries(db);
     }
 
     // Constructor for testing
     AnalyzeMemories(Firestore db, VertexAI vertexAI, FirebaseAuth firebaseAuth) {
+        this(db, vertexAI, firebaseAuth, new WriteBehindQueue(db));
+    }
+
+    AnalyzeMemories(Firestore db, VertexAI vertexAI, FirebaseAuth firebaseAuth, WriteBehindQueue writeBehindQueue) {
+        this(db, vertexAI, firebaseAuth, writeBehindQueue, new InsightCache(db, writeBehindQueue));
+    }
+
+    AnalyzeMemories(Firestore db, VertexAI vertexAI, FirebaseAuth firebaseAuth, WriteBehindQueue writeBehindQueue,
+                    InsightCache insightCache) {
         this.db = db;
         this.vertexAI = vertexAI;
         this.firebaseAuth = firebaseAuth;
+        this.writeBehindQueue = writeBehindQueue;
+        this.insightCache = insightCache;
+        this.memorySummarizer = new MemorySummarizer(db, writeBehindQueue);
+        this.memoryQueries = new MemoryQueries(db);
     }
 
+    // Material for the monthly insight: stored weekly bouquets and the memories outside their weeks.
+    record MonthlyMaterial(List<InsightData> weeks, List<MemoryData> uncoveredMemories) {}
+
     // Custom exception for auth errors
     static class AuthException extends Exception {
         public AuthException(String message) {
@@ -77,6 +108,13 @@ public class AnalyzeMemories implements HttpFunction {
         }
     }
 
+    // Gemini could not write the insight; the message is a gentle stand-in to show instead.
+    static class InsightUnavailableException extends Exception {
+        public InsightUnavailableException(String message) {
+            super(message);
+        }
+    }
+
     @Override
     public void service(HttpRequest request, HttpResponse response) throws Exception {
         response.appendHeader("Content-Type", "application/json");
@@ -86,44 +124,21 @@ public class AnalyzeMemories implements HttpFunction {
                 String userId = getUserIdFromAuthToken(request);
                 String analysisType = request.getFirstQueryParameter("type").orElse("insight");
 
-                List<MemoryData> memories;
-                String insightText;
-
-                switch (analysisType) {
-                    case "monthly":
-                        memories = getMonthlyMemoriesForUser(userId);
-                        if (memories.isEmpty()) {
-                            response.setStatusCode(404, "Not Found");
-                            writer.write("{\"message\":\"No memories in the last month to analyze.\"}");
-                            return;
-                        }
-                        insightText = generateMonthlyInsight(memories);
-                        break;
-                    case "weekly":
-                        memories = getRecentMemoriesForUser(userId);
-                        if (memories.isEmpty()) {
-                            response.setStatusCode(404, "Not Found");
-                            writer.write("{\"message\":\"No recent memories for a weekly summary.\"}");
-                            return;
-                        }
-                        insightText = generateWeeklySummary(memories);
-                        break;
-                    default: // "insight"
-                        memories = getMemoriesForUser(userId);
-                        if (memories.isEmpty()) {
-                            response.setStatusCode(404, "Not Found");
-                            writer.write("{\"message\":\"No memories found to analyze.\"}");
-                            return;
-                        }
-                        insightText = generateStandardInsight(memories);
-                        break;
+                Optional<InsightData> insight;
+                try {
+                    insight = computeInsight(userId, analysisType);
+                } catch (InsightUnavailableException e) {
+                    // The stand-in is shown but never saved or cached, so the next request asks Gemini again.
+                    insight = Optional.of(new InsightData(userId, e.getMessage(), System.currentTimeMillis(), analysisType));
+                }
+                if (insight.isEmpty()) {
+                    response.setStatusCode(404, "Not Found");
+                    writer.write("{\"message\":\"" + noMemoriesMessage(analysisType) + "\"}");
+                    return;
                 }
-
-                InsightData newInsight = new InsightData(userId, insightText, System.currentTimeMillis(), analysisType);
-                saveInsightToFirestore(newInsight);
 
                 response.setStatusCode(200, "OK");
-                writer.write(gson.toJson(newInsight));
+                writer.write(gson.toJson(insight.get()));
 
             } catch (AuthException e) {
                 logger.warning("Authentication failed: " + e.getMessage());
@@ -137,6 +152,80 @@ public class AnalyzeMemories implements HttpFunction {
         }
     }
 
+    /**
+     * Returns the user's insight of the given type, or empty if there are no memories to analyze.
+     * A cached insight is served when the memories are unchanged, first by comparing memory
+     * versions (no memory read at all) and then by fingerprint; otherwise Gemini is asked and the
+     * result is saved and cached. Also used by {@link PrecomputeInsights} to fill the cache ahead
+     * of time.
+     *
+     * @throws InsightUnavailableException if Gemini failed; nothing is saved or cached then
+     */
+    Optional<InsightData> computeInsight(String userId, String analysisType)
+            throws ExecutionException, InterruptedException, IOException, InsightUnavailableException {
+        String cacheType = cacheTypeOf(analysisType);
+        // Taken before the memories are read; see InsightCache#store.
+        InsightCache.Probe probe = insightCache.probe(userId, cacheType);
+        Optional<InsightData> current = insightCache.lookup(probe);
+        if (current.isPresent()) {
+            return current;
+        }
+
+        List<MemoryData> memories = switch (cacheType) {
+            case "monthly" -> getMonthlyMemoriesForUser(userId);
+            case "weekly" -> getRecentMemoriesForUser(userId);
+            default -> getMemoriesForUser(userId);
+        };
+        if (memories.isEmpty()) {
+            return Optional.empty();
+        }
+
+        String fingerprint = InsightCache.fingerprint(memories);
+        Optional<InsightData> cachedInsight = insightCache.lookup(probe, fingerprint);
+        if (cachedInsight.isPresent()) {
+            return cachedInsight;
+        }
+
+        Optional<String> generated = switch (cacheType) {
+            case "monthly" -> generateMonthlyInsight(getMonthlyMaterial(userId, memories));
+            case "weekly" -> generateWeeklySummary(memories);
+            default -> generateStandardInsight(memories);
+        };
+        if (generated.isEmpty()) {
+            throw new InsightUnavailableException(unavailableMessage(analysisType));
+        }
+        String insightText = generated.get();
+
+        InsightData newInsight = new InsightData(userId, insightText, System.currentTimeMillis(), analysisType);
+        saveInsightToFirestore(newInsight);
+        insightCache.store(probe, fingerprint, new InsightData(userId, insightText, newInsight.timestamp(), cacheType));
+        return Optional.of(newInsight);
+    }
+
+    static String noMemoriesMessage(String analysisType) {
+        return switch (cacheTypeOf(analysisType)) {
+            case "monthly" -> "No memories in the last month to analyze.";
+            case "weekly" -> "No recent memories for a weekly summary.";
+            default -> "No memories found to analyze.";
+        };
+    }
+
+    static String unavailableMessage(String analysisType) {
+        return switch (cacheTypeOf(analysisType)) {
+            case "monthly" -> "There was an error reflecting on your past month, but I hope it was a time of growth and discovery.";
+            case "weekly" -> "Could not compose your weekly memory bouquet, but I hope you had a week filled with small joys.";
+            default -> "There was an error analyzing your memories, but I'm sure your garden is growing beautifully.";
+        };
+    }
+
+    // Unknown types are analyzed like "insight", so they share its cache entry.
+    static String cacheTypeOf(String analysisType) {
+        return switch (analysisType) {
+            case "monthly", "weekly" -> analysisType;
+            default -> "insight";
+        };
+    }
+
     String getUserIdFromAuthToken(HttpRequest request) throws AuthException {
         Optional<String> authHeader = request.getFirstHeader("Authorization");
         if (authHeader.isEmpty() || !authHeader.get().startsWith("Bearer ")) {
@@ -153,23 +242,24 @@ public class AnalyzeMemories implements HttpFunction {
     }
 
     List<MemoryData> getMemoriesForUser(String userId) throws ExecutionException, InterruptedException {
-        CollectionReference memoriesCollection = db.collection("memories");
-        Query query = memoriesCollection.whereEqualTo("userId", userId);
-        List<com.google.cloud.firestore.QueryDocumentSnapshot> documents = query.get().get().getDocuments();
-
-        return documents.stream()
-                .map(doc -> doc.toObject(MemoryData.class))
-                .filter(java.util.Objects::nonNull)
-                .collect(Collectors.toList());
+        return memoryQueries.list(userId, 0, false, MemoryQueries.ANALYSIS_FIELDS);
     }
 
 
-    String generateStandardInsight(List<MemoryData> memories) throws IOException {
-        String combinedMemories = memories.stream()
-                .map(MemoryData::userText)
-                .collect(Collectors.joining("\n---\n"));
-
+    // Empty if Gemini failed.
+    Optional<String> generateStandardInsight(List<MemoryData> memories) throws IOException {
         GenerativeModel model = getGenerativeModel("gemini-1.5-flash-001");
+
+        // Large gardens are summarized chunk by chunk first, so the prompt stays within the context window.
+        MemorySummarizer.Condensed condensed;
+        try {
+            condensed = memorySummarizer.condense(memories, model);
+        } catch (Exception e) {
+            logger.severe("Error summarizing memories with Gemini: " + e.getMessage());
+            return Optional.empty();
+        }
+        String combinedMemories = String.join("\n---\n", condensed.texts());
+
         String systemPrompt = "You are the Gardener's Assistant. Your role is to help users reflect on their memories. " +
                 "You will be given a list of a user's memories, separated by '---'. " +
                 "Your task is to identify a recurring positive theme, pattern, or source of joy in these memories. " +
@@ -181,21 +271,24 @@ public class AnalyzeMemories implements HttpFunction {
                 "or 'It seems that spending time with your family brings you a great deal of happiness.' " +
                 "Output only the single insightful sentence and nothing else.";
 
-        String fullPrompt = systemPrompt + "\n\nHere are the user's memories:\n" + combinedMemories;
+        String fullPrompt = systemPrompt + (condensed.summarized()
+                ? "\n\nThe user has many memories, so here are summaries of them, oldest first:\n"
+                : "\n\nHere are the user's memories:\n") + combinedMemories;
 
         try {
             logger.info("Generating insight with Gemini for user.");
             GenerateContentResponse response = model.generateContent(fullPrompt);
             String generatedInsight = response.getCandidates(0).getContent().getParts(0).getText();
             logger.info("Generated insight: " + generatedInsight);
-            return generatedInsight.trim();
+            return Optional.of(generatedInsight.trim());
         } catch (Exception e) {
             logger.severe("Error generating insight with Gemini: " + e.getMessage());
-            return "There was an error analyzing your memories, but I'm sure your garden is growing beautifully.";
+            return Optional.empty();
         }
     }
 
-    String generateWeeklySummary(List<MemoryData> memories) throws IOException {
+    // Empty if Gemini failed.
+    Optional<String> generateWeeklySummary(List<MemoryData> memories) throws IOException {
         String combinedMemories = memories.stream()
                 .map(m -> "Memory: " + m.userText() + "\nEmotions: " + gson.toJson(m.emotions()))
                 .collect(Collectors.joining("\n---\n"));
@@ -216,17 +309,70 @@ public class AnalyzeMemories implements HttpFunction {
             GenerateContentResponse response = model.generateContent(fullPrompt);
             String generatedSummary = response.getCandidates(0).getContent().getParts(0).getText();
             logger.info("Generated weekly summary: " + generatedSummary);
-            return generatedSummary.trim();
+            return Optional.of(generatedSummary.trim());
         } catch (Exception e) {
             logger.severe("Error generating weekly summary with Gemini: " + e.getMessage());
-            return "Could not compose your weekly memory bouquet, but I hope you had a week filled with small joys.";
+            return Optional.empty();
         }
     }
 
-    String generateMonthlyInsight(List<MemoryData> memories) throws IOException {
-        String combinedMemories = memories.stream()
+    /**
+     * Gathers what the monthly insight is written from: the weekly bouquets already stored this
+     * month, plus only the memories that none of them covers. If the bouquets cannot be read, the
+     * month is analyzed from its memories alone.
+     */
+    MonthlyMaterial getMonthlyMaterial(String userId, List<MemoryData> memories) throws InterruptedException {
+        // Only bouquets whose whole week lies inside the month can stand in for its memories.
+        long firstWeekEnd = System.currentTimeMillis() - MONTH_MILLIS + WEEK_MILLIS;
+        try {
+            return composeMonth(getWeeklyInsightsForUser(userId, firstWeekEnd), memories);
+        } catch (ExecutionException e) {
+            logger.log(Level.WARNING, "Could not read weekly insights; composing the month from memories only.", e.getCause());
+            return new MonthlyMaterial(List.of(), memories);
+        }
+    }
+
+    /**
+     * Picks non-overlapping weeks, newest first, and drops the memories they cover. A weekly
+     * bouquet stored at time t was written from the memories of [t - 7 days, t].
+     */
+    static MonthlyMaterial composeMonth(List<InsightData> weeklies, List<MemoryData> memories) {
+        List<InsightData> newestFirst = new ArrayList<>(weeklies);
+        newestFirst.sort(Comparator.comparingLong(InsightData::timestamp).reversed());
+        List<InsightData> weeks = new ArrayList<>();
+        long coveredFrom = Long.MAX_VALUE;
+        for (InsightData weekly : newestFirst) {
+            if (weekly.timestamp() < coveredFrom) {
+                weeks.add(weekly);
+                coveredFrom = weekly.timestamp() - WEEK_MILLIS;
+            }
+        }
+        Collections.reverse(weeks);
+
+        List<MemoryData> uncovered = new ArrayList<>();
+        for (MemoryData memory : memories) {
+            boolean covered = false;
+            for (InsightData week : weeks) {
+                if (memory.timestamp() >= week.timestamp() - WEEK_MILLIS && memory.timestamp() <= week.timestamp()) {
+                    covered = true;
+                    break;
+                }
+            }
+            if (!covered) {
+                uncovered.add(memory);
+            }
+        }
+        return new MonthlyMaterial(weeks, uncovered);
+    }
+
+    // Empty if Gemini failed.
+    Optional<String> generateMonthlyInsight(MonthlyMaterial material) throws IOException {
+        String combinedMemories = material.uncoveredMemories().stream()
                 .map(m -> "Memory: " + m.userText() + "\nEmotions: " + gson.toJson(m.emotions()))
                 .collect(Collectors.joining("\n---\n"));
+        String combinedWeeks = material.weeks().stream()
+                .map(w -> "Week ending " + Instant.ofEpochMilli(w.timestamp()).atZone(ZoneOffset.UTC).toLocalDate() + ": " + w.text())
+                .collect(Collectors.joining("\n---\n"));
 
         GenerativeModel model = getGenerativeModel("gemini-1.5-flash-001");
         String systemPrompt = "You are the Gardener's Assistant, a reflective and insightful AI. " +
@@ -238,50 +384,59 @@ public class AnalyzeMemories implements HttpFunction {
                 "For example: 'Looking back on the past month, I've noticed a beautiful pattern of you finding moments of quiet joy in your daily routine, even when things felt challenging. It seems these small, calm moments are a real source of strength for you.' " +
                 "Output only the insightful paragraph and nothing else.";
 
-        String fullPrompt = systemPrompt + "\n\nHere are the user's memories from the month:\n" + combinedMemories;
+        String fullPrompt;
+        if (material.weeks().isEmpty()) {
+            fullPrompt = systemPrompt + "\n\nHere are the user's memories from the month:\n" + combinedMemories;
+        } else {
+            // Stored bouquets stand in for the weeks they cover, so the prompt no longer grows with every memory.
+            fullPrompt = systemPrompt + " Parts of the month are given as the weekly summaries you wrote earlier instead of individual memories." +
+                    "\n\nHere are the weekly summaries, oldest first:\n" + combinedWeeks;
+            if (!material.uncoveredMemories().isEmpty()) {
+                fullPrompt += "\n\nHere are the user's memories from the rest of the month:\n" + combinedMemories;
+            }
+        }
 
         try {
             logger.info("Generating monthly insight with Gemini for user.");
             GenerateContentResponse response = model.generateContent(fullPrompt);
             String generatedInsight = response.getCandidates(0).getContent().getParts(0).getText();
             logger.info("Generated monthly insight: " + generatedInsight);
-            return generatedInsight.trim();
+            return Optional.of(generatedInsight.trim());
         } catch (Exception e) {
             logger.severe("Error generating monthly insight with Gemini: " + e.getMessage());
-            return "There was an error reflecting on your past month, but I hope it was a time of growth and discovery.";
+            return Optional.empty();
         }
     }
 
-    void saveInsightToFirestore(InsightData data) throws ExecutionException, InterruptedException {
-        logger.info("Saving insight data to Firestore collection 'insights': " + data);
-        db.collection("insights").document().set(data).get();
-        logger.info("Successfully saved insight to Firestore.");
+    void saveInsightToFirestore(InsightData data) {
+        logger.info("Queueing insight data for Firestore collection 'insights': " + data);
+        writeBehindQueue.set(db.collection("insights").document(), data);
     }
 
     List<MemoryData> getRecentMemoriesForUser(String userId) throws ExecutionException, InterruptedException {
-        CollectionReference memoriesCollection = db.collection("memories");
-        long sevenDaysAgo = System.currentTimeMillis() - (7 * 24 * 60 * 60 * 1000);
-        Query query = memoriesCollection
-                .whereEqualTo("userId", userId)
-                .whereGreaterThanOrEqualTo("timestamp", sevenDaysAgo);
-
-        List<com.google.cloud.firestore.QueryDocumentSnapshot> documents = query.get().get().getDocuments();
-        return documents.stream()
-                .map(doc -> doc.toObject(MemoryData.class))
-                .collect(Collectors.toList());
+        long sevenDaysAgo = System.currentTimeMillis() - WEEK_MILLIS;
+        return memoryQueries.list(userId, sevenDaysAgo, false, MemoryQueries.ANALYSIS_FIELDS);
     }
 
     List<MemoryData> getMonthlyMemoriesForUser(String userId) throws ExecutionException, InterruptedException {
-        CollectionReference memoriesCollection = db.collection("memories");
-        long thirtyDaysAgo = System.currentTimeMillis() - (30L * 24 * 60 * 60 * 1000);
-        Query query = memoriesCollection
-                .whereEqualTo("userId", userId)
-                .whereGreaterThanOrEqualTo("timestamp", thirtyDaysAgo);
+        long thirtyDaysAgo = System.currentTimeMillis() - MONTH_MILLIS;
+        return memoryQueries.list(userId, thirtyDaysAgo, false, MemoryQueries.ANALYSIS_FIELDS);
+    }
 
-        List<com.google.cloud.firestore.QueryDocumentSnapshot> documents = query.get().get().getDocuments();
-        return documents.stream()
-                .map(doc -> doc.toObject(MemoryData.class))
-                .collect(Collectors.toList());
+    // Weekly bouquets stored at or after sinceMillis; only their text and time are read.
+    List<InsightData> getWeeklyInsightsForUser(String userId, long sinceMillis) throws ExecutionException, InterruptedException {
+        List<InsightData> weeklies = new ArrayList<>();
+        List<QueryDocumentSnapshot> documents = db.collection("insights")
+                .whereEqualTo("userId", userId)
+                .whereEqualTo("type", "weekly")
+                .whereGreaterThanOrEqualTo("timestamp", sinceMillis)
+                .select("text", "timestamp")
+                .get().get().getDocuments();
+        for (QueryDocumentSnapshot document : documents) {
+            Long timestamp = document.getLong("timestamp");
+            weeklies.add(new InsightData(userId, document.getString("text"), timestamp == null ? 0L : timestamp, "weekly"));
+        }
+        return weeklies;
     }
 
     protected GenerativeModel getGenerativeModel(String modelName) {
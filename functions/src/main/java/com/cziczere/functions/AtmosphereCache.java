@@ -0,0 +1,95 @@
+package com.cziczere.functions;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Instance-local cache of rendered atmosphere responses, one per user. An entry is served while
+ * it is younger than the TTL and the user's {@code memoriesChangedAt} version is the one it was
+ * computed under, so planting a memory invalidates it on the next request. Each entry carries a
+ * strong ETag of its body for conditional requests. The least recently used entries are evicted
+ * beyond the size bound.
+ */
+class AtmosphereCache {
+
+    private static final long TTL_MILLIS = TimeUnit.MINUTES.toMillis(
+        Long.parseLong(System.getenv().getOrDefault("ATMOSPHERE_CACHE_TTL_MINUTES", "60")));
+    private static final int MAX_ENTRIES = Integer.parseInt(System.getenv().getOrDefault("ATMOSPHERE_CACHE_MAX_ENTRIES", "10000"));
+
+    // A rendered response and the memory version it reflects (null if the user has none yet).
+    record Entry(Long memoriesVersion, String etag, String body, long createdAt) {}
+
+    private final long ttlMillis;
+    private final Map<String, Entry> entries;
+
+    AtmosphereCache() {
+        this(MAX_ENTRIES, TTL_MILLIS);
+    }
+
+    AtmosphereCache(int maxEntries, long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /** Returns the user's entry if it is still fresh and was computed under {@code memoriesVersion}. */
+    synchronized Optional<Entry> get(String userId, Long memoriesVersion) {
+        Entry entry = entries.get(userId);
+        if (entry == null || !Objects.equals(entry.memoriesVersion(), memoriesVersion)
+                || System.currentTimeMillis() - entry.createdAt() >= ttlMillis) {
+            return Optional.empty();
+        }
+        return Optional.of(entry);
+    }
+
+    synchronized Entry put(String userId, Long memoriesVersion, String body) {
+        Entry entry = new Entry(memoriesVersion, etagOf(body), body, System.currentTimeMillis());
+        entries.put(userId, entry);
+        return entry;
+    }
+
+    /** An entry for a response served without being stored, still with its ETag. */
+    static Entry uncached(String body) {
+        return new Entry(null, etagOf(body), body, System.currentTimeMillis());
+    }
+
+    static String etagOf(String body) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(body.getBytes(StandardCharsets.UTF_8));
+            return "\"" + HexFormat.of().formatHex(digest, 0, 16) + "\"";
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /** Whether an {@code If-None-Match} header value names {@code etag}, comparing weakly as RFC 9110 asks. */
+    static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.equals("*")) {
+                return true;
+            }
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,161 @@
+package com.cziczere.functions;
+
+import java.util.Map;
+
+/**
+ * Derives the garden's weather and sky color from emotion scores without a model call.
+ * Each known emotion sits at a fixed point of the valence (unpleasant..pleasant) / arousal
+ * (calm..energized) plane; the mood is the intensity-weighted mean of those points, and weather
+ * and color are read off fixed regions and a color ramp of that plane.
+ *
+ * <p>A mood is ambiguous when most of its intensity comes from emotions the table does not know,
+ * or when strong pleasant and unpleasant feelings pull against each other. Only then is a
+ * language model worth asking.
+ */
+final class AtmosphereEngine {
+
+    static final String DEFAULT_WEATHER = "Clear";
+
+    // Emotion -> {valence, arousal}, both in [-1, 1]. Covers the whole canonical vocabulary.
+    private static final Map<String, double[]> CIRCUMPLEX = Map.ofEntries(
+        Map.entry("joy", new double[] {0.8, 0.5}),
+        Map.entry("excitement", new double[] {0.7, 0.8}),
+        Map.entry("love", new double[] {0.8, 0.3}),
+        Map.entry("gratitude", new double[] {0.7, 0.1}),
+        Map.entry("pride", new double[] {0.6, 0.4}),
+        Map.entry("hope", new double[] {0.6, 0.2}),
+        Map.entry("amusement", new double[] {0.7, 0.5}),
+        Map.entry("awe", new double[] {0.6, 0.6}),
+        Map.entry("curiosity", new double[] {0.4, 0.5}),
+        Map.entry("contentment", new double[] {0.6, -0.4}),
+        Map.entry("calm", new double[] {0.4, -0.7}),
+        Map.entry("relief", new double[] {0.5, -0.3}),
+        Map.entry("nostalgia", new double[] {0.1, -0.3}),
+        Map.entry("surprise", new double[] {0.1, 0.7}),
+        Map.entry("boredom", new double[] {-0.3, -0.7}),
+        Map.entry("tiredness", new double[] {-0.2, -0.8}),
+        Map.entry("melancholy", new double[] {-0.4, -0.5}),
+        Map.entry("sadness", new double[] {-0.7, -0.4}),
+        Map.entry("loneliness", new double[] {-0.6, -0.4}),
+        Map.entry("grief", new double[] {-0.8, -0.3}),
+        Map.entry("disappointment", new double[] {-0.5, -0.2}),
+        Map.entry("anxiety", new double[] {-0.5, 0.6}),
+        Map.entry("fear", new double[] {-0.6, 0.7}),
+        Map.entry("frustration", new double[] {-0.5, 0.5}),
+        Map.entry("anger", new double[] {-0.6, 0.8})
+    );
+
+    // CIRCUMPLEX laid out by vocabulary index, so synonyms resolve through EmotionVocabulary.indexOf.
+    private static final double[][] POINTS = new double[EmotionVocabulary.SIZE][];
+
+    static {
+        for (int i = 0; i < EmotionVocabulary.SIZE; i++) {
+            POINTS[i] = CIRCUMPLEX.get(EmotionVocabulary.VOCABULARY.get(i));
+            if (POINTS[i] == null) {
+                throw new ExceptionInInitializerError("No circumplex point for " + EmotionVocabulary.VOCABULARY.get(i));
+            }
+        }
+    }
+
+    private static final double MIN_COVERAGE = 0.5;
+    private static final double MIXED_SHARE = 0.35;
+    private static final double POLAR_VALENCE = 0.3;
+
+    // Sky colors along the valence axis, from stormy slate to warm gold.
+    private static final double[] RAMP_STOPS = {-1.0, -0.35, 0.0, 0.5, 1.0};
+    private static final int[] RAMP_COLORS = {0x2F3E56, 0x708090, 0xB0C4DE, 0x87CEEB, 0xFFD59E};
+    // How far arousal lightens (energized) or darkens (subdued) the ramp color.
+    private static final double AROUSAL_SHADE = 0.15;
+
+    /** Where a set of emotions lands on the plane, and how far that can be trusted. */
+    record Mood(double valence, double arousal, double coverage, boolean mixed) {
+
+        boolean ambiguous() {
+            return coverage < MIN_COVERAGE || mixed;
+        }
+    }
+
+    private AtmosphereEngine() {
+    }
+
+    /** Computes the mood of per-emotion totals, weighting each emotion by its summed score. */
+    static Mood moodOf(Map<String, EmotionAggregates.EmotionStats> emotions) {
+        double totalWeight = 0;
+        double knownWeight = 0;
+        double pleasantWeight = 0;
+        double unpleasantWeight = 0;
+        double valence = 0;
+        double arousal = 0;
+        for (Map.Entry<String, EmotionAggregates.EmotionStats> entry : emotions.entrySet()) {
+            double weight = entry.getValue().sum();
+            if (weight <= 0) {
+                continue;
+            }
+            totalWeight += weight;
+            int index = EmotionVocabulary.indexOf(entry.getKey());
+            if (index < 0) {
+                continue;
+            }
+            double[] point = POINTS[index];
+            knownWeight += weight;
+            valence += weight * point[0];
+            arousal += weight * point[1];
+            if (point[0] >= POLAR_VALENCE) {
+                pleasantWeight += weight;
+            } else if (point[0] <= -POLAR_VALENCE) {
+                unpleasantWeight += weight;
+            }
+        }
+        if (knownWeight == 0) {
+            return new Mood(0, 0, 0, false);
+        }
+        boolean mixed = pleasantWeight / knownWeight >= MIXED_SHARE && unpleasantWeight / knownWeight >= MIXED_SHARE;
+        return new Mood(valence / knownWeight, arousal / knownWeight, knownWeight / totalWeight, mixed);
+    }
+
+    static String weatherFor(Mood mood) {
+        double valence = mood.valence();
+        double arousal = mood.arousal();
+        if (valence >= 0.35) {
+            return arousal >= 0.2 ? "Sunny" : "Clear";
+        }
+        if (valence <= -0.35) {
+            if (arousal >= 0.35) {
+                return "Stormy";
+            }
+            return arousal <= -0.5 ? "Snowy" : "Rainy";
+        }
+        return arousal <= -0.2 ? "Foggy" : DEFAULT_WEATHER;
+    }
+
+    static String colorFor(Mood mood) {
+        double valence = Math.max(-1, Math.min(1, mood.valence()));
+        int segment = 0;
+        while (segment < RAMP_STOPS.length - 2 && valence > RAMP_STOPS[segment + 1]) {
+            segment++;
+        }
+        double t = (valence - RAMP_STOPS[segment]) / (RAMP_STOPS[segment + 1] - RAMP_STOPS[segment]);
+        int from = RAMP_COLORS[segment];
+        int to = RAMP_COLORS[segment + 1];
+
+        double shade = Math.max(-1, Math.min(1, mood.arousal())) * AROUSAL_SHADE;
+        int red = shade(lerp(from >> 16 & 0xFF, to >> 16 & 0xFF, t), shade);
+        int green = shade(lerp(from >> 8 & 0xFF, to >> 8 & 0xFF, t), shade);
+        int blue = shade(lerp(from & 0xFF, to & 0xFF, t), shade);
+        return String.format("#%02X%02X%02X", red, green, blue);
+    }
+
+    static GetAtmosphere.AtmosphereData atmosphereFor(Mood mood) {
+        return new GetAtmosphere.AtmosphereData(weatherFor(mood), colorFor(mood), "");
+    }
+
+    private static double lerp(int from, int to, double t) {
+        return from + (to - from) * t;
+    }
+
+    // Positive amounts blend toward white, negative toward black.
+    private static int shade(double channel, double amount) {
+        double shaded = amount >= 0 ? channel + (255 - channel) * amount : channel * (1 + amount);
+        return (int) Math.round(Math.max(0, Math.min(255, shaded)));
+    }
+}
@@ -0,0 +1,262 @@
+package com.cziczere.functions;
+
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.SetOptions;
+import com.google.cloud.firestore.Transaction;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalDouble;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * Per-user daily emotion statistics, kept in {@code emotion_aggregates/{userId}/daily/{yyyy-MM-dd}}
+ * (UTC days). Each new memory folds its emotion scores into the bucket for its day, so readers that
+ * need the mood of a time window fetch one small document per day instead of every memory.
+ *
+ * <p>The user's own {@code emotion_aggregates/{userId}} document records in {@code coveredSince}
+ * when the buckets started being kept. Memories planted before that are missing from them, so a
+ * window reaching back further is only {@linkplain Window#complete() partly covered}.
+ */
+public class EmotionAggregates {
+
+    static final String COLLECTION = "emotion_aggregates";
+    static final String DAILY = "daily";
+    static final String COVERED_SINCE = "coveredSince";
+    // Summary key for the pooled scores of emotions outside the canonical vocabulary.
+    static final String UNMAPPED = "_unmapped";
+
+    private final Firestore db;
+
+    // Running statistics of one emotion's scores.
+    record EmotionStats(double sum, long count, double min, double max) {
+        static EmotionStats of(double score) {
+            return new EmotionStats(score, 1, score, score);
+        }
+
+        EmotionStats merge(EmotionStats other) {
+            return new EmotionStats(sum + other.sum, count + other.count, Math.min(min, other.min), Math.max(max, other.max));
+        }
+
+        double mean() {
+            return count == 0 ? 0.0 : sum / count;
+        }
+    }
+
+    record DailyBucket(String day, long memoryCount, Map<String, EmotionStats> emotions) {}
+
+    // The buckets of a time window, and whether every memory of the window was folded into them.
+    record Window(List<DailyBucket> buckets, boolean complete) {}
+
+    // Buckets of a time window folded together.
+    record Summary(long memoryCount, Map<String, EmotionStats> emotions) {
+        /** Mean of every emotion score in the window, or empty if no memory had scores. */
+        OptionalDouble averageScore() {
+            double sum = 0;
+            long count = 0;
+            for (EmotionStats stats : emotions.values()) {
+                sum += stats.sum();
+                count += stats.count();
+            }
+            return count == 0 ? OptionalDouble.empty() : OptionalDouble.of(sum / count);
+        }
+    }
+
+    public EmotionAggregates(Firestore db) {
+        this.db = db;
+    }
+
+    /**
+     * Folds the memories into their daily buckets as part of {@code transaction}, so they commit or
+     * fail together with the memory writes: readers trust the buckets once {@code coveredSince} is
+     * set, so a memory must never be stored without being folded in. Memories that share a bucket
+     * (e.g. a batch import) cost a single read and write. Firestore transactions must finish all
+     * reads before the first write, so call this before the transaction writes anything.
+     */
+    void record(Transaction transaction, Collection<MemoryData> memories) throws ExecutionException, InterruptedException {
+        Map<DocumentReference, DailyBucket> deltas = new LinkedHashMap<>();
+        Set<DocumentReference> users = new LinkedHashSet<>();
+        for (MemoryData memory : memories) {
+            if (memory == null || memory.userId() == null) {
+                continue;
+            }
+            users.add(userReference(memory.userId()));
+            String day = dayOf(memory.timestamp());
+            DocumentReference ref = bucketReference(memory.userId(), day);
+            DailyBucket delta = new DailyBucket(day, 1, statsOf(memory.emotions()));
+            deltas.merge(ref, delta, EmotionAggregates::merge);
+        }
+        if (deltas.isEmpty()) {
+            return;
+        }
+
+        List<DocumentReference> uncovered = new ArrayList<>();
+        for (DocumentReference user : users) {
+            if (transaction.get(user).get().getLong(COVERED_SINCE) == null) {
+                uncovered.add(user);
+            }
+        }
+        List<DocumentSnapshot> snapshots = new ArrayList<>();
+        for (DocumentReference ref : deltas.keySet()) {
+            snapshots.add(transaction.get(ref).get());
+        }
+        // Every memory planted from now on is folded in; older ones never were.
+        long now = System.currentTimeMillis();
+        for (DocumentReference user : uncovered) {
+            transaction.set(user, Map.<String, Object>of(COVERED_SINCE, now), SetOptions.merge());
+        }
+        int i = 0;
+        for (Map.Entry<DocumentReference, DailyBucket> delta : deltas.entrySet()) {
+            DocumentSnapshot snapshot = snapshots.get(i++);
+            DailyBucket bucket = snapshot.exists() ? merge(fromSnapshot(snapshot), delta.getValue()) : delta.getValue();
+            transaction.set(delta.getKey(), toFields(bucket));
+        }
+    }
+
+    /**
+     * Reads the buckets of the last {@code days} days, today included, together with the user's
+     * coverage marker in the same round trip. Days without memories are skipped.
+     */
+    public Window recentDays(String userId, int days) throws ExecutionException, InterruptedException {
+        LocalDate today = LocalDate.now(ZoneOffset.UTC);
+        DocumentReference[] refs = new DocumentReference[days + 1];
+        refs[0] = userReference(userId);
+        for (int i = 0; i < days; i++) {
+            refs[i + 1] = bucketReference(userId, today.minusDays(i).toString());
+        }
+        List<DocumentSnapshot> snapshots = db.getAll(refs).get();
+        List<DailyBucket> buckets = new ArrayList<>();
+        for (DocumentSnapshot snapshot : snapshots.subList(1, snapshots.size())) {
+            if (snapshot.exists()) {
+                buckets.add(fromSnapshot(snapshot));
+            }
+        }
+        Long coveredSince = snapshots.get(0).getLong(COVERED_SINCE);
+        long windowStart = today.minusDays(days - 1L).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+        return new Window(buckets, coveredSince != null && coveredSince <= windowStart);
+    }
+
+    static Summary summarize(Collection<DailyBucket> buckets) {
+        long memoryCount = 0;
+        Map<String, EmotionStats> emotions = new HashMap<>();
+        for (DailyBucket bucket : buckets) {
+            memoryCount += bucket.memoryCount();
+            bucket.emotions().forEach((name, stats) -> emotions.merge(name, stats, EmotionStats::merge));
+        }
+        return new Summary(memoryCount, emotions);
+    }
+
+    /**
+     * Same totals computed straight from memory documents, for windows the aggregates do not cover.
+     * Memories are folded in one at a time as they are read, so the window is never held as a list.
+     * Scores are summed into an {@link EmotionVocabulary.Sum}; names outside the vocabulary are pooled under
+     * {@link #UNMAPPED}, whose min and max are only the pooled mean.
+     */
+    static final class MemoryTally implements Consumer<MemoryData> {
+        private final EmotionVocabulary.Sum sum = new EmotionVocabulary.Sum();
+        private long memoryCount;
+
+        @Override
+        public void accept(MemoryData memory) {
+            sum.add(memory.emotions());
+            memoryCount++;
+        }
+
+        Summary summary() {
+            Map<String, EmotionStats> emotions = new HashMap<>();
+            for (int i = 0; i < EmotionVocabulary.SIZE; i++) {
+                if (sum.counts[i] > 0) {
+                    emotions.put(EmotionVocabulary.VOCABULARY.get(i), new EmotionStats(sum.sums[i], sum.counts[i], sum.mins[i], sum.maxs[i]));
+                }
+            }
+            if (sum.unmappedCount > 0) {
+                double mean = sum.unmappedSum / sum.unmappedCount;
+                emotions.put(UNMAPPED, new EmotionStats(sum.unmappedSum, sum.unmappedCount, mean, mean));
+            }
+            return new Summary(memoryCount, emotions);
+        }
+    }
+
+    static String dayOf(long timestamp) {
+        return LocalDate.ofInstant(Instant.ofEpochMilli(timestamp), ZoneOffset.UTC).toString();
+    }
+
+    private DocumentReference userReference(String userId) {
+        return db.collection(COLLECTION).document(userId);
+    }
+
+    private DocumentReference bucketReference(String userId, String day) {
+        return userReference(userId).collection(DAILY).document(day);
+    }
+
+    private static Map<String, EmotionStats> statsOf(Map<String, Double> emotions) {
+        Map<String, EmotionStats> stats = new HashMap<>();
+        if (emotions != null) {
+            emotions.forEach((name, score) -> {
+                if (name != null && score != null && !score.isNaN()) {
+                    stats.merge(EmotionVocabulary.canonicalName(name), EmotionStats.of(score), EmotionStats::merge);
+                }
+            });
+        }
+        return stats;
+    }
+
+    private static DailyBucket merge(DailyBucket a, DailyBucket b) {
+        Map<String, EmotionStats> emotions = new HashMap<>(a.emotions());
+        b.emotions().forEach((name, stats) -> emotions.merge(name, stats, EmotionStats::merge));
+        return new DailyBucket(a.day(), a.memoryCount() + b.memoryCount(), emotions);
+    }
+
+    private static Map<String, Object> toFields(DailyBucket bucket) {
+        Map<String, Object> emotions = new HashMap<>();
+        bucket.emotions().forEach((name, stats) -> emotions.put(name, Map.of(
+            "sum", stats.sum(),
+            "count", stats.count(),
+            "min", stats.min(),
+            "max", stats.max())));
+
+        Map<String, Object> fields = new HashMap<>();
+        fields.put("day", bucket.day());
+        fields.put("memoryCount", bucket.memoryCount());
+        fields.put("emotions", emotions);
+        fields.put("updatedAt", System.currentTimeMillis());
+        return fields;
+    }
+
+    @SuppressWarnings("unchecked")
+    static DailyBucket fromSnapshot(DocumentSnapshot snapshot) {
+        Map<String, EmotionStats> emotions = new HashMap<>();
+        Object stored = snapshot.get("emotions");
+        if (stored instanceof Map<?, ?> storedEmotions) {
+            storedEmotions.forEach((name, value) -> {
+                if (value instanceof Map<?, ?> fields) {
+                    Map<String, Object> stats = (Map<String, Object>) fields;
+                    // Buckets written before the vocabulary existed may hold synonyms; fold them on read.
+                    emotions.merge(EmotionVocabulary.canonicalName(String.valueOf(name)), new EmotionStats(
+                        number(stats.get("sum")),
+                        (long) number(stats.get("count")),
+                        number(stats.get("min")),
+                        number(stats.get("max"))), EmotionStats::merge);
+                }
+            });
+        }
+        Long memoryCount = snapshot.getLong("memoryCount");
+        return new DailyBucket(snapshot.getId(), memoryCount == null ? 0 : memoryCount, emotions);
+    }
+
+    private static double number(Object value) {
+        return value instanceof Number number ? number.doubleValue() : 0.0;
+    }
+}
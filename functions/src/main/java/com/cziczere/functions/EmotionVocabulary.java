@@ -0,0 +1,156 @@
+package com.cziczere.functions;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The fixed, canonical emotion vocabulary, indexed one slot per emotion.
+ * Gemini names emotions freely ("joy", "Joy", "joyfulness"); {@link #canonicalName} folds case
+ * and known synonyms onto the vocabulary so that the same feeling is always counted under one
+ * name. Scores of names outside the vocabulary are not dropped from stored documents, but a
+ * {@link Sum} only keeps their total, which is what mood coverage needs.
+ *
+ * <p>Stored documents and {@link MemoryData} keep emotions as maps under canonical names; this
+ * class normalizes them and does not replace them. {@link Sum} totals many memories into
+ * primitive arrays indexed like the vocabulary rather than into a map of boxed running totals,
+ * though each memory's own scores are still read from its map.
+ */
+public final class EmotionVocabulary {
+
+    static final List<String> VOCABULARY = List.of(
+        "joy", "love", "gratitude", "hope", "pride", "excitement", "amusement", "awe", "curiosity",
+        "contentment", "calm", "relief", "nostalgia", "surprise", "boredom", "tiredness", "melancholy",
+        "sadness", "loneliness", "grief", "disappointment", "anxiety", "fear", "frustration", "anger");
+
+    private static final Map<String, String> SYNONYMS = Map.ofEntries(
+        Map.entry("happiness", "joy"), Map.entry("happy", "joy"), Map.entry("joyful", "joy"),
+        Map.entry("joyfulness", "joy"), Map.entry("delight", "joy"), Map.entry("cheerfulness", "joy"),
+        Map.entry("elation", "joy"),
+        Map.entry("affection", "love"), Map.entry("warmth", "love"), Map.entry("tenderness", "love"),
+        Map.entry("gratefulness", "gratitude"), Map.entry("grateful", "gratitude"),
+        Map.entry("thankfulness", "gratitude"), Map.entry("appreciation", "gratitude"),
+        Map.entry("optimism", "hope"), Map.entry("hopeful", "hope"), Map.entry("hopefulness", "hope"),
+        Map.entry("proud", "pride"), Map.entry("accomplishment", "pride"), Map.entry("achievement", "pride"),
+        Map.entry("excited", "excitement"), Map.entry("enthusiasm", "excitement"),
+        Map.entry("anticipation", "excitement"), Map.entry("eagerness", "excitement"), Map.entry("thrill", "excitement"),
+        Map.entry("humor", "amusement"), Map.entry("humour", "amusement"), Map.entry("fun", "amusement"),
+        Map.entry("playfulness", "amusement"),
+        Map.entry("wonder", "awe"), Map.entry("amazement", "awe"),
+        Map.entry("curious", "curiosity"), Map.entry("interest", "curiosity"), Map.entry("intrigue", "curiosity"),
+        Map.entry("content", "contentment"), Map.entry("satisfaction", "contentment"),
+        Map.entry("fulfillment", "contentment"), Map.entry("fulfilment", "contentment"),
+        Map.entry("peace", "calm"), Map.entry("peacefulness", "calm"), Map.entry("serenity", "calm"),
+        Map.entry("tranquility", "calm"), Map.entry("tranquillity", "calm"), Map.entry("calmness", "calm"),
+        Map.entry("relaxation", "calm"), Map.entry("relaxed", "calm"),
+        Map.entry("relieved", "relief"),
+        Map.entry("nostalgic", "nostalgia"), Map.entry("wistfulness", "nostalgia"), Map.entry("reminiscence", "nostalgia"),
+        Map.entry("surprised", "surprise"), Map.entry("astonishment", "surprise"),
+        Map.entry("bored", "boredom"),
+        Map.entry("tired", "tiredness"), Map.entry("fatigue", "tiredness"), Map.entry("exhaustion", "tiredness"),
+        Map.entry("weariness", "tiredness"),
+        Map.entry("melancholic", "melancholy"), Map.entry("pensiveness", "melancholy"),
+        Map.entry("sad", "sadness"), Map.entry("sorrow", "sadness"), Map.entry("unhappiness", "sadness"),
+        Map.entry("heartbreak", "sadness"),
+        Map.entry("lonely", "loneliness"), Map.entry("isolation", "loneliness"),
+        Map.entry("mourning", "grief"), Map.entry("loss", "grief"), Map.entry("bereavement", "grief"),
+        Map.entry("disappointed", "disappointment"), Map.entry("regret", "disappointment"),
+        Map.entry("anxious", "anxiety"), Map.entry("worry", "anxiety"), Map.entry("nervousness", "anxiety"),
+        Map.entry("unease", "anxiety"), Map.entry("stress", "anxiety"), Map.entry("tension", "anxiety"),
+        Map.entry("afraid", "fear"), Map.entry("scared", "fear"), Map.entry("dread", "fear"), Map.entry("terror", "fear"),
+        Map.entry("frustrated", "frustration"), Map.entry("annoyance", "frustration"), Map.entry("irritation", "frustration"),
+        Map.entry("angry", "anger"), Map.entry("rage", "anger"), Map.entry("resentment", "anger")
+    );
+
+    static final int SIZE = VOCABULARY.size();
+
+    // Canonical names and synonyms, already lower-cased, to their vocabulary index.
+    private static final Map<String, Integer> INDEX = buildIndex();
+
+    private EmotionVocabulary() {
+    }
+
+    private static Map<String, Integer> buildIndex() {
+        Map<String, Integer> index = new HashMap<>();
+        for (int i = 0; i < VOCABULARY.size(); i++) {
+            index.put(VOCABULARY.get(i), i);
+        }
+        SYNONYMS.forEach((synonym, canonical) -> index.put(synonym, index.get(canonical)));
+        return index;
+    }
+
+    /** Vocabulary index of {@code name} or one of its synonyms, ignoring case; -1 if unknown. */
+    static int indexOf(String name) {
+        if (name == null) {
+            return -1;
+        }
+        Integer index = INDEX.get(name.trim().toLowerCase(Locale.ROOT));
+        return index == null ? -1 : index;
+    }
+
+    /** The vocabulary name for {@code name}, or the trimmed, lower-cased name itself if it is unknown. */
+    static String canonicalName(String name) {
+        int index = indexOf(name);
+        return index >= 0 ? VOCABULARY.get(index) : name.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Rewrites a stored or model-produced emotion map under canonical names. Synonyms that land on
+     * the same emotion keep the strongest score; non-numeric values are skipped.
+     */
+    static Map<String, Double> canonicalize(Map<?, ?> emotions) {
+        if (emotions == null) {
+            return null;
+        }
+        Map<String, Double> canonical = new HashMap<>(emotions.size() * 2);
+        emotions.forEach((name, score) -> {
+            if (name != null && score instanceof Number number && !Double.isNaN(number.doubleValue())) {
+                canonical.merge(canonicalName(String.valueOf(name)), number.doubleValue(), Math::max);
+            }
+        });
+        return canonical;
+    }
+
+    /** Running per-emotion totals over many memories, in primitive arrays indexed like the vocabulary. */
+    static final class Sum {
+        final double[] sums = new double[SIZE];
+        final long[] counts = new long[SIZE];
+        final double[] mins = new double[SIZE];
+        final double[] maxs = new double[SIZE];
+        double unmappedSum;
+        long unmappedCount;
+
+        Sum() {
+            Arrays.fill(mins, Double.POSITIVE_INFINITY);
+            Arrays.fill(maxs, Double.NEGATIVE_INFINITY);
+        }
+
+        /**
+         * Adds one memory's scores. A score of zero still counts as named, as it does in the daily
+         * aggregates; non-numeric values are skipped.
+         */
+        void add(Map<?, ?> emotions) {
+            if (emotions == null) {
+                return;
+            }
+            for (Map.Entry<?, ?> entry : emotions.entrySet()) {
+                if (entry.getKey() == null || !(entry.getValue() instanceof Number number) || Double.isNaN(number.doubleValue())) {
+                    continue;
+                }
+                double score = number.doubleValue();
+                int index = indexOf(String.valueOf(entry.getKey()));
+                if (index >= 0) {
+                    sums[index] += score;
+                    counts[index]++;
+                    mins[index] = Math.min(mins[index], score);
+                    maxs[index] = Math.max(maxs[index], score);
+                } else {
+                    unmappedSum += score;
+                    unmappedCount++;
+                }
+            }
+        }
+    }
+}
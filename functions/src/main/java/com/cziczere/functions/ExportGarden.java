@@ -1,50 +1,144 @@
 package com.cziczere.functions;
 
-import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
 import com.google.cloud.firestore.Firestore;
 import com.google.cloud.firestore.FirestoreOptions;
-import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.Precondition;
 import com.google.cloud.functions.HttpFunction;
 import com.google.cloud.functions.HttpRequest;
 import com.google.cloud.functions.HttpResponse;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageOptions;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseAuthException;
 import com.google.firebase.auth.FirebaseToken;
 import com.google.gson.Gson;
 
 import javax.imageio.ImageIO;
-import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
+/**
+ * Renders a user's garden as a printable poster: small posters inline (base64 JSON or streamed
+ * PNG), anything larger as an export job that renders in the background and is polled by id.
+ *
+ * <p>Jobs run on this instance after the response is sent, so the function must be deployed with
+ * CPU always allocated. A job dies with its instance; while it runs it refreshes {@code updatedAt}
+ * on its document, and the status endpoint reports a job whose heartbeat stopped as failed.
+ */
 public class ExportGarden implements HttpFunction {
 
     private static final Logger logger = Logger.getLogger(ExportGarden.class.getName());
     private static final Gson gson = new Gson();
     private final Firestore db;
+    private final MemoryQueries memoryQueries;
 
-    // A4 at 150 DPI
-    private static final int POSTER_WIDTH = 1240;
-    private static final int POSTER_HEIGHT = 1754;
-    private static final int PADDING = 50;
+    private static final int FETCH_CONCURRENCY = Integer.parseInt(System.getenv().getOrDefault("EXPORT_FETCH_CONCURRENCY", "16"));
+    private static final int IMAGE_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(
+        Long.parseLong(System.getenv().getOrDefault("EXPORT_IMAGE_TIMEOUT_SECONDS", "10")));
+    private static final long FETCH_DEADLINE_MILLIS = TimeUnit.SECONDS.toMillis(
+        Long.parseLong(System.getenv().getOrDefault("EXPORT_FETCH_DEADLINE_SECONDS", "30")));
+
+    // Shared by all requests on the instance; image downloads are I/O bound, so the pool is wider than the CPU count.
+    private static final ExecutorService fetchExecutor = Executors.newFixedThreadPool(FETCH_CONCURRENCY, runnable -> {
+        Thread thread = new Thread(runnable, "poster-image-fetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final String GCS_BUCKET_NAME = System.getenv().getOrDefault("GCS_BUCKET_NAME", "your-gcs-bucket-name");
+    static final String JOBS_COLLECTION = "export_jobs";
+    static final String JOB_QUEUED = "queued";
+    static final String JOB_FETCHING = "fetching";
+    static final String JOB_RENDERING = "rendering";
+    static final String JOB_COMPLETED = "completed";
+    static final String JOB_FAILED = "failed";
+
+    private static final long JOB_HEARTBEAT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    // A job whose document was not touched for this long has lost its instance.
+    private static final long JOB_STALE_MILLIS = TimeUnit.SECONDS.toMillis(
+        Long.parseLong(System.getenv().getOrDefault("EXPORT_JOB_STALE_SECONDS", "180")));
+    private static final long JOB_RETENTION_MILLIS = TimeUnit.DAYS.toMillis(
+        Long.parseLong(System.getenv().getOrDefault("EXPORT_JOB_RETENTION_DAYS", "7")));
+
+    // Posters rendered at once on this instance, by requests and jobs together. Rendering is CPU bound,
+    // so more would only slow every export down and starve the instance's other work.
+    private static final int MAX_CONCURRENT_RENDERS = Integer.parseInt(System.getenv().getOrDefault("EXPORT_MAX_CONCURRENT_RENDERS", "2"));
+    private static final long RENDER_WAIT_SECONDS = Long.parseLong(System.getenv().getOrDefault("EXPORT_RENDER_WAIT_SECONDS", "20"));
+    private static final Semaphore renderPermits = new Semaphore(MAX_CONCURRENT_RENDERS, true);
+
+    // Background pipeline for export jobs; as many workers as render permits, so queued jobs wait here.
+    private static final ExecutorService jobExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_RENDERS, runnable -> {
+        Thread thread = new Thread(runnable, "poster-export-job");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final ScheduledExecutorService heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "poster-export-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final String UNSUPPORTED_OPTIONS = "Poster size must be one of A4, A3, A2, A1 and dpi one of 150, 300, 600.";
+
+    // Shared by all requests on the instance, so repeated exports find their images warm.
+    private static PosterImageCache sharedImageCache;
+
+    private final long fetchDeadlineMillis;
+    private final PosterImageCache imageCache;
+    private final PosterResultCache resultCache;
 
     public ExportGarden() throws IOException {
-        this.db = FirestoreOptions.getDefaultInstance().getService();
+        this(FirestoreOptions.getDefaultInstance().getService(), StorageOptions.getDefaultInstance().getService(),
+            FETCH_DEADLINE_MILLIS, sharedImageCache());
+    }
+
+    // Constructor for testing
+    ExportGarden(Firestore db, Storage storage) {
+        this(db, storage, FETCH_DEADLINE_MILLIS, sharedImageCache());
     }
 
     // Constructor for testing
-    ExportGarden(Firestore db) {
+    ExportGarden(Firestore db, Storage storage, long fetchDeadlineMillis, PosterImageCache imageCache) {
         this.db = db;
+        this.memoryQueries = new MemoryQueries(db);
+        this.fetchDeadlineMillis = fetchDeadlineMillis;
+        this.imageCache = imageCache;
+        this.resultCache = new PosterResultCache(storage, GCS_BUCKET_NAME);
+    }
+
+    private static synchronized PosterImageCache sharedImageCache() {
+        if (sharedImageCache == null) {
+            sharedImageCache = new PosterImageCache();
+        }
+        return sharedImageCache;
     }
 
     static class AuthException extends Exception {
@@ -53,19 +147,84 @@ public class ExportGarden implements HttpFunction {
         }
     }
 
+    static class InvalidOptionsException extends Exception {
+        public InvalidOptionsException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * The memories to draw, oldest first, and their document ids in the same order. The ids are
+     * only used to key the result cache.
+     */
+    record Garden(List<String> memoryIds, List<MemoryData> memories) {
+        Garden {
+            if (memoryIds.size() != memories.size()) {
+                throw new IllegalArgumentException("Every memory needs its document id.");
+            }
+        }
+
+        int size() {
+            return memories.size();
+        }
+
+        // The first count memories, as the garden looked before the later ones were planted.
+        Garden head(int count) {
+            return new Garden(memoryIds.subList(0, count), memories.subList(0, count));
+        }
+    }
+
+    // Paper size and print resolution requested for the poster.
+    record PosterOptions(PosterRenderer.PaperSize paper, int dpi) {}
+
+    // The JSON response's poster, the only one drawn in one piece.
+    static final PosterOptions DEFAULT_OPTIONS = new PosterOptions(PosterRenderer.DEFAULT_PAPER, PosterRenderer.DEFAULT_DPI);
+
     record PosterResponse(String base64Image) {}
 
+    /**
+     * The memories' images in poster order, null where a placeholder is drawn. {@code failed}
+     * counts downloads that failed or missed the deadline, as opposed to memories without an image.
+     */
+    record FetchedImages(List<BufferedImage> images, int failed) {
+        // A poster with placeholders for failed downloads is not what its fingerprint names, so it is never stored.
+        boolean complete() {
+            return failed == 0;
+        }
+    }
+
+    // A drawn poster and whether every image it shows was fetched.
+    record RenderedPoster(BufferedImage image, boolean complete) {}
+
+    // Response for job mode: the id is polled with ?jobId= until the job completes.
+    record ExportJobResponse(String jobId, String status) {}
+
+    // What the status endpoint reports; url is set once the poster is uploaded.
+    record ExportJobStatus(String jobId, String status, long progress, String url, String error) {}
+
     @Override
     public void service(HttpRequest request, HttpResponse response) throws Exception {
         // This is required for the AWT toolkit to work in a headless environment (like a Cloud Function)
         System.setProperty("java.awt.headless", "true");
 
-        response.appendHeader("Content-Type", "application/json");
+        boolean binary = isBinaryRequest(request);
+        boolean job = isJobRequest(request);
+        boolean streaming = false;
+        boolean rendering = false;
+        response.setContentType("application/json");
         response.appendHeader("Access-Control-Allow-Origin", "*"); // Basic CORS for development
 
         try {
             String userId = getUserIdFromAuthToken(request);
-            List<MemoryData> memories = getMemoriesForUser(userId);
+            Optional<String> jobId = request.getFirstQueryParameter("jobId");
+            if (jobId.isPresent()) {
+                writeJobStatus(userId, jobId.get(), response);
+                return;
+            }
+
+            PosterOptions options = parseOptions(request, binary || job);
+            Garden garden = getGardenForUser(userId);
+            List<MemoryData> memories = garden.memories();
 
             if (memories.isEmpty()) {
                 response.setStatusCode(404, "Not Found");
@@ -73,8 +232,65 @@ public class ExportGarden implements HttpFunction {
                 return;
             }
 
-            BufferedImage poster = createPoster(memories);
-            String base64Image = encodeImageToBase64(poster);
+            if (job) {
+                ExportJobResponse started = startJob(userId, options, garden);
+                response.setStatusCode(202, "Accepted");
+                response.getWriter().write(gson.toJson(started));
+                return;
+            }
+
+            // A garden exported before is served as stored, without waiting for a render slot.
+            String blobName = resultCache.blobNameFor(userId, PosterResultCache.fingerprint(options, garden));
+            if (resultCache.contains(blobName)) {
+                if (binary) {
+                    response.setContentType("image/png");
+                    response.setStatusCode(200, "OK");
+                    streaming = true;
+                    try (OutputStream out = response.getOutputStream()) {
+                        resultCache.copyTo(blobName, out);
+                    }
+                    return;
+                }
+                String base64Image = Base64.getEncoder().encodeToString(resultCache.read(blobName));
+                response.setStatusCode(200, "OK");
+                response.getWriter().write(gson.toJson(new PosterResponse(base64Image)));
+                response.getWriter().flush();
+                return;
+            }
+
+            rendering = renderPermits.tryAcquire(RENDER_WAIT_SECONDS, TimeUnit.SECONDS);
+            if (!rendering) {
+                response.appendHeader("Retry-After", "30");
+                response.setStatusCode(503, "Service Unavailable");
+                response.getWriter().write("{\"error\":\"Too many posters are being rendered. Retry later or use mode=job.\"}");
+                return;
+            }
+
+            if (binary) {
+                PosterRenderer renderer = new PosterRenderer(options.paper(), options.dpi(), memories.size());
+                FetchedImages fetched = fetchImages(memories, renderer.sourceSize());
+                // No Content-Length is set, so the PNG goes out chunked as the strips are encoded.
+                response.setContentType("image/png");
+                response.setStatusCode(200, "OK");
+                streaming = true;
+                if (!fetched.complete()) {
+                    try (OutputStream out = response.getOutputStream()) {
+                        renderer.writePng(fetched.images(), out);
+                    }
+                    return;
+                }
+                try (PosterResultCache.Upload out = resultCache.upload(blobName, response.getOutputStream())) {
+                    renderer.writePng(fetched.images(), out);
+                    out.complete();
+                }
+                return;
+            }
+            RenderedPoster poster = createPoster(userId, garden);
+            byte[] png = encodePng(poster.image());
+            if (poster.complete()) {
+                resultCache.put(blobName, png);
+            }
+            String base64Image = Base64.getEncoder().encodeToString(png);
 
             response.setStatusCode(200, "OK");
             response.getWriter().write(gson.toJson(new PosterResponse(base64Image)));
@@ -84,13 +300,206 @@ public class ExportGarden implements HttpFunction {
             logger.warning("Authentication failed: " + e.getMessage());
             response.setStatusCode(401, "Unauthorized");
             response.getWriter().write("{\"error\":\"" + e.getMessage() + "\"}");
+        } catch (InvalidOptionsException e) {
+            logger.warning("Invalid poster options: " + e.getMessage());
+            response.setStatusCode(400, "Bad Request");
+            response.getWriter().write("{\"error\":\"" + e.getMessage() + "\"}");
         } catch (Exception e) {
             logger.log(Level.SEVERE, "Internal Server Error during poster generation", e);
+            if (streaming) {
+                // Part of the image may already be sent; the truncated body is all the client can get.
+                return;
+            }
             response.setStatusCode(500, "Internal Server Error.");
             response.getWriter().write("{\"error\":\"An unexpected error occurred while generating the poster.\"}");
+        } finally {
+            if (rendering) {
+                renderPermits.release();
+            }
         }
     }
 
+    boolean isJobRequest(HttpRequest request) {
+        return "job".equalsIgnoreCase(request.getFirstQueryParameter("mode").orElse(""));
+    }
+
+    /**
+     * Records a queued export job and hands the rendering to the background workers. Job posters
+     * are always rendered as binary PNG and may use any supported size. A poster already in the
+     * result cache completes the job on the spot.
+     */
+    ExportJobResponse startJob(String userId, PosterOptions options, Garden garden)
+            throws ExecutionException, InterruptedException {
+        DocumentReference jobRef = db.collection(JOBS_COLLECTION).document();
+        String blobName = resultCache.blobNameFor(userId, PosterResultCache.fingerprint(options, garden));
+        boolean cached = resultCache.contains(blobName);
+        Map<String, Object> fields = new HashMap<>();
+        fields.put("userId", userId);
+        fields.put("status", cached ? JOB_COMPLETED : JOB_QUEUED);
+        fields.put("progress", cached ? 100L : 0L);
+        if (cached) {
+            fields.put("url", resultCache.publicUrl(blobName));
+        }
+        fields.put("size", options.paper().name());
+        fields.put("dpi", options.dpi());
+        fields.put("memoryCount", garden.size());
+        fields.put("createdAt", System.currentTimeMillis());
+        fields.put("updatedAt", System.currentTimeMillis());
+        // Lets a Firestore TTL policy on expiresAt clean up old jobs; TTL policies need a timestamp value.
+        fields.put("expiresAt", Timestamp.ofTimeMicroseconds((System.currentTimeMillis() + JOB_RETENTION_MILLIS) * 1000));
+        jobRef.set(fields).get();
+        if (cached) {
+            logger.info("Export job " + jobRef.getId() + " served from the poster result cache.");
+            return new ExportJobResponse(jobRef.getId(), JOB_COMPLETED);
+        }
+        logger.info("Queued export job " + jobRef.getId() + " (" + options.paper() + " at " + options.dpi() + " DPI).");
+
+        scheduleJob(jobRef, userId, options, garden);
+        return new ExportJobResponse(jobRef.getId(), JOB_QUEUED);
+    }
+
+    /** Runs the job in the background, refreshing its {@code updatedAt} until it ends, queued time included. */
+    void scheduleJob(DocumentReference jobRef, String userId, PosterOptions options, Garden garden) {
+        ScheduledFuture<?> heartbeat = heartbeatExecutor.scheduleAtFixedRate(() -> {
+            try {
+                jobRef.update("updatedAt", System.currentTimeMillis());
+            } catch (RuntimeException e) {
+                // A thrown exception would cancel the heartbeat for good.
+                logger.log(Level.WARNING, "Could not refresh export job " + jobRef.getId(), e);
+            }
+        }, JOB_HEARTBEAT_MILLIS, JOB_HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+        jobExecutor.execute(() -> {
+            try {
+                runJob(jobRef, userId, options, garden);
+            } finally {
+                heartbeat.cancel(false);
+            }
+        });
+    }
+
+    /**
+     * Renders the poster strip by strip straight into a Cloud Storage upload under its result cache
+     * entry, reporting progress on the job document as it goes. A poster drawn with placeholders for
+     * failed downloads is uploaded under the job instead, outside the cache. Progress updates are not
+     * awaited; only the final state is.
+     */
+    void runJob(DocumentReference jobRef, String userId, PosterOptions options, Garden garden) {
+        boolean acquired = false;
+        try {
+            renderPermits.acquire();
+            acquired = true;
+            jobRef.update(Map.of("status", JOB_FETCHING, "updatedAt", System.currentTimeMillis()));
+            PosterRenderer renderer = new PosterRenderer(options.paper(), options.dpi(), garden.size());
+            FetchedImages fetched = fetchImages(garden.memories(), renderer.sourceSize());
+            jobRef.update(Map.of("status", JOB_RENDERING, "updatedAt", System.currentTimeMillis()));
+
+            String blobName = fetched.complete()
+                ? resultCache.blobNameFor(userId, PosterResultCache.fingerprint(options, garden))
+                : resultCache.jobBlobNameFor(userId, jobRef.getId());
+            // Nobody is waiting on the bytes, so the upload is the only output; it is finalized only
+            // once the whole poster is written, so a failed render never leaves a truncated entry.
+            try (PosterResultCache.Upload out = resultCache.upload(blobName, OutputStream.nullOutputStream())) {
+                renderer.writePng(fetched.images(), out, percent -> jobRef.update(Map.of(
+                    "progress", (long) percent, "updatedAt", System.currentTimeMillis())));
+                if (!out.complete()) {
+                    throw new IOException("Could not store poster " + blobName);
+                }
+            }
+
+            jobRef.update(Map.of("status", JOB_COMPLETED, "progress", 100L, "url", resultCache.publicUrl(blobName),
+                "updatedAt", System.currentTimeMillis())).get();
+            logger.info("Export job " + jobRef.getId() + " completed.");
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            logger.log(Level.SEVERE, "Export job " + jobRef.getId() + " failed.", e);
+            try {
+                jobRef.update(Map.of("status", JOB_FAILED, "error", "The poster could not be rendered.",
+                    "updatedAt", System.currentTimeMillis())).get();
+            } catch (Exception updateError) {
+                logger.log(Level.SEVERE, "Could not mark export job " + jobRef.getId() + " as failed.", updateError);
+            }
+        } finally {
+            if (acquired) {
+                renderPermits.release();
+            }
+        }
+    }
+
+    /**
+     * Reports a job to its owner; jobs of other users are reported as missing, so job ids cannot
+     * be probed. An unfinished job whose heartbeat stopped is marked failed on the way.
+     */
+    private void writeJobStatus(String userId, String jobId, HttpResponse response)
+            throws ExecutionException, InterruptedException, IOException {
+        DocumentReference jobRef = db.collection(JOBS_COLLECTION).document(jobId);
+        DocumentSnapshot job = jobRef.get().get();
+        if (!job.exists() || !userId.equals(job.getString("userId"))) {
+            response.setStatusCode(404, "Not Found");
+            response.getWriter().write("{\"error\":\"Export job not found.\"}");
+            return;
+        }
+        String state = job.getString("status");
+        String error = job.getString("error");
+        if (isStale(job)) {
+            String interrupted = "The export job was interrupted. Please start it again.";
+            try {
+                // Only if the document is unchanged since it was read, so a job that just moved on is not overwritten.
+                jobRef.update(Map.of("status", JOB_FAILED, "error", interrupted, "updatedAt", System.currentTimeMillis()),
+                    Precondition.updatedAt(job.getUpdateTime())).get();
+                logger.warning("Export job " + jobId + " stopped responding; marked it as failed.");
+                state = JOB_FAILED;
+                error = interrupted;
+            } catch (ExecutionException e) {
+                logger.log(Level.WARNING, "Could not mark stale export job " + jobId + " as failed.", e);
+            }
+        }
+        Long progress = job.getLong("progress");
+        ExportJobStatus status = new ExportJobStatus(jobId, state, progress == null ? 0 : progress,
+            job.getString("url"), error);
+        response.setStatusCode(200, "OK");
+        response.getWriter().write(gson.toJson(status));
+    }
+
+    private static boolean isStale(DocumentSnapshot job) {
+        String state = job.getString("status");
+        Long updatedAt = job.getLong("updatedAt");
+        boolean unfinished = JOB_QUEUED.equals(state) || JOB_FETCHING.equals(state) || JOB_RENDERING.equals(state);
+        return unfinished && updatedAt != null && System.currentTimeMillis() - updatedAt > JOB_STALE_MILLIS;
+    }
+
+    /**
+     * Binary mode streams the poster as {@code image/png}. It is chosen with {@code ?format=png} or
+     * an {@code Accept} header naming {@code image/png}; otherwise the base64-in-JSON response is kept.
+     */
+    boolean isBinaryRequest(HttpRequest request) {
+        return "png".equalsIgnoreCase(request.getFirstQueryParameter("format").orElse(""))
+            || request.getFirstHeader("Accept").map(accept -> accept.contains("image/png")).orElse(false);
+    }
+
+    /**
+     * Reads {@code size} (A4 to A1) and {@code dpi} (150, 300 or 600). Anything beyond the default
+     * A4 at 150 DPI is only rendered in binary mode, which never holds the whole poster in memory.
+     */
+    PosterOptions parseOptions(HttpRequest request, boolean binary) throws InvalidOptionsException {
+        PosterRenderer.PaperSize paper;
+        int dpi;
+        try {
+            paper = request.getFirstQueryParameter("size").map(PosterRenderer::paperSizeOf).orElse(PosterRenderer.DEFAULT_PAPER);
+            dpi = request.getFirstQueryParameter("dpi").map(Integer::parseInt).orElse(PosterRenderer.DEFAULT_DPI);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidOptionsException(UNSUPPORTED_OPTIONS);
+        }
+        if (!PosterRenderer.SUPPORTED_DPI.contains(dpi)) {
+            throw new InvalidOptionsException(UNSUPPORTED_OPTIONS);
+        }
+        if (!binary && (paper != PosterRenderer.DEFAULT_PAPER || dpi != PosterRenderer.DEFAULT_DPI)) {
+            throw new InvalidOptionsException("Larger or high-DPI posters are only available with format=png.");
+        }
+        return new PosterOptions(paper, dpi);
+    }
+
     String getUserIdFromAuthToken(HttpRequest request) throws AuthException {
         Optional<String> authHeader = request.getFirstHeader("Authorization");
         if (authHeader.isEmpty() || !authHeader.get().startsWith("Bearer ")) {
@@ -105,58 +514,111 @@ public class ExportGarden implements HttpFunction {
         }
     }
 
-    List<MemoryData> getMemoriesForUser(String userId) throws ExecutionException, InterruptedException {
-        CollectionReference memoriesCollection = db.collection("memories");
-        Query query = memoriesCollection.whereEqualTo("userId", userId).orderBy("timestamp", Query.Direction.ASCENDING);
-        return query.get().get().getDocuments().stream()
-                .map(doc -> doc.toObject(MemoryData.class))
-                .collect(Collectors.toList());
+    Garden getGardenForUser(String userId) throws ExecutionException, InterruptedException {
+        List<String> memoryIds = new ArrayList<>();
+        List<MemoryData> memories = new ArrayList<>();
+        memoryQueries.forEachWithId(userId, 0, true, MemoryQueries.EXPORT_FIELDS, (id, memory) -> {
+            memoryIds.add(id);
+            memories.add(memory);
+        });
+        return new Garden(memoryIds, memories);
     }
 
-    BufferedImage createPoster(List<MemoryData> memories) throws IOException {
-        BufferedImage posterImage = new BufferedImage(POSTER_WIDTH, POSTER_HEIGHT, BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g2d = posterImage.createGraphics();
-
-        // Set background and quality
-        g2d.setColor(Color.WHITE);
-        g2d.fillRect(0, 0, POSTER_WIDTH, POSTER_HEIGHT);
-        g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
-        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
-
-        // Simple grid layout logic
-        int numImages = memories.size();
-        if (numImages == 0) return posterImage;
-
-        int cols = (int) Math.ceil(Math.sqrt(numImages));
-        int rows = (int) Math.ceil((double) numImages / cols);
-
-        int cellWidth = (POSTER_WIDTH - 2 * PADDING) / cols;
-        int cellHeight = (POSTER_HEIGHT - 2 * PADDING) / rows;
-        int imageSize = Math.min(cellWidth, cellHeight) - PADDING;
+    // The JSON response's poster: A4 at 150 DPI, drawn in one piece.
+    RenderedPoster createPoster(List<MemoryData> memories) {
+        PosterRenderer renderer = new PosterRenderer(DEFAULT_OPTIONS.paper(), DEFAULT_OPTIONS.dpi(), memories.size());
+        FetchedImages fetched = fetchImages(memories, renderer.sourceSize());
+        return new RenderedPoster(renderer.render(fetched.images(), 0, renderer.height()), fetched.complete());
+    }
 
-        for (int i = 0; i < numImages; i++) {
-            int row = i / cols;
-            int col = i % cols;
+    /**
+     * Same, but when the result cache holds the poster of an earlier garden that this one only
+     * added memories to, and the grid kept its shape, that poster is reused and only the new
+     * memories are fetched and drawn. Only complete posters are ever stored, so the reused part never
+     * holds placeholders for failed downloads.
+     */
+    RenderedPoster createPoster(String userId, Garden garden) {
+        List<MemoryData> memories = garden.memories();
+        Optional<PosterResultCache.Prefix> prefix = resultCache.findPrefix(userId, DEFAULT_OPTIONS, garden);
+        if (prefix.isPresent()) {
+            int reused = prefix.get().memoryCount();
+            try {
+                BufferedImage base = ImageIO.read(new ByteArrayInputStream(resultCache.read(prefix.get().blobName())));
+                if (base != null) {
+                    PosterRenderer renderer = new PosterRenderer(DEFAULT_OPTIONS.paper(), DEFAULT_OPTIONS.dpi(), memories.size());
+                    FetchedImages fetched = fetchImages(memories.subList(reused, memories.size()), renderer.sourceSize());
+                    logger.info("Extending a cached poster of " + reused + " memories with " + fetched.images().size() + " new ones.");
+                    return new RenderedPoster(renderer.extend(base, fetched.images(), reused), fetched.complete());
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.WARNING, "Could not reuse cached poster " + prefix.get().blobName() + "; redrawing it.", e);
+            }
+        }
+        return createPoster(memories);
+    }
 
-            int x = PADDING + col * cellWidth + (cellWidth - imageSize) / 2;
-            int y = PADDING + row * cellHeight + (cellHeight - imageSize) / 2;
+    /**
+     * Fetches the memories' images concurrently on the shared pool. Each download is bounded by the
+     * connect and read timeouts of {@link #fetchImage}, and the whole set by the fetch deadline;
+     * images that fail, are missing, or are not back in time come back as {@code null}, and all but
+     * the missing ones are counted as failed.
+     */
+    FetchedImages fetchImages(List<MemoryData> memories, int cellSize) {
+        List<Future<BufferedImage>> pending = new ArrayList<>(memories.size());
+        for (MemoryData memory : memories) {
+            String sourceUrl = sourceUrlFor(memory, cellSize);
+            pending.add(fetchExecutor.submit(() -> fetchImage(sourceUrl, cellSize)));
+        }
 
-            MemoryData memory = memories.get(i);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(fetchDeadlineMillis);
+        List<BufferedImage> images = new ArrayList<>(memories.size());
+        int failed = 0;
+        for (int i = 0; i < pending.size(); i++) {
+            Future<BufferedImage> future = pending.get(i);
             try {
-                BufferedImage memoryImage = fetchImage(memory.imageUrl());
-                if (memoryImage != null) {
-                    g2d.drawImage(memoryImage, x, y, imageSize, imageSize, null);
+                images.add(future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                images.add(null);
+                failed++;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                pending.forEach(f -> f.cancel(true));
+                while (images.size() < memories.size()) {
+                    images.add(null);
+                    failed++;
                 }
-            } catch (IOException e) {
-                logger.warning("Could not fetch or draw image for memory: " + memory.userText() + " from " + memory.imageUrl());
+                return new FetchedImages(images, failed);
+            } catch (ExecutionException e) {
+                logger.warning("Could not fetch image for memory from " + sourceUrlFor(memories.get(i), cellSize) + ": " + e.getCause());
+                images.add(null);
+                failed++;
             }
         }
+        if (failed > 0) {
+            logger.warning(failed + " of " + memories.size() + " poster images failed or missed the deadline; drawing placeholders.");
+        }
+        PosterImageCache.Stats stats = imageCache.stats();
+        logger.info(String.format("Poster image cache: %.0f%% hit rate (%d heap, %d disk, %d misses), %d/%d evictions (heap/disk).",
+            stats.hitRate() * 100, stats.heapHits(), stats.diskHits(), stats.misses(), stats.heapEvictions(), stats.diskEvictions()));
+        return new FetchedImages(images, failed);
+    }
 
-        g2d.dispose();
-        return posterImage;
+    /**
+     * The smallest stored rendition that still covers a {@code cellSize} square: the thumbnail or
+     * medium JPEG when the memory has them, otherwise the original image.
+     */
+    static String sourceUrlFor(MemoryData memory, int cellSize) {
+        if (memory.thumbnailUrl() != null && cellSize <= ImageDerivatives.Size.THUMBNAIL.maxDimension) {
+            return memory.thumbnailUrl();
+        }
+        if (memory.mediumUrl() != null && cellSize <= ImageDerivatives.Size.MEDIUM.maxDimension) {
+            return memory.mediumUrl();
+        }
+        return memory.imageUrl();
     }
 
-    BufferedImage fetchImage(String imageUrl) throws IOException {
+    BufferedImage fetchImage(String imageUrl, int targetSize) throws IOException {
         // Handle placeholder for testing or errors
         if (imageUrl == null || imageUrl.startsWith("https://storage.googleapis.com/cziczere-static-assets/placeholder-plant-error.png")) {
             return null;
@@ -164,16 +626,38 @@ public class ExportGarden implements HttpFunction {
         // Handle base64 encoded images from Imagen
         if (imageUrl.startsWith("data:image/png;base64,")) {
             byte[] imageBytes = Base64.getDecoder().decode(imageUrl.substring("data:image/png;base64,".length()));
-            return ImageIO.read(new java.io.ByteArrayInputStream(imageBytes));
+            return ImageDerivatives.decode(new ByteArrayInputStream(imageBytes), targetSize);
+        }
+        // Handle standard URLs, through the instance's image cache
+        Optional<BufferedImage> cached = imageCache.getImage(imageUrl, targetSize);
+        if (cached.isPresent()) {
+            return cached.get();
+        }
+        Optional<ByteBuffer> stored = imageCache.getBytes(imageUrl);
+        BufferedImage image;
+        if (stored.isPresent()) {
+            image = ImageDerivatives.decode(PosterImageCache.asStream(stored.get()), targetSize);
+        } else {
+            byte[] downloaded = download(imageUrl);
+            imageCache.putBytes(imageUrl, downloaded);
+            image = ImageDerivatives.decode(new ByteArrayInputStream(downloaded), targetSize);
         }
-        // Handle standard URLs
-        URL url = new URL(imageUrl);
-        try (InputStream is = url.openStream()) {
-            return ImageIO.read(is);
+        if (image != null) {
+            imageCache.putImage(imageUrl, targetSize, image);
+        }
+        return image;
+    }
+
+    private byte[] download(String imageUrl) throws IOException {
+        URLConnection connection = new URL(imageUrl).openConnection();
+        connection.setConnectTimeout(IMAGE_TIMEOUT_MILLIS);
+        connection.setReadTimeout(IMAGE_TIMEOUT_MILLIS);
+        try (InputStream is = connection.getInputStream()) {
+            return is.readAllBytes();
         }
     }
 
-    String encodeImageToBase64(BufferedImage image) throws IOException {
+    byte[] encodePng(BufferedImage image) throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         logger.info("Attempting to write image to byte array stream...");
         boolean success = ImageIO.write(image, "png", baos);
@@ -185,6 +669,6 @@ public class ExportGarden implements HttpFunction {
         if (imageBytes.length == 0) {
             throw new IOException("Encoded image resulted in an empty byte array.");
         }
-        return Base64.getEncoder().encodeToString(imageBytes);
+        return imageBytes;
     }
 }
@@ -0,0 +1,47 @@
+package com.cziczere.functions;
+
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.StatusCode;
+import com.google.cloud.firestore.FirestoreException;
+import io.grpc.Status;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Classifies errors surfaced by the Firestore client, which reports gRPC status codes either as
+ * a {@link FirestoreException} or as a gax {@link ApiException} depending on the call path.
+ */
+final class FirestoreErrors {
+
+    // Codes worth retrying: the write did not happen or is safe to repeat.
+    private static final Set<Status.Code> TRANSIENT_CODES = EnumSet.of(
+        Status.Code.UNAVAILABLE,
+        Status.Code.DEADLINE_EXCEEDED,
+        Status.Code.ABORTED,
+        Status.Code.RESOURCE_EXHAUSTED,
+        Status.Code.INTERNAL);
+
+    private FirestoreErrors() {
+    }
+
+    static boolean hasCode(Throwable error, Status.Code code) {
+        return code.equals(codeOf(error));
+    }
+
+    static boolean isTransient(Throwable error) {
+        Status.Code code = codeOf(error);
+        return code != null && TRANSIENT_CODES.contains(code);
+    }
+
+    private static Status.Code codeOf(Throwable error) {
+        if (error instanceof FirestoreException firestoreError && firestoreError.getStatus() != null) {
+            return firestoreError.getStatus().getCode();
+        }
+        if (error instanceof ApiException apiError) {
+            StatusCode statusCode = apiError.getStatusCode();
+            return statusCode == null ? null : Status.Code.valueOf(statusCode.getCode().name());
+        }
+        return null;
+    }
+}
@@ -1,7 +1,10 @@
 package com.cziczere.functions;
 
+import com.google.cloud.firestore.DocumentReference;
 import com.google.cloud.firestore.Firestore;
 import com.google.cloud.firestore.FirestoreOptions;
+import com.google.cloud.firestore.SetOptions;
+import com.google.cloud.firestore.Transaction;
 import com.google.cloud.functions.HttpFunction;
 import com.google.cloud.functions.HttpRequest;
 import com.google.cloud.functions.HttpResponse;
@@ -20,28 +23,32 @@ import com.google.gson.JsonSyntaxException;
 import com.google.cloud.aiplatform.v1.EndpointName;
 import com.google.cloud.aiplatform.v1.PredictResponse;
 import com.google.cloud.aiplatform.v1.PredictionServiceClient;
-import com.google.cloud.aiplatform.v1.PredictionServiceSettings;
 import com.google.cloud.storage.BlobId;
 import com.google.cloud.storage.BlobInfo;
 import com.google.cloud.storage.Storage;
 import com.google.cloud.storage.StorageOptions;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.Value;
 import com.google.protobuf.util.JsonFormat;
 
+import java.awt.image.BufferedImage;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class GenerateMemoryPlant implements HttpFunction {
 
@@ -55,12 +62,35 @@ public class GenerateMemoryPlant implements HttpFunction {
     private final VertexAI vertexAI;
     private final Storage storage;
     private final FirebaseAuth firebaseAuth;
+    private final PredictionClientProvider predictionClientProvider;
+    private final ImagePromptCache imagePromptCache;
+    private final IdempotencyStore idempotencyStore;
+    private final EmotionAggregates emotionAggregates;
 
     private static final String GCS_BUCKET_NAME = System.getenv().getOrDefault("GCS_BUCKET_NAME", "your-gcs-bucket-name");
+    private static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+    private static final int BLOOM_WORKERS = Integer.parseInt(System.getenv().getOrDefault("BLOOM_WORKERS", "4"));
+
+    // Background pipeline for "plant now, bloom later" requests. Shared by all requests on this instance.
+    private static final ExecutorService bloomExecutor = Executors.newFixedThreadPool(BLOOM_WORKERS, runnable -> {
+        Thread thread = new Thread(runnable, "memory-bloom");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final String IMAGEN_MODEL = "imagegeneration@006";
+    private static final String IMAGEN_PARAMETERS = "{\"sampleCount\": 1}";
+    private static final EndpointName IMAGEN_ENDPOINT = EndpointName.of(PROJECT_ID, REGION, IMAGEN_MODEL);
 
     // A record to hold the structured response from Gemini.
     record GeminiResponse(String imagePrompt, Map<String, Double> emotions) {}
 
+    // Public URLs of a generated image and its smaller renditions. Derivative URLs are null if they could not be made.
+    record PlantImage(String imageUrl, String thumbnailUrl, String mediumUrl) {}
+
+    // Response for async plantings: the id lets the client watch the document until it blooms.
+    record PlantedMemoryResponse(String memoryId, MemoryData memory) {}
+
     // Static initializer for Firebase Admin SDK
     static {
         try {
@@ -85,14 +115,29 @@ public class GenerateMemoryPlant implements HttpFunction {
         this.vertexAI = new VertexAI(PROJECT_ID, REGION);
         this.storage = StorageOptions.newBuilder().setProjectId(PROJECT_ID).build().getService();
         this.firebaseAuth = FirebaseAuth.getInstance();
+        this.predictionClientProvider = PredictionClientProvider.shared();
+        this.imagePromptCache = new ImagePromptCache(storage, GCS_BUCKET_NAME, IMAGEN_MODEL, IMAGEN_PARAMETERS);
+        this.idempotencyStore = new IdempotencyStore(db);
+        this.emotionAggregates = new EmotionAggregates(db);
     }
 
     // This constructor is used for testing, allowing injection of mocks.
     GenerateMemoryPlant(Firestore db, VertexAI vertexAI, Storage storage, FirebaseAuth firebaseAuth) {
+        this(db, vertexAI, storage, firebaseAuth, PredictionClientProvider.shared(), new IdempotencyStore(db),
+            new EmotionAggregates(db));
+    }
+
+    GenerateMemoryPlant(Firestore db, VertexAI vertexAI, Storage storage, FirebaseAuth firebaseAuth,
+                        PredictionClientProvider predictionClientProvider, IdempotencyStore idempotencyStore,
+                        EmotionAggregates emotionAggregates) {
         this.db = db;
         this.vertexAI = vertexAI;
         this.storage = storage;
         this.firebaseAuth = firebaseAuth;
+        this.predictionClientProvider = predictionClientProvider;
+        this.imagePromptCache = new ImagePromptCache(storage, GCS_BUCKET_NAME, IMAGEN_MODEL, IMAGEN_PARAMETERS);
+        this.idempotencyStore = idempotencyStore;
+        this.emotionAggregates = emotionAggregates;
     }
 
     // Custom exception for auth errors
@@ -118,29 +163,60 @@ public class GenerateMemoryPlant implements HttpFunction {
                     writer.write("{\"error\":\"'text' field is required and cannot be empty.\"}");
                     return;
                 }
-                String userText = requestData.text();
 
-                GeminiResponse geminiResponse = generateAnalysisWithGemini(userText);
-                String imageUrl = generateImageWithImagen(geminiResponse.imagePrompt());
+                String idempotencyKey = request.getFirstHeader(IDEMPOTENCY_KEY_HEADER)
+                    .map(String::trim)
+                    .filter(key -> !key.isEmpty())
+                    .orElse(null);
+                if (idempotencyKey != null) {
+                    Optional<IdempotencyStore.StoredResponse> replay =
+                        idempotencyStore.begin(userId, idempotencyKey, requestFingerprint(request, requestData));
+                    if (replay.isPresent()) {
+                        logger.info("Replaying stored response for idempotency key.");
+                        response.appendHeader("Idempotent-Replayed", "true");
+                        response.setStatusCode(replay.get().statusCode(), replay.get().statusMessage());
+                        writer.write(replay.get().body());
+                        return;
+                    }
+                }
 
-                MemoryData newMemory = new MemoryData(
-                    userId,
-                    userText,
-                    geminiResponse.imagePrompt(),
-                    imageUrl,
-                    System.currentTimeMillis(),
-                    "memory",
-                    geminiResponse.emotions()
-                );
-                saveToFirestore(newMemory);
+                IdempotencyStore.StoredResponse result;
+                try {
+                    result = plant(request, userId, requestData);
+                } catch (Exception e) {
+                    if (idempotencyKey != null) {
+                        idempotencyStore.abandon(userId, idempotencyKey);
+                    }
+                    throw e;
+                }
+                if (idempotencyKey != null) {
+                    try {
+                        idempotencyStore.complete(userId, idempotencyKey, result);
+                    } catch (Exception e) {
+                        if (e instanceof InterruptedException) {
+                            Thread.currentThread().interrupt();
+                        }
+                        // The memory is stored, so the key must not be freed for a second one. The marker stays
+                        // in progress: retries are turned away until it goes stale and one of them takes over.
+                        logger.log(Level.WARNING, "Could not store the response for an idempotency key.", e);
+                    }
+                }
 
-                response.setStatusCode(200, "OK");
-                writer.write(gson.toJson(newMemory));
+                response.setStatusCode(result.statusCode(), result.statusMessage());
+                writer.write(result.body());
 
             } catch (AuthException e) {
                 logger.warning("Authentication failed: " + e.getMessage());
                 response.setStatusCode(401, "Unauthorized");
                 writer.write("{\"error\":\"" + e.getMessage() + "\"}");
+            } catch (IdempotencyStore.KeyReuseException e) {
+                logger.warning(e.getMessage());
+                response.setStatusCode(422, "Unprocessable Entity");
+                writer.write("{\"error\":\"" + e.getMessage() + "\"}");
+            } catch (IdempotencyStore.InProgressException e) {
+                logger.warning(e.getMessage());
+                response.setStatusCode(409, "Conflict");
+                writer.write("{\"error\":\"" + e.getMessage() + "\"}");
             } catch (JsonParseException e) {
                 logger.severe("Error parsing JSON request: " + e.getMessage());
                 response.setStatusCode(400, "Bad Request: Invalid JSON format.");
@@ -153,6 +229,43 @@ public class GenerateMemoryPlant implements HttpFunction {
         }
     }
 
+    /**
+     * Plants the memory synchronously, or in async mode persists it and schedules the bloom.
+     * Returns the response to send, so it can also be stored for idempotent replays.
+     */
+    IdempotencyStore.StoredResponse plant(HttpRequest request, String userId, RequestData requestData) throws Exception {
+        String userText = requestData.text();
+
+        if (isAsyncRequest(request)) {
+            PlantedMemoryResponse planted = plantAsync(userId, userText, requestData.useImageCache());
+            return new IdempotencyStore.StoredResponse(202, "Accepted", gson.toJson(planted));
+        }
+
+        GeminiResponse geminiResponse = generateAnalysisWithGemini(userText);
+        PlantImage image = generateImageWithImagen(geminiResponse.imagePrompt(), requestData.useImageCache());
+
+        MemoryData newMemory = new MemoryData(
+            userId,
+            userText,
+            geminiResponse.imagePrompt(),
+            image.imageUrl(),
+            System.currentTimeMillis(),
+            "memory",
+            geminiResponse.emotions(),
+            MemoryData.IMAGE_STATUS_READY,
+            image.thumbnailUrl(),
+            image.mediumUrl()
+        );
+        saveToFirestore(newMemory);
+
+        return new IdempotencyStore.StoredResponse(200, "OK", gson.toJson(newMemory));
+    }
+
+    // Ties an idempotency key to the request it was first used with.
+    private String requestFingerprint(HttpRequest request, RequestData requestData) {
+        return (isAsyncRequest(request) ? "async" : "sync") + "\n" + gson.toJson(requestData);
+    }
+
     String getUserIdFromAuthToken(HttpRequest request) throws AuthException {
         Optional<String> authHeader = request.getFirstHeader("Authorization");
         if (authHeader.isEmpty() || !authHeader.get().startsWith("Bearer ")) {
@@ -174,6 +287,7 @@ public class GenerateMemoryPlant implements HttpFunction {
             "1. Generate an English, artistic prompt for an image generation AI. The prompt should be descriptive, emotional, and visual. " +
             "Style: 'digital painting, surreal, magical realism, glowing elements'. " +
             "2. Analyze the text for nuanced emotions. Identify up to 5 key emotions and provide a score from 0.0 to 1.0. " +
+            "Name emotions with these words where one fits: " + String.join(", ", EmotionVocabulary.VOCABULARY) + ". " +
             "Your output MUST be a valid JSON object with two keys: 'imagePrompt' (string) and 'emotions' (a map of emotion names to scores). " +
             "For example: {\"imagePrompt\": \"...\", \"emotions\": {\"nostalgia\": 0.8, \"joy\": 0.6}}. " +
             "Do not output anything else, just the raw JSON.";
@@ -185,18 +299,12 @@ public class GenerateMemoryPlant implements HttpFunction {
             GenerateContentResponse response = model.generateContent(fullPrompt);
             String responseText = response.getCandidates(0).getContent().getParts(0).getText();
 
-            // Use regex to find the JSON block, making it more robust
-            Pattern pattern = Pattern.compile("(?s)\\{.*\\}");
-            Matcher matcher = pattern.matcher(responseText);
-
-            if (matcher.find()) {
-                String jsonResponse = matcher.group(0);
-                logger.info("Extracted JSON response from Gemini: " + jsonResponse);
-                GeminiResponse geminiResponse = gson.fromJson(jsonResponse, GeminiResponse.class);
-
-                if (geminiResponse != null && geminiResponse.imagePrompt() != null) {
-                    return geminiResponse;
-                }
+            Optional<GeminiResponse> geminiResponse = StructuredOutputParser.parse(responseText, GeminiResponse.class);
+            if (geminiResponse.isPresent() && geminiResponse.get().imagePrompt() != null) {
+                logger.info("Parsed JSON response from Gemini: " + geminiResponse.get());
+                // Store synonyms and stray capitalization under the canonical names readers aggregate by.
+                return new GeminiResponse(geminiResponse.get().imagePrompt(),
+                    EmotionVocabulary.canonicalize(geminiResponse.get().emotions()));
             }
 
             logger.warning("Failed to find or parse a valid JSON object from Gemini response. Using fallback.");
@@ -210,43 +318,211 @@ public class GenerateMemoryPlant implements HttpFunction {
         }
     }
 
-    String generateImageWithImagen(String imagePrompt) throws IOException {
-        String endpoint = String.format("%s-aiplatform.googleapis.com:443", REGION);
-        PredictionServiceSettings predictionServiceSettings =
-            PredictionServiceSettings.newBuilder().setEndpoint(endpoint).build();
+    /**
+     * Generates an image for the prompt and stores it, with its thumbnail and medium renditions,
+     * in Cloud Storage. With {@code useImageCache}, an image previously generated for the same
+     * normalized prompt is reused.
+     */
+    PlantImage generateImageWithImagen(String imagePrompt, boolean useImageCache) throws IOException {
+        String blobName;
+        if (useImageCache) {
+            blobName = imagePromptCache.blobNameFor(imagePrompt);
+            Optional<String> cachedUrl = imagePromptCache.lookup(blobName);
+            if (cachedUrl.isPresent()) {
+                logger.info("Reusing cached image " + blobName + " for prompt.");
+                return cachedImage(blobName, cachedUrl.get());
+            }
+        } else {
+            blobName = UUID.randomUUID().toString() + ".png";
+        }
+
+        // The client is shared across requests; it must not be closed here.
+        PredictionServiceClient predictionServiceClient = predictionClientProvider.get();
+
+        com.google.protobuf.Value.Builder instanceBuilder = com.google.protobuf.Value.newBuilder();
+        JsonFormat.parser().merge("{\"prompt\": \"" + imagePrompt + "\"}", instanceBuilder);
+        List<com.google.protobuf.Value> instances = new ArrayList<>();
+        instances.add(instanceBuilder.build());
+
+        com.google.protobuf.Value.Builder parametersBuilder = com.google.protobuf.Value.newBuilder();
+        JsonFormat.parser().merge(IMAGEN_PARAMETERS, parametersBuilder);
+
+        PredictResponse predictResponse =
+            predictionServiceClient.predict(IMAGEN_ENDPOINT, instances, parametersBuilder.build());
+
+        // Read the raw UTF-8 bytes of the field so the payload is never copied into a String.
+        ByteString base64Image = predictResponse.getPredictions(0).getStructValue().getFieldsMap().get("bytesBase64Encoded").getStringValueBytes();
+
+        // Renditions go first, so an original seen in the cache usually has them; cachedImage repairs it when not.
+        String thumbnailUrl = null;
+        String mediumUrl = null;
+        try (InputStream decoded = Base64.getDecoder().wrap(base64Image.newInput())) {
+            // Read straight from the payload and subsampled, so the full-size raster is never held.
+            BufferedImage original = ImageDerivatives.decodeForRenditions(decoded);
+            if (original != null) {
+                thumbnailUrl = imagePromptCache.publicUrl(ImageDerivatives.upload(
+                    storage, GCS_BUCKET_NAME, blobName, original, ImageDerivatives.Size.THUMBNAIL));
+                mediumUrl = imagePromptCache.publicUrl(ImageDerivatives.upload(
+                    storage, GCS_BUCKET_NAME, blobName, original, ImageDerivatives.Size.MEDIUM));
+            } else {
+                logger.warning("Generated image " + blobName + " could not be decoded; skipping renditions.");
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not create renditions for " + blobName, e);
+        }
 
-        try (PredictionServiceClient predictionServiceClient =
-            PredictionServiceClient.create(predictionServiceSettings)) {
-            final EndpointName endpointName =
-                EndpointName.of(PROJECT_ID, REGION, "imagegeneration@006");
+        BlobId blobId = BlobId.of(GCS_BUCKET_NAME, blobName);
+        BlobInfo blobInfo = BlobInfo.newBuilder(blobId).setContentType("image/png").build();
+        long imageSize = ImageBlobWriter.writeBase64(storage, blobInfo, base64Image);
+        logger.info("Uploaded generated image " + blobName + " (" + imageSize + " bytes).");
 
-            com.google.protobuf.Value.Builder instanceBuilder = com.google.protobuf.Value.newBuilder();
-            JsonFormat.parser().merge("{\"prompt\": \"" + imagePrompt + "\"}", instanceBuilder);
-            List<com.google.protobuf.Value> instances = new ArrayList<>();
-            instances.add(instanceBuilder.build());
+        return new PlantImage(imagePromptCache.publicUrl(blobName), thumbnailUrl, mediumUrl);
+    }
 
-            com.google.protobuf.Value.Builder parametersBuilder = com.google.protobuf.Value.newBuilder();
-            JsonFormat.parser().merge("{\"sampleCount\": 1}", parametersBuilder);
+    /**
+     * A cached original with its renditions. A cached original does not always have them: entries
+     * cached before renditions existed have none, and a rendition that failed to encode or upload
+     * does not keep the original out of the cache. Missing renditions are regenerated from the
+     * original; one that still cannot be made is left out, and clients fall back to the original.
+     */
+    PlantImage cachedImage(String blobName, String imageUrl) {
+        Map<ImageDerivatives.Size, String> urls = new HashMap<>();
+        List<ImageDerivatives.Size> missing = new ArrayList<>();
+        for (ImageDerivatives.Size size : ImageDerivatives.Size.values()) {
+            String renditionName = ImageDerivatives.blobName(blobName, size);
+            if (storage.get(BlobId.of(GCS_BUCKET_NAME, renditionName)) != null) {
+                urls.put(size, imagePromptCache.publicUrl(renditionName));
+            } else {
+                missing.add(size);
+            }
+        }
+        if (!missing.isEmpty()) {
+            try {
+                BufferedImage original = ImageDerivatives.decodeForRenditions(
+                    new ByteArrayInputStream(storage.readAllBytes(BlobId.of(GCS_BUCKET_NAME, blobName))));
+                if (original == null) {
+                    logger.warning("Cached image " + blobName + " could not be decoded; serving it without renditions.");
+                } else {
+                    for (ImageDerivatives.Size size : missing) {
+                        urls.put(size, imagePromptCache.publicUrl(
+                            ImageDerivatives.upload(storage, GCS_BUCKET_NAME, blobName, original, size)));
+                    }
+                    logger.info("Regenerated " + missing.size() + " missing renditions of cached image " + blobName + ".");
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.WARNING, "Could not regenerate renditions of cached image " + blobName, e);
+            }
+        }
+        return new PlantImage(imageUrl, urls.get(ImageDerivatives.Size.THUMBNAIL), urls.get(ImageDerivatives.Size.MEDIUM));
+    }
 
-            PredictResponse predictResponse =
-                predictionServiceClient.predict(endpointName, instances, parametersBuilder.build());
+    boolean isAsyncRequest(HttpRequest request) {
+        return "async".equalsIgnoreCase(request.getFirstQueryParameter("mode").orElse(""));
+    }
 
-            String base64Image = predictResponse.getPredictions(0).getStructValue().getFieldsMap().get("bytesBase64Encoded").getStringValue();
-            byte[] imageBytes = Base64.getDecoder().decode(base64Image);
+    /**
+     * Persists the memory with a pending image and hands the expensive Gemini, Imagen and
+     * Cloud Storage stages to the background bloom pipeline. Only one Firestore commit happens
+     * on the request thread.
+     */
+    PlantedMemoryResponse plantAsync(String userId, String userText, boolean useImageCache) throws ExecutionException, InterruptedException {
+        DocumentReference memoryRef = db.collection("memories").document();
+        MemoryData pendingMemory = new MemoryData(
+            userId,
+            userText,
+            null,
+            null,
+            System.currentTimeMillis(),
+            "memory",
+            Collections.emptyMap(),
+            MemoryData.IMAGE_STATUS_PENDING,
+            null,
+            null
+        );
+        // A pending memory has no emotions yet, so it only joins the aggregates when it blooms.
+        db.runTransaction(transaction -> {
+            transaction.create(memoryRef, pendingMemory);
+            markMemoriesChanged(transaction, List.of(pendingMemory));
+            return null;
+        }).get();
+        logger.info("Planted pending memory " + memoryRef.getId() + "; scheduling bloom.");
+
+        scheduleBloom(memoryRef, pendingMemory, useImageCache);
+        return new PlantedMemoryResponse(memoryRef.getId(), pendingMemory);
+    }
 
-            String blobName = UUID.randomUUID().toString() + ".png";
-            BlobId blobId = BlobId.of(GCS_BUCKET_NAME, blobName);
-            BlobInfo blobInfo = BlobInfo.newBuilder(blobId).setContentType("image/png").build();
-            storage.create(blobInfo, imageBytes);
+    void scheduleBloom(DocumentReference memoryRef, MemoryData pendingMemory, boolean useImageCache) {
+        bloomExecutor.execute(() -> completeBloom(memoryRef, pendingMemory, useImageCache));
+    }
 
-            return String.format("https://storage.googleapis.com/%s/%s", GCS_BUCKET_NAME, blobName);
+    void completeBloom(DocumentReference memoryRef, MemoryData pendingMemory, boolean useImageCache) {
+        try {
+            GeminiResponse geminiResponse = generateAnalysisWithGemini(pendingMemory.userText());
+            PlantImage image = generateImageWithImagen(geminiResponse.imagePrompt(), useImageCache);
+
+            Map<String, Object> updates = new HashMap<>();
+            updates.put("imagePrompt", geminiResponse.imagePrompt());
+            updates.put("imageUrl", image.imageUrl());
+            updates.put("thumbnailUrl", image.thumbnailUrl());
+            updates.put("mediumUrl", image.mediumUrl());
+            updates.put("emotions", geminiResponse.emotions());
+            updates.put("imageStatus", MemoryData.IMAGE_STATUS_READY);
+            // Emotions are only known now, so the memory joins its day's aggregates at bloom time.
+            List<MemoryData> bloomed = List.of(new MemoryData(pendingMemory.userId(), pendingMemory.userText(),
+                geminiResponse.imagePrompt(), image.imageUrl(), pendingMemory.timestamp(), pendingMemory.type(),
+                geminiResponse.emotions()));
+            db.runTransaction(transaction -> {
+                emotionAggregates.record(transaction, bloomed);
+                transaction.update(memoryRef, updates);
+                markMemoriesChanged(transaction, bloomed);
+                return null;
+            }).get();
+            logger.info("Memory " + memoryRef.getId() + " bloomed.");
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Bloom failed for memory " + memoryRef.getId(), e);
+            try {
+                memoryRef.update("imageStatus", MemoryData.IMAGE_STATUS_FAILED).get();
+            } catch (Exception updateError) {
+                logger.log(Level.SEVERE, "Could not mark memory " + memoryRef.getId() + " as failed.", updateError);
+            }
         }
     }
 
     void saveToFirestore(MemoryData data) throws ExecutionException, InterruptedException {
         logger.info("Saving memory data to Firestore collection 'memories': " + data);
-        db.collection("memories").document().set(data).get();
-        logger.info("Successfully saved data to Firestore.");
+        storeMemories(List.of(data));
+    }
+
+    /**
+     * Creates the memories, folds them into their daily emotion aggregates and marks their owners'
+     * derived data as stale in one transaction, and waits for it before the caller responds: the
+     * response (and any idempotent replay of it) tells the user the memories exist, and the
+     * aggregates and the caches are trusted to reflect every one of them.
+     */
+    void storeMemories(List<MemoryData> memories) throws ExecutionException, InterruptedException {
+        List<DocumentReference> refs = new ArrayList<>(memories.size());
+        for (int i = 0; i < memories.size(); i++) {
+            refs.add(db.collection("memories").document());
+        }
+        db.runTransaction(transaction -> {
+            emotionAggregates.record(transaction, memories);
+            for (int i = 0; i < memories.size(); i++) {
+                transaction.create(refs.get(i), memories.get(i));
+            }
+            markMemoriesChanged(transaction, memories);
+            return null;
+        }).get();
+    }
+
+    /**
+     * Bumps the owners' {@code memoriesChangedAt}, the version cached insights and atmospheres are
+     * checked against. It is written with the memories it announces, never separately: a lost
+     * marker would leave stale derived data served until it expires.
+     */
+    private void markMemoriesChanged(Transaction transaction, List<MemoryData> memories) {
+        Map<String, Object> marker = Map.of(InsightCache.MEMORIES_CHANGED_AT, System.currentTimeMillis());
+        memories.stream().map(MemoryData::userId).distinct()
+            .forEach(userId -> transaction.set(db.collection("users").document(userId), marker, SetOptions.merge()));
     }
 
     /**
@@ -0,0 +1,269 @@
+package com.cziczere.functions;
+
+import com.google.cloud.functions.HttpFunction;
+import com.google.cloud.functions.HttpRequest;
+import com.google.cloud.functions.HttpResponse;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Batch variant of {@link GenerateMemoryPlant} for journal imports.
+ * Entries are planted with bounded parallelism, persisted a few at a time in Firestore transactions,
+ * and progress is streamed back as newline-delimited JSON, one line per entry.
+ *
+ * <p>Entries are dispatched a few at a time rather than all up front, so that the batch can stop
+ * paying for model calls when nobody is waiting for it: once the client has disconnected or the
+ * batch deadline has passed, no new entry is started. Entries already started are still saved,
+ * and the rest are reported as "skipped" for the client to send again.
+ */
+public class GenerateMemoryPlantBatch implements HttpFunction {
+
+    private static final Logger logger = Logger.getLogger(GenerateMemoryPlantBatch.class.getName());
+    private static final Gson gson = new Gson();
+
+    private static final int MAX_BATCH_SIZE = 500;
+    private static final int CONCURRENCY = Integer.parseInt(System.getenv().getOrDefault("PLANT_BATCH_CONCURRENCY", "8"));
+    private static final int WRITE_BATCH_SIZE = Integer.parseInt(System.getenv().getOrDefault("PLANT_BATCH_WRITE_SIZE", "10"));
+    // Kept below the function timeout, so entries started just before it have time to finish and be saved.
+    // The 420s default assumes the function is deployed with --timeout=540s (the 60s default would cut
+    // every large import short); with a shorter timeout, lower this to leave about two minutes of headroom.
+    private static final long DEADLINE_SECONDS = Long.parseLong(System.getenv().getOrDefault("PLANT_BATCH_DEADLINE_SECONDS", "420"));
+
+    // Shared by all requests on the instance, so model quota pressure stays bounded no matter how many imports run.
+    private static final ExecutorService plantExecutor = Executors.newFixedThreadPool(CONCURRENCY, runnable -> {
+        Thread thread = new Thread(runnable, "memory-plant-batch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final GenerateMemoryPlant planter;
+
+    record BatchPlantRequest(List<RequestData> entries) {}
+    record BatchItemResult(int index, String status, MemoryData memory, String error) {}
+    record BatchSummary(boolean done, int planted, int failed, int skipped) {}
+
+    // Outcome of one generation task, before it is persisted.
+    private record PlantOutcome(int index, MemoryData memory, String error) {}
+
+    public GenerateMemoryPlantBatch() throws IOException {
+        this(new GenerateMemoryPlant());
+    }
+
+    // Constructor for testing
+    GenerateMemoryPlantBatch(GenerateMemoryPlant planter) {
+        this.planter = planter;
+    }
+
+    @Override
+    public void service(HttpRequest request, HttpResponse response) throws Exception {
+        try (BufferedWriter writer = response.getWriter()) {
+            try {
+                String userId = planter.getUserIdFromAuthToken(request);
+
+                BatchPlantRequest batchRequest = gson.fromJson(request.getReader(), BatchPlantRequest.class);
+                if (batchRequest == null || batchRequest.entries() == null || batchRequest.entries().isEmpty()) {
+                    response.appendHeader("Content-Type", "application/json");
+                    response.setStatusCode(400, "Bad Request: 'entries' field is required and cannot be empty.");
+                    writer.write("{\"error\":\"'entries' field is required and cannot be empty.\"}");
+                    return;
+                }
+                if (batchRequest.entries().size() > MAX_BATCH_SIZE) {
+                    response.appendHeader("Content-Type", "application/json");
+                    response.setStatusCode(400, "Bad Request: too many entries.");
+                    writer.write("{\"error\":\"A batch may contain at most " + MAX_BATCH_SIZE + " entries.\"}");
+                    return;
+                }
+
+                response.appendHeader("Content-Type", "application/x-ndjson");
+                response.setStatusCode(200, "OK");
+                plantAll(userId, batchRequest.entries(), writer, System.nanoTime() + TimeUnit.SECONDS.toNanos(DEADLINE_SECONDS));
+
+            } catch (GenerateMemoryPlant.AuthException e) {
+                logger.warning("Authentication failed: " + e.getMessage());
+                response.appendHeader("Content-Type", "application/json");
+                response.setStatusCode(401, "Unauthorized");
+                writer.write("{\"error\":\"" + e.getMessage() + "\"}");
+            } catch (JsonParseException e) {
+                logger.severe("Error parsing JSON request: " + e.getMessage());
+                response.appendHeader("Content-Type", "application/json");
+                response.setStatusCode(400, "Bad Request: Invalid JSON format.");
+                writer.write("{\"error\":\"Invalid JSON format.\"}");
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "Internal Server Error", e);
+                response.appendHeader("Content-Type", "application/json");
+                response.setStatusCode(500, "Internal Server Error.");
+                writer.write("{\"error\":\"An unexpected error occurred.\"}");
+            }
+        }
+    }
+
+    /**
+     * Plants the entries, at most {@link #CONCURRENCY} at a time, and streams one line per entry
+     * and a summary. New entries are only started while the client is connected and
+     * {@code deadlineNanos} (a {@link System#nanoTime()} value) has not passed.
+     */
+    void plantAll(String userId, List<RequestData> entries, BufferedWriter writer, long deadlineNanos)
+            throws InterruptedException {
+        ProgressWriter progress = new ProgressWriter(writer);
+        CompletionService<PlantOutcome> completionService = new ExecutorCompletionService<>(plantExecutor);
+        int next = 0;
+        int inFlight = 0;
+        int failed = 0;
+        int planted = 0;
+        List<PlantOutcome> pending = new ArrayList<>();
+        // Entry index of each started task, so a task that dies unexpectedly can still be reported.
+        Map<Future<PlantOutcome>, Integer> started = new HashMap<>();
+        while (true) {
+            while (inFlight < CONCURRENCY && next < entries.size()
+                    && progress.connected() && System.nanoTime() < deadlineNanos) {
+                RequestData entry = entries.get(next);
+                int index = next++;
+                if (entry == null || entry.text() == null || entry.text().isBlank()) {
+                    failed++;
+                    progress.write(new BatchItemResult(index, "failed", null, "'text' field is required and cannot be empty."));
+                    continue;
+                }
+                started.put(completionService.submit(() -> plantOne(userId, index, entry.text(), entry.useImageCache())), index);
+                inFlight++;
+            }
+            if (inFlight == 0) {
+                break;
+            }
+
+            // Outcomes of started entries are saved even if the client is gone: their model calls are already paid for.
+            PlantOutcome outcome = take(completionService, started);
+            inFlight--;
+            if (outcome.memory() == null) {
+                failed++;
+                progress.write(new BatchItemResult(outcome.index(), "failed", null, outcome.error()));
+                continue;
+            }
+            pending.add(outcome);
+            if (pending.size() >= WRITE_BATCH_SIZE) {
+                int committed = commit(pending, progress);
+                planted += committed;
+                failed += pending.size() - committed;
+                pending.clear();
+            }
+        }
+        if (!pending.isEmpty()) {
+            int committed = commit(pending, progress);
+            planted += committed;
+            failed += pending.size() - committed;
+        }
+
+        int skipped = entries.size() - next;
+        if (skipped > 0) {
+            logger.warning("Batch stopped " + (progress.connected() ? "at its deadline" : "after the client disconnected")
+                + "; " + skipped + " of " + entries.size() + " entries were not started.");
+            for (int index = next; index < entries.size(); index++) {
+                progress.write(new BatchItemResult(index, "skipped", null, "The batch stopped before this entry was started; send it again."));
+            }
+        }
+        progress.write(new BatchSummary(skipped == 0, planted, failed, skipped));
+    }
+
+    private PlantOutcome plantOne(String userId, int index, String userText, boolean useImageCache) {
+        try {
+            GenerateMemoryPlant.GeminiResponse geminiResponse = planter.generateAnalysisWithGemini(userText);
+            GenerateMemoryPlant.PlantImage image = planter.generateImageWithImagen(geminiResponse.imagePrompt(), useImageCache);
+            MemoryData memory = new MemoryData(
+                userId,
+                userText,
+                geminiResponse.imagePrompt(),
+                image.imageUrl(),
+                System.currentTimeMillis(),
+                "memory",
+                geminiResponse.emotions(),
+                MemoryData.IMAGE_STATUS_READY,
+                image.thumbnailUrl(),
+                image.mediumUrl()
+            );
+            return new PlantOutcome(index, memory, null);
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to plant batch entry " + index, e);
+            return new PlantOutcome(index, null, "Could not generate this memory.");
+        }
+    }
+
+    private PlantOutcome take(CompletionService<PlantOutcome> completionService, Map<Future<PlantOutcome>, Integer> started)
+            throws InterruptedException {
+        Future<PlantOutcome> future = completionService.take();
+        int index = started.remove(future);
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            // plantOne catches every Exception, so only an Error gets here; the rest of the batch still runs.
+            logger.log(Level.SEVERE, "Batch planting task for entry " + index + " failed unexpectedly", e.getCause());
+            return new PlantOutcome(index, null, "Could not generate this memory.");
+        }
+    }
+
+    /**
+     * Persists the given outcomes, with their emotion aggregates, in one Firestore transaction and
+     * reports each entry. Returns the number of memories that were committed.
+     */
+    private int commit(List<PlantOutcome> outcomes, ProgressWriter progress) throws InterruptedException {
+        List<MemoryData> memories = new ArrayList<>(outcomes.size());
+        for (PlantOutcome outcome : outcomes) {
+            memories.add(outcome.memory());
+        }
+        try {
+            planter.storeMemories(memories);
+        } catch (ExecutionException e) {
+            logger.log(Level.SEVERE, "Batched write of " + outcomes.size() + " memories failed.", e);
+            for (PlantOutcome outcome : outcomes) {
+                progress.write(new BatchItemResult(outcome.index(), "failed", null, "Could not save this memory."));
+            }
+            return 0;
+        }
+        for (PlantOutcome outcome : outcomes) {
+            progress.write(new BatchItemResult(outcome.index(), "planted", outcome.memory(), null));
+        }
+        return outcomes.size();
+    }
+
+    // Writes progress lines until the first write fails, which is how a disconnected client shows up.
+    private static final class ProgressWriter {
+        private final BufferedWriter writer;
+        private boolean connected = true;
+
+        ProgressWriter(BufferedWriter writer) {
+            this.writer = writer;
+        }
+
+        boolean connected() {
+            return connected;
+        }
+
+        void write(Object line) {
+            if (!connected) {
+                return;
+            }
+            try {
+                writer.write(gson.toJson(line));
+                writer.newLine();
+                writer.flush();
+            } catch (IOException e) {
+                logger.warning("Client disconnected from the batch: " + e.getMessage());
+                connected = false;
+            }
+        }
+    }
+}
@@ -1,10 +1,9 @@
 package com.cziczere.functions;
 
 import com.google.auth.oauth2.GoogleCredentials;
-import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentSnapshot;
 import com.google.cloud.firestore.Firestore;
 import com.google.cloud.firestore.FirestoreOptions;
-import com.google.cloud.firestore.Query;
 import com.google.cloud.functions.HttpFunction;
 import com.google.cloud.functions.HttpRequest;
 import com.google.cloud.functions.HttpResponse;
@@ -25,6 +24,7 @@ import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.List;
 import java.util.Optional;
+import java.util.OptionalDouble;
 import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -40,10 +40,24 @@ public class GetAtmosphere implements HttpFunction {
 
     Firestore db;
     VertexAI vertexAI;
+    EmotionAggregates emotionAggregates;
+    MemoryQueries memoryQueries;
+    AtmosphereCache atmosphereCache;
+
+    private static final int MOOD_WINDOW_DAYS = 7;
+    private static final boolean GEMINI_ENRICHMENT =
+        Boolean.parseBoolean(System.getenv().getOrDefault("ATMOSPHERE_GEMINI_ENRICHMENT", "true"));
+
+    // Shared by all requests on this instance.
+    private static final AtmosphereCache sharedCache = new AtmosphereCache();
 
     // Simple record for the response
     public record AtmosphereData(String weather, String backgroundColor, String soundUrl) {}
 
+    // A computed atmosphere and whether it may be cached. A fallback for a failed Gemini call is served
+    // but not stored, so the next request asks again instead of repeating the fallback for the whole TTL.
+    record Computed(AtmosphereData atmosphere, boolean cacheable) {}
+
     static {
         // Static initializer for Firebase Admin SDK
         try {
@@ -64,12 +78,26 @@ public class GetAtmosphere implements HttpFunction {
     public GetAtmosphere() throws IOException {
         this.db = FirestoreOptions.getDefaultInstance().getService();
         this.vertexAI = new VertexAI(PROJECT_ID, REGION);
+        this.emotionAggregates = new EmotionAggregates(db);
+        this.memoryQueries = new MemoryQueries(db);
+        this.atmosphereCache = sharedCache;
     }
 
     // Constructor for testing
     GetAtmosphere(Firestore db, VertexAI vertexAI) {
+        this(db, vertexAI, new EmotionAggregates(db));
+    }
+
+    GetAtmosphere(Firestore db, VertexAI vertexAI, EmotionAggregates emotionAggregates) {
+        this(db, vertexAI, emotionAggregates, new AtmosphereCache());
+    }
+
+    GetAtmosphere(Firestore db, VertexAI vertexAI, EmotionAggregates emotionAggregates, AtmosphereCache atmosphereCache) {
         this.db = db;
         this.vertexAI = vertexAI;
+        this.emotionAggregates = emotionAggregates;
+        this.memoryQueries = new MemoryQueries(db);
+        this.atmosphereCache = atmosphereCache;
     }
 
     // Custom exception for auth errors
@@ -87,27 +115,16 @@ public class GetAtmosphere implements HttpFunction {
             try {
                 String userId = getUserIdFromAuthToken(request);
 
-                // 1. Fetch recent memories
-                List<MemoryData> memories = getRecentMemoriesForUser(userId);
-                if (memories.isEmpty()) {
-                    // Return a default atmosphere if no recent memories
-                    AtmosphereData defaultAtmosphere = new AtmosphereData("Clear", "#87CEEB", "sounds/calm.mp3"); // Sky Blue
-                    writer.write(gson.toJson(defaultAtmosphere));
-                    response.setStatusCode(200);
+                AtmosphereCache.Entry entry = atmosphereEntryFor(userId);
+
+                response.appendHeader("ETag", entry.etag());
+                response.appendHeader("Cache-Control", "private, no-cache");
+                if (AtmosphereCache.matches(request.getFirstHeader("If-None-Match").orElse(null), entry.etag())) {
+                    response.setStatusCode(304, "Not Modified");
                     return;
                 }
-
-                // 2. Generate atmosphere from memories
-                AtmosphereData atmosphere = generateAtmosphereWithGemini(memories);
-
-                // 3. Select sound based on mood
-                String soundUrl = selectSoundForMood(memories);
-                AtmosphereData finalAtmosphere = new AtmosphereData(atmosphere.weather(), atmosphere.backgroundColor(), soundUrl);
-
-
-                // 4. Return atmosphere
                 response.setStatusCode(200, "OK");
-                writer.write(gson.toJson(finalAtmosphere));
+                writer.write(entry.body());
 
             } catch (AuthException e) {
                 logger.warning("Authentication failed: " + e.getMessage());
@@ -121,6 +138,59 @@ public class GetAtmosphere implements HttpFunction {
         }
     }
 
+    // Repeat loads are answered from the cache while no memory was planted since. The version is read
+    // before the aggregates: it commits with them, so an entry can only be newer than its version, never older.
+    private AtmosphereCache.Entry atmosphereEntryFor(String userId)
+            throws ExecutionException, InterruptedException, IOException {
+        Long memoriesVersion;
+        try {
+            memoriesVersion = memoriesVersionOf(userId);
+        } catch (ExecutionException | RuntimeException e) {
+            // Without the version a cached entry could not be told stale, so none is stored.
+            logger.log(Level.WARNING, "Could not read the memory version; not caching this atmosphere.", e);
+            return AtmosphereCache.uncached(gson.toJson(computeAtmosphere(userId).atmosphere()));
+        }
+        Optional<AtmosphereCache.Entry> cached = atmosphereCache.get(userId, memoriesVersion);
+        if (cached.isPresent()) {
+            return cached.get();
+        }
+        Computed computed = computeAtmosphere(userId);
+        String body = gson.toJson(computed.atmosphere());
+        return computed.cacheable()
+            ? atmosphereCache.put(userId, memoriesVersion, body)
+            : AtmosphereCache.uncached(body);
+    }
+
+    Computed computeAtmosphere(String userId) throws ExecutionException, InterruptedException, IOException {
+        // 1. Read the mood of the window, from the daily aggregates where possible
+        Optional<EmotionAggregates.Summary> fromAggregates = recentMoodFromAggregates(userId);
+        EmotionAggregates.Summary mood;
+        if (fromAggregates.isPresent()) {
+            mood = fromAggregates.get();
+        } else {
+            // Memories planted before the aggregates covered the window only show up in the documents themselves.
+            mood = recentMoodFromMemories(userId);
+        }
+        if (mood.memoryCount() == 0) {
+            // Return a default atmosphere if no recent memories
+            return new Computed(new AtmosphereData("Clear", "#87CEEB", "sounds/calm.mp3"), true); // Sky Blue
+        }
+
+        // 2. Derive the atmosphere from the mood
+        Computed computed = atmosphereFor(userId, mood);
+        AtmosphereData atmosphere = computed.atmosphere();
+
+        // 3. Select sound based on mood
+        String soundUrl = selectSoundForMood(mood);
+        return new Computed(new AtmosphereData(atmosphere.weather(), atmosphere.backgroundColor(), soundUrl), computed.cacheable());
+    }
+
+    // The version bumped by every memory write; null while the user has planted none.
+    Long memoriesVersionOf(String userId) throws ExecutionException, InterruptedException {
+        DocumentSnapshot user = db.collection("users").document(userId).get().get();
+        return user.exists() ? user.getLong(InsightCache.MEMORIES_CHANGED_AT) : null;
+    }
+
     String getUserIdFromAuthToken(HttpRequest request) throws AuthException {
         Optional<String> authHeader = request.getFirstHeader("Authorization");
         if (authHeader.isEmpty() || !authHeader.get().startsWith("Bearer ")) {
@@ -136,25 +206,30 @@ public class GetAtmosphere implements HttpFunction {
         }
     }
 
+    // The texts of the window's memories, for the Gemini prompt only.
     List<MemoryData> getRecentMemoriesForUser(String userId) throws ExecutionException, InterruptedException {
-        CollectionReference memoriesCollection = db.collection("memories");
-
-        // Calculate timestamp for 7 days ago
-        long sevenDaysAgo = Instant.now().minus(7, ChronoUnit.DAYS).toEpochMilli();
-
-        Query query = memoriesCollection
-                .whereEqualTo("userId", userId)
-                .whereGreaterThanOrEqualTo("timestamp", sevenDaysAgo);
+        return memoryQueries.list(userId, windowStart(), false, MemoryQueries.TEXT_FIELDS);
+    }
 
-        List<com.google.cloud.firestore.QueryDocumentSnapshot> documents = query.get().get().getDocuments();
+    // Folds the window's emotion scores as they stream in, without fetching the texts.
+    EmotionAggregates.Summary recentMoodFromMemories(String userId) throws ExecutionException, InterruptedException {
+        EmotionAggregates.MemoryTally tally = new EmotionAggregates.MemoryTally();
+        memoryQueries.forEach(userId, windowStart(), false, MemoryQueries.MOOD_FIELDS, tally);
+        return tally.summary();
+    }
 
-        return documents.stream()
-                .map(doc -> doc.toObject(MemoryData.class))
-                .collect(Collectors.toList());
+    private static long windowStart() {
+        // Calculate timestamp for 7 days ago
+        return Instant.now().minus(MOOD_WINDOW_DAYS, ChronoUnit.DAYS).toEpochMilli();
     }
 
 
-    AtmosphereData generateAtmosphereWithGemini(List<MemoryData> memories) throws IOException {
+    /**
+     * Asks Gemini for the atmosphere of the memories. If the call fails or its answer cannot be
+     * parsed, the local engine's reading of {@code engineMood} is returned instead, marked as not
+     * cacheable.
+     */
+    Computed generateAtmosphereWithGemini(List<MemoryData> memories, AtmosphereEngine.Mood engineMood) throws IOException {
         String combinedMemories = memories.stream()
                 .map(MemoryData::userText)
                 .collect(Collectors.joining("\n---\n"));
@@ -175,38 +250,54 @@ public class GetAtmosphere implements HttpFunction {
             GenerateContentResponse response = model.generateContent(fullPrompt);
             String rawResponse = response.getCandidates(0).getContent().getParts(0).getText();
 
-            // Clean up the response to ensure it's valid JSON
-            String jsonResponse = rawResponse.trim().replace("```json", "").replace("```", "").trim();
-
-            logger.info("Generated atmosphere JSON: " + jsonResponse);
-            AtmosphereData data = gson.fromJson(jsonResponse, AtmosphereData.class);
-            return new AtmosphereData(data.weather(), data.backgroundColor(), ""); // soundUrl is handled separately
+            AtmosphereData data = StructuredOutputParser.parse(rawResponse, AtmosphereData.class)
+                    .orElseThrow(() -> new JsonSyntaxException("No valid JSON object in atmosphere response"));
+            logger.info("Generated atmosphere: " + data);
+            return new Computed(new AtmosphereData(data.weather(), data.backgroundColor(), ""), true); // soundUrl is handled separately
         } catch (Exception e) {
             logger.log(Level.SEVERE, "Error generating or parsing atmosphere with Gemini: " + e.getMessage(), e);
-            // Provide a fallback/default atmosphere on error
-            return new AtmosphereData("Clear", "#DDDDDD", "sounds/calm.mp3"); // Light grey as a fallback
+            // The engine's reading is less sure than Gemini's would have been, but it is still about this mood.
+            return new Computed(AtmosphereEngine.atmosphereFor(engineMood), false);
         }
     }
 
-    private String selectSoundForMood(List<MemoryData> memories) {
-        double totalScore = 0;
-        int emotionCount = 0;
-
-        for (MemoryData memory : memories) {
-            if (memory.emotions() != null) {
-                for (double score : memory.emotions().values()) {
-                    totalScore += score;
-                    emotionCount++;
-                }
+    /**
+     * Maps the mood to weather and sky color locally. Gemini is only asked, if enabled, when the
+     * local engine cannot read the mood: mostly unfamiliar emotions, or strongly mixed feelings.
+     * Only then are the memory texts read.
+     */
+    Computed atmosphereFor(String userId, EmotionAggregates.Summary mood)
+            throws ExecutionException, InterruptedException, IOException {
+        AtmosphereEngine.Mood engineMood = AtmosphereEngine.moodOf(mood.emotions());
+        if (engineMood.ambiguous() && GEMINI_ENRICHMENT) {
+            List<MemoryData> texts = getRecentMemoriesForUser(userId);
+            if (!texts.isEmpty()) {
+                return generateAtmosphereWithGemini(texts, engineMood);
             }
         }
+        return new Computed(AtmosphereEngine.atmosphereFor(engineMood), true);
+    }
 
-        if (emotionCount == 0) {
+    String selectSoundForMood(EmotionAggregates.Summary mood) {
+        OptionalDouble averageScore = mood.averageScore();
+        if (averageScore.isEmpty()) {
             return "sounds/neutral.mp3"; // Default sound
         }
+        return soundForScore(averageScore.getAsDouble());
+    }
 
-        double averageScore = totalScore / emotionCount;
+    // The mood of the window from the daily aggregates, or empty unless they cover the whole window.
+    private Optional<EmotionAggregates.Summary> recentMoodFromAggregates(String userId) {
+        try {
+            EmotionAggregates.Window window = emotionAggregates.recentDays(userId, MOOD_WINDOW_DAYS);
+            return window.complete() ? Optional.of(EmotionAggregates.summarize(window.buckets())) : Optional.empty();
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Could not read emotion aggregates; using memory documents instead.", e);
+            return Optional.empty();
+        }
+    }
 
+    private String soundForScore(double averageScore) {
         if (averageScore > 0.5) {
             return "sounds/happy.mp3";
         } else if (averageScore < -0.5) {
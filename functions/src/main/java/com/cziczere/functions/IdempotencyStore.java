@@ -0,0 +1,180 @@
+package com.cziczere.functions;
+
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.Precondition;
+import io.grpc.Status;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records the outcome of requests sent with an {@code Idempotency-Key} header in the
+ * {@code idempotency_keys} collection, so client retries replay the original response
+ * instead of repeating the expensive work.
+ *
+ * <p>The first request for a key creates an in-progress marker with a create-only write.
+ * A concurrent request for the same key waits until the marker is completed and then replays it.
+ * A marker that stays in progress past {@link #STALE_AFTER_MILLIS} (e.g. its instance crashed)
+ * is taken over by the next request.
+ */
+public class IdempotencyStore {
+
+    private static final Logger logger = Logger.getLogger(IdempotencyStore.class.getName());
+
+    static final String STATUS_IN_PROGRESS = "in_progress";
+    static final String STATUS_COMPLETED = "completed";
+
+    private static final long STALE_AFTER_MILLIS = 2 * 60 * 1000;
+    private static final long RETENTION_MILLIS = 24L * 60 * 60 * 1000;
+    private static final long WAIT_TIMEOUT_MILLIS = 60 * 1000;
+    private static final long POLL_INTERVAL_MILLIS = 500;
+
+    private final Firestore db;
+
+    public record StoredResponse(int statusCode, String statusMessage, String body) {}
+
+    // Thrown when a key is reused with a different request body.
+    static class KeyReuseException extends Exception {
+        public KeyReuseException(String message) {
+            super(message);
+        }
+    }
+
+    // Thrown when the original request is still running after the wait timeout.
+    static class InProgressException extends Exception {
+        public InProgressException(String message) {
+            super(message);
+        }
+    }
+
+    public IdempotencyStore(Firestore db) {
+        this.db = db;
+    }
+
+    /**
+     * Claims {@code key} for this request. Returns empty if the caller should do the work and then
+     * call {@link #complete} or {@link #abandon}; returns the stored response if it should be replayed.
+     */
+    public Optional<StoredResponse> begin(String userId, String key, String requestFingerprint)
+            throws KeyReuseException, InProgressException, ExecutionException, InterruptedException {
+        DocumentReference ref = reference(userId, key);
+        String requestHash = sha256(requestFingerprint);
+        long deadline = System.currentTimeMillis() + WAIT_TIMEOUT_MILLIS;
+
+        if (tryCreate(ref, userId, requestHash)) {
+            return Optional.empty();
+        }
+        while (true) {
+            DocumentSnapshot snapshot = ref.get().get();
+            if (!snapshot.exists()) {
+                // The original request failed and released the key; this retry does the work.
+                if (tryCreate(ref, userId, requestHash)) {
+                    return Optional.empty();
+                }
+                continue;
+            }
+            if (!requestHash.equals(snapshot.getString("requestHash"))) {
+                throw new KeyReuseException("Idempotency-Key was already used with a different request.");
+            }
+            if (STATUS_COMPLETED.equals(snapshot.getString("status"))) {
+                Long statusCode = snapshot.getLong("statusCode");
+                return Optional.of(new StoredResponse(
+                    statusCode == null ? 200 : statusCode.intValue(),
+                    snapshot.getString("statusMessage"),
+                    snapshot.getString("responseBody")));
+            }
+            Long createdAt = snapshot.getLong("createdAt");
+            if (createdAt == null || System.currentTimeMillis() - createdAt > STALE_AFTER_MILLIS) {
+                if (tryTakeOver(ref, snapshot)) {
+                    return Optional.empty();
+                }
+                continue;
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                throw new InProgressException("A request with this Idempotency-Key is still in progress.");
+            }
+            Thread.sleep(POLL_INTERVAL_MILLIS);
+        }
+    }
+
+    public void complete(String userId, String key, StoredResponse stored) throws ExecutionException, InterruptedException {
+        Map<String, Object> updates = new HashMap<>();
+        updates.put("status", STATUS_COMPLETED);
+        updates.put("statusCode", stored.statusCode());
+        updates.put("statusMessage", stored.statusMessage());
+        updates.put("responseBody", stored.body());
+        updates.put("completedAt", System.currentTimeMillis());
+        reference(userId, key).update(updates).get();
+    }
+
+    /** Releases the key after a failure, so a retry recomputes instead of waiting. */
+    public void abandon(String userId, String key) {
+        try {
+            reference(userId, key).delete().get();
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Could not release idempotency key; it will expire as stale.", e);
+        }
+    }
+
+    private boolean tryCreate(DocumentReference ref, String userId, String requestHash)
+            throws ExecutionException, InterruptedException {
+        long now = System.currentTimeMillis();
+        Map<String, Object> marker = new HashMap<>();
+        marker.put("userId", userId);
+        marker.put("status", STATUS_IN_PROGRESS);
+        marker.put("requestHash", requestHash);
+        marker.put("createdAt", now);
+        // Lets a Firestore TTL policy on expiresAt clean up old keys.
+        marker.put("expiresAt", now + RETENTION_MILLIS);
+        try {
+            ref.create(marker).get();
+            return true;
+        } catch (ExecutionException e) {
+            if (FirestoreErrors.hasCode(e.getCause(), Status.Code.ALREADY_EXISTS)) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    private boolean tryTakeOver(DocumentReference ref, DocumentSnapshot stale) throws ExecutionException, InterruptedException {
+        Map<String, Object> updates = new HashMap<>();
+        updates.put("createdAt", System.currentTimeMillis());
+        try {
+            // Only one waiter wins: the write fails if anyone touched the marker since we read it.
+            ref.update(updates, Precondition.updatedAt(stale.getUpdateTime())).get();
+            logger.warning("Took over stale idempotency key " + ref.getId());
+            return true;
+        } catch (ExecutionException e) {
+            if (FirestoreErrors.hasCode(e.getCause(), Status.Code.FAILED_PRECONDITION)
+                    || FirestoreErrors.hasCode(e.getCause(), Status.Code.NOT_FOUND)) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    private DocumentReference reference(String userId, String key) {
+        // Keys are client-chosen; hashing keeps them valid as document ids and scoped per user.
+        return db.collection("idempotency_keys").document(sha256(userId + "\n" + key));
+    }
+
+    private static String sha256(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.cziczere.functions;
+
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Iterator;
+
+/**
+ * Smaller JPEG renditions of a generated plant image, stored next to the original PNG.
+ * The garden sprites, poster tiles and AR planes rarely need the full-resolution image.
+ */
+final class ImageDerivatives {
+
+    private static final float JPEG_QUALITY = 0.85f;
+
+    enum Size {
+        THUMBNAIL("thumb", 128),
+        MEDIUM("medium", 512);
+
+        final String suffix;
+        final int maxDimension;
+
+        Size(String suffix, int maxDimension) {
+            this.suffix = suffix;
+            this.maxDimension = maxDimension;
+        }
+    }
+
+    private ImageDerivatives() {
+    }
+
+    /** "abc.png" becomes "abc_thumb.jpg", keeping any folder prefix. */
+    static String blobName(String originalBlobName, Size size) {
+        int extension = originalBlobName.lastIndexOf('.');
+        String base = extension > originalBlobName.lastIndexOf('/') ? originalBlobName.substring(0, extension) : originalBlobName;
+        return base + "_" + size.suffix + ".jpg";
+    }
+
+    /**
+     * Scales the image so its longer side is at most {@code maxDimension}. Large reductions are
+     * done in halving steps, which keeps bilinear filtering from dropping detail.
+     */
+    static BufferedImage scale(BufferedImage source, int maxDimension) {
+        int targetWidth = source.getWidth();
+        int targetHeight = source.getHeight();
+        double ratio = (double) maxDimension / Math.max(targetWidth, targetHeight);
+        if (ratio < 1.0) {
+            targetWidth = Math.max(1, (int) Math.round(targetWidth * ratio));
+            targetHeight = Math.max(1, (int) Math.round(targetHeight * ratio));
+        }
+
+        BufferedImage current = source;
+        int width = source.getWidth();
+        int height = source.getHeight();
+        do {
+            width = Math.max(targetWidth, width / 2);
+            height = Math.max(targetHeight, height / 2);
+            // JPEG has no alpha channel, so every step is drawn onto an opaque RGB canvas.
+            BufferedImage step = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g2d = step.createGraphics();
+            g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g2d.drawImage(current, 0, 0, width, height, null);
+            g2d.dispose();
+            current = step;
+        } while (width != targetWidth || height != targetHeight);
+        return current;
+    }
+
+    /**
+     * Scales {@code original} and uploads it as a JPEG blob, returning the blob name. The JPEG is
+     * encoded in memory first (a rendition is tens of kilobytes) and stored with one request, so
+     * a failed encode or upload never leaves a partial rendition behind.
+     */
+    static String upload(Storage storage, String bucketName, String originalBlobName, BufferedImage original, Size size)
+            throws IOException {
+        String blobName = blobName(originalBlobName, size);
+        BlobInfo blobInfo = BlobInfo.newBuilder(BlobId.of(bucketName, blobName)).setContentType("image/jpeg").build();
+        storage.create(blobInfo, encodeJpeg(scale(original, size.maxDimension)));
+        return blobName;
+    }
+
+    /**
+     * Decodes an image, reading only every n-th pixel of every n-th row when the source is at least
+     * n times larger than {@code targetSize}. The result stays at least {@code targetSize} on its
+     * shorter side, so the final scaling into the cell still only shrinks. Returns {@code null},
+     * like {@link ImageIO#read}, when no reader understands the data.
+     */
+    static BufferedImage decode(InputStream source, int targetSize) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(source)) {
+            Iterator<ImageReader> readers = input == null ? Collections.emptyIterator() : ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                int shorterSide = Math.min(reader.getWidth(0), reader.getHeight(0));
+                ImageReadParam param = reader.getDefaultReadParam();
+                int step = Math.max(1, shorterSide / Math.max(1, targetSize));
+                if (step > 1) {
+                    param.setSourceSubsampling(step, step, 0, 0);
+                }
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /** Decodes an original just large enough for its largest rendition. */
+    static BufferedImage decodeForRenditions(InputStream source) throws IOException {
+        return decode(source, Size.MEDIUM.maxDimension);
+    }
+
+    static byte[] encodeJpeg(BufferedImage image) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream imageOut = ImageIO.createImageOutputStream(out)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(JPEG_QUALITY);
+            writer.setOutput(imageOut);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,99 @@
+package com.cziczere.functions;
+
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.Storage;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.Normalizer;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Content-addressed cache for Imagen output. Generated images are stored under a blob name
+ * derived from the normalized prompt, the model version and the generation parameters, so an
+ * identical request can reuse the existing image instead of paying for another generation.
+ */
+public class ImagePromptCache {
+
+    private static final Logger logger = Logger.getLogger(ImagePromptCache.class.getName());
+
+    private static final String CACHE_PREFIX = "imagen-cache/";
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final int LOG_EVERY_LOOKUPS = 100;
+
+    // Instance-wide counters, shared by every cache on this function instance.
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    private final Storage storage;
+    private final String bucketName;
+    private final String model;
+    private final String parameters;
+
+    public ImagePromptCache(Storage storage, String bucketName, String model, String parameters) {
+        this.storage = storage;
+        this.bucketName = bucketName;
+        this.model = model;
+        this.parameters = parameters;
+    }
+
+    /** Case, Unicode form and whitespace differences do not change the generated image. */
+    static String normalizePrompt(String prompt) {
+        String normalized = Normalizer.normalize(prompt, Normalizer.Form.NFKC).toLowerCase(Locale.ROOT);
+        return WHITESPACE.matcher(normalized).replaceAll(" ").trim();
+    }
+
+    String blobNameFor(String imagePrompt) {
+        String key = model + "\n" + parameters + "\n" + normalizePrompt(imagePrompt);
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return CACHE_PREFIX + HexFormat.of().formatHex(digest) + ".png";
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /** Returns the public URL of a previously generated image for this prompt, if there is one. */
+    Optional<String> lookup(String blobName) {
+        Blob blob = storage.get(BlobId.of(bucketName, blobName));
+        boolean hit = blob != null;
+        if (hit) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        if (lookups() % LOG_EVERY_LOOKUPS == 0) {
+            logger.info(String.format("Image prompt cache: %d hits, %d misses (hit rate %.1f%%).",
+                hits.get(), misses.get(), hitRate() * 100));
+        }
+        return hit ? Optional.of(publicUrl(blobName)) : Optional.empty();
+    }
+
+    String publicUrl(String blobName) {
+        return String.format("https://storage.googleapis.com/%s/%s", bucketName, blobName);
+    }
+
+    static long hits() {
+        return hits.get();
+    }
+
+    static long misses() {
+        return misses.get();
+    }
+
+    static long lookups() {
+        return hits.get() + misses.get();
+    }
+
+    static double hitRate() {
+        long total = lookups();
+        return total == 0 ? 0.0 : (double) hits.get() / total;
+    }
+}
@@ -0,0 +1,218 @@
+package com.cziczere.functions;
+
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remembers the last generated insight per user and analysis type in {@code insight_cache},
+ * together with a fingerprint of the memories it was generated from. As long as the user's
+ * memory set is unchanged and the entry is younger than the TTL, the stored insight is served
+ * instead of calling Gemini again. Planting a memory changes the fingerprint, which invalidates
+ * the entry without any explicit delete.
+ *
+ * <p>Entries also record the user's {@code memoriesChangedAt} version at computation time. While
+ * it still matches, the entry is served from a single batched read without querying memories at
+ * all. Windowed insights (weekly, monthly) can then lag behind memories ageing out of the window
+ * by at most the TTL.
+ */
+public class InsightCache {
+
+    private static final Logger logger = Logger.getLogger(InsightCache.class.getName());
+
+    static final String COLLECTION = "insight_cache";
+    // Bumped on users/{userId} whenever one of the user's memories is stored, changed or deleted.
+    static final String MEMORIES_CHANGED_AT = "memoriesChangedAt";
+
+    private static final long TTL_MILLIS = TimeUnit.MINUTES.toMillis(
+        Long.parseLong(System.getenv().getOrDefault("INSIGHT_CACHE_TTL_MINUTES", "1440")));
+    private static final int LOG_EVERY_LOOKUPS = 100;
+
+    // Instance-wide counters, shared by every cache on this function instance.
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    /**
+     * A cache entry as read before analysis: the insight (null if missing or expired), the
+     * fingerprint and memory version it was computed from, and the user's current memory version.
+     */
+    public record Probe(InsightData insight, String fingerprint, Long entryVersion, Long memoriesVersion) {
+
+        // Versions are only compared when the user has one; users without it always take the fingerprint path.
+        boolean unchanged() {
+            return insight != null && memoriesVersion != null && memoriesVersion.equals(entryVersion);
+        }
+    }
+
+    private final Firestore db;
+    private final WriteBehindQueue writeBehindQueue;
+    private final long ttlMillis;
+
+    public InsightCache(Firestore db, WriteBehindQueue writeBehindQueue) {
+        this(db, writeBehindQueue, TTL_MILLIS);
+    }
+
+    InsightCache(Firestore db, WriteBehindQueue writeBehindQueue, long ttlMillis) {
+        this.db = db;
+        this.writeBehindQueue = writeBehindQueue;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Hashes what an insight depends on: each memory's timestamp, text and emotion scores, in
+     * timestamp order. Memories are identified by content because {@link MemoryData} carries no
+     * document id; a new, removed or edited memory changes the fingerprint.
+     */
+    static String fingerprint(List<MemoryData> memories) {
+        List<MemoryData> ordered = new ArrayList<>(memories);
+        ordered.sort(Comparator.comparingLong(MemoryData::timestamp));
+        MessageDigest digest = sha256();
+        ByteBuffer timestamp = ByteBuffer.allocate(Long.BYTES);
+        for (MemoryData memory : ordered) {
+            timestamp.clear();
+            digest.update(timestamp.putLong(memory.timestamp()).flip());
+            update(digest, memory.userText());
+            if (memory.emotions() != null) {
+                // Sorted so the map's iteration order does not matter.
+                new TreeMap<>(memory.emotions()).forEach((name, score) -> update(digest, name + "=" + score));
+            }
+            digest.update((byte) 0x1e);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Reads the user's cache entry together with {@code users/{userId}.memoriesChangedAt} in one
+     * round trip. An expired entry is reported as missing. A cache that cannot be read is a miss,
+     * not a failed request.
+     */
+    public Probe probe(String userId, String type) throws InterruptedException {
+        try {
+            List<DocumentSnapshot> snapshots = db.getAll(reference(userId, type), db.collection("users").document(userId)).get();
+            DocumentSnapshot entry = snapshots.get(0);
+            DocumentSnapshot user = snapshots.get(1);
+            Long memoriesChangedAt = user.exists() ? user.getLong(MEMORIES_CHANGED_AT) : null;
+            Long createdAt = entry.exists() ? entry.getLong("createdAt") : null;
+            if (createdAt == null || System.currentTimeMillis() - createdAt >= ttlMillis) {
+                return new Probe(null, null, null, memoriesChangedAt);
+            }
+            InsightData insight = new InsightData(userId, entry.getString("text"), createdAt, type);
+            return new Probe(insight, entry.getString("fingerprint"), entry.getLong(MEMORIES_CHANGED_AT), memoriesChangedAt);
+        } catch (ExecutionException e) {
+            logger.log(Level.WARNING, "Could not read insight cache entry.", e.getCause());
+            return new Probe(null, null, null, null);
+        }
+    }
+
+    /**
+     * Returns the entry without reading any memories if none were stored since it was computed.
+     * Only hits are counted here; callers that fall back to {@link #lookup(Probe, String)} have
+     * the outcome counted there.
+     */
+    public Optional<InsightData> lookup(Probe probe) {
+        if (!probe.unchanged()) {
+            return Optional.empty();
+        }
+        count(true);
+        return Optional.of(probe.insight());
+    }
+
+    /** Returns the entry if it was generated from memories with the given fingerprint. */
+    public Optional<InsightData> lookup(Probe probe, String fingerprint) {
+        boolean hit = probe.insight() != null && fingerprint.equals(probe.fingerprint());
+        count(hit);
+        if (!hit) {
+            return Optional.empty();
+        }
+        if (probe.memoriesVersion() != null && !probe.unchanged()) {
+            // The memories turned out to be the same; restamp the entry so the next lookup can skip reading them.
+            store(probe, fingerprint, probe.insight());
+        }
+        return Optional.of(probe.insight());
+    }
+
+    /**
+     * Stores {@code insight} as the current entry, stamped with the memory version seen by
+     * {@code probe}; the write goes through the write-behind queue. The probe must be taken
+     * before the memories are read, so a memory stored in between leaves the entry stale rather
+     * than wrongly current.
+     */
+    public void store(Probe probe, String fingerprint, InsightData insight) {
+        Map<String, Object> entry = new HashMap<>();
+        entry.put("userId", insight.userId());
+        entry.put("type", insight.type());
+        entry.put("fingerprint", fingerprint);
+        entry.put("text", insight.text());
+        entry.put("createdAt", insight.timestamp());
+        entry.put(MEMORIES_CHANGED_AT, probe.memoriesVersion());
+        // Lets a Firestore TTL policy on expiresAt clean up entries of inactive users.
+        entry.put("expiresAt", insight.timestamp() + ttlMillis);
+        writeBehindQueue.set(reference(insight.userId(), insight.type()), entry);
+    }
+
+    private DocumentReference reference(String userId, String type) {
+        return db.collection(COLLECTION).document(userId + "_" + type);
+    }
+
+    private static void count(boolean hit) {
+        if (hit) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        if (lookups() % LOG_EVERY_LOOKUPS == 0) {
+            logger.info(String.format("Insight cache: %d hits, %d misses (hit rate %.1f%%).",
+                hits.get(), misses.get(), hitRate() * 100));
+        }
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        if (value != null) {
+            digest.update(value.getBytes(StandardCharsets.UTF_8));
+        }
+        digest.update((byte) 0x1f);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    static long hits() {
+        return hits.get();
+    }
+
+    static long misses() {
+        return misses.get();
+    }
+
+    static long lookups() {
+        return hits.get() + misses.get();
+    }
+
+    static double hitRate() {
+        long total = lookups();
+        return total == 0 ? 0.0 : (double) hits.get() / total;
+    }
+}
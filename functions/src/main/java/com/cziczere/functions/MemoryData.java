@@ -9,6 +9,18 @@ public record MemoryData(
         String imageUrl,
         long timestamp,
         String type,
-        Map<String, Double> emotions
+        Map<String, Double> emotions,
+        String imageStatus,
+        String thumbnailUrl,
+        String mediumUrl
 ) {
+    // Image lifecycle for memories planted in async mode. Older documents have no status and are treated as ready.
+    public static final String IMAGE_STATUS_PENDING = "pending";
+    public static final String IMAGE_STATUS_READY = "ready";
+    public static final String IMAGE_STATUS_FAILED = "failed";
+
+    public MemoryData(String userId, String userText, String imagePrompt, String imageUrl,
+                      long timestamp, String type, Map<String, Double> emotions) {
+        this(userId, userText, imagePrompt, imageUrl, timestamp, type, emotions, IMAGE_STATUS_READY, null, null);
+    }
 }
@@ -0,0 +1,113 @@
+package com.cziczere.functions;
+
+import com.google.api.gax.rpc.ApiStreamObserver;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.Query;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Reads a user's memories with a field projection and consumes the results as they stream in.
+ * Callers name the fields they need, so Firestore sends (and the heap holds) only those instead of
+ * whole documents, and no intermediate {@code QuerySnapshot} of the full result set is built.
+ */
+public class MemoryQueries {
+
+    // Text analyses (insights, atmosphere) only look at what was written and felt.
+    static final String[] ANALYSIS_FIELDS = {"userText", "timestamp", "emotions"};
+    // Mood summaries only fold the scores; the texts are fetched separately if ever needed.
+    static final String[] MOOD_FIELDS = {"emotions", "timestamp"};
+    static final String[] TEXT_FIELDS = {"userText"};
+    // Poster export only draws the images.
+    static final String[] EXPORT_FIELDS = {"imageUrl", "thumbnailUrl", "mediumUrl", "timestamp"};
+
+    private final Firestore db;
+
+    public MemoryQueries(Firestore db) {
+        this.db = db;
+    }
+
+    /**
+     * Returns the user's memories written at or after {@code sinceMillis} (0 for all of them),
+     * populated with {@code fields} only; other components are null.
+     */
+    public List<MemoryData> list(String userId, long sinceMillis, boolean oldestFirst, String... fields)
+            throws ExecutionException, InterruptedException {
+        List<MemoryData> memories = new ArrayList<>();
+        forEach(userId, sinceMillis, oldestFirst, fields, memories::add);
+        return memories;
+    }
+
+    /** Like {@link #list}, but hands each memory to {@code consumer} as soon as it arrives. */
+    public void forEach(String userId, long sinceMillis, boolean oldestFirst, String[] fields, Consumer<MemoryData> consumer)
+            throws ExecutionException, InterruptedException {
+        forEachWithId(userId, sinceMillis, oldestFirst, fields, (id, memory) -> consumer.accept(memory));
+    }
+
+    /** Like {@link #forEach}, but also hands over each memory's document id, which a projection still carries. */
+    public void forEachWithId(String userId, long sinceMillis, boolean oldestFirst, String[] fields,
+                              BiConsumer<String, MemoryData> consumer) throws ExecutionException, InterruptedException {
+        Query query = db.collection("memories").whereEqualTo("userId", userId);
+        if (sinceMillis > 0) {
+            query = query.whereGreaterThanOrEqualTo("timestamp", sinceMillis);
+        }
+        if (oldestFirst) {
+            query = query.orderBy("timestamp", Query.Direction.ASCENDING);
+        }
+
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        query.select(fields).stream(new ApiStreamObserver<>() {
+            @Override
+            public void onNext(DocumentSnapshot document) {
+                if (done.isDone()) {
+                    return;
+                }
+                try {
+                    consumer.accept(document.getId(), fromSnapshot(userId, document));
+                } catch (RuntimeException e) {
+                    done.completeExceptionally(e);
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                done.completeExceptionally(t);
+            }
+
+            @Override
+            public void onCompleted() {
+                done.complete(null);
+            }
+        });
+        done.get();
+    }
+
+    // Maps fields by hand: cheaper than reflective toObject, and absent (unprojected) fields simply stay null.
+    static MemoryData fromSnapshot(String userId, DocumentSnapshot document) {
+        Long timestamp = document.getLong("timestamp");
+        return new MemoryData(
+            userId,
+            document.getString("userText"),
+            document.getString("imagePrompt"),
+            document.getString("imageUrl"),
+            timestamp == null ? 0L : timestamp,
+            document.getString("type"),
+            emotionsOf(document.get("emotions")),
+            document.getString("imageStatus"),
+            document.getString("thumbnailUrl"),
+            document.getString("mediumUrl")
+        );
+    }
+
+    // Older memories may name emotions by synonym; readers always see the canonical vocabulary.
+    private static Map<String, Double> emotionsOf(Object value) {
+        return value instanceof Map<?, ?> stored ? EmotionVocabulary.canonicalize(stored) : null;
+    }
+}
@@ -0,0 +1,166 @@
+package com.cziczere.functions;
+
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.vertexai.generativeai.GenerativeModel;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Condenses a large garden into something that fits one Gemini prompt. Memories are taken oldest
+ * first and cut into fixed-size chunks; each chunk is summarized on its own (map), and the
+ * summaries are chunked and summarized again until few enough remain for the final insight
+ * prompt (reduce). Chunk summaries are cached in {@code chunk_summaries} by a hash of their
+ * input, and because chunks are cut from the oldest memory, planting a new memory only changes
+ * the newest chunk of each level.
+ */
+public class MemorySummarizer {
+
+    private static final Logger logger = Logger.getLogger(MemorySummarizer.class.getName());
+
+    static final String COLLECTION = "chunk_summaries";
+
+    private static final int CHUNK_SIZE = Integer.parseInt(System.getenv().getOrDefault("SUMMARY_CHUNK_SIZE", "50"));
+    private static final int DIRECT_LIMIT = Integer.parseInt(System.getenv().getOrDefault("SUMMARY_DIRECT_LIMIT", "200"));
+    private static final int CONCURRENCY = Integer.parseInt(System.getenv().getOrDefault("SUMMARY_CONCURRENCY", "4"));
+
+    // Bumping this invalidates every cached summary, e.g. after changing the prompt.
+    private static final String PROMPT_VERSION = "v1";
+    private static final String CHUNK_PROMPT = "You are the Gardener's Assistant. Below are consecutive entries from a user's memory journal, " +
+            "separated by '---'. Summarize them in at most five sentences. Keep the recurring themes, the people, places " +
+            "and activities that brought joy, and any notable shifts in mood. Output only the summary.";
+
+    // Shared by all requests on the instance, so concurrent analyses cannot exceed the model call budget together.
+    private static final ExecutorService summaryExecutor = Executors.newFixedThreadPool(CONCURRENCY, runnable -> {
+        Thread thread = new Thread(runnable, "memory-summarizer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Firestore db;
+    private final WriteBehindQueue writeBehindQueue;
+    private final int chunkSize;
+    private final int directLimit;
+
+    // The material for the final prompt: either the memory texts themselves or summaries of them.
+    record Condensed(List<String> texts, boolean summarized) {}
+
+    public MemorySummarizer(Firestore db, WriteBehindQueue writeBehindQueue) {
+        this(db, writeBehindQueue, CHUNK_SIZE, DIRECT_LIMIT);
+    }
+
+    MemorySummarizer(Firestore db, WriteBehindQueue writeBehindQueue, int chunkSize, int directLimit) {
+        this.db = db;
+        this.writeBehindQueue = writeBehindQueue;
+        // Every level must shrink the input, or condensing would never finish.
+        this.chunkSize = Math.max(2, chunkSize);
+        this.directLimit = Math.max(1, directLimit);
+    }
+
+    /**
+     * Returns at most {@code directLimit} texts that stand for {@code memories}. Small gardens are
+     * returned unchanged without touching Firestore or the model.
+     */
+    Condensed condense(List<MemoryData> memories, GenerativeModel model) throws ExecutionException, InterruptedException {
+        List<MemoryData> ordered = new ArrayList<>(memories);
+        ordered.sort(Comparator.comparingLong(MemoryData::timestamp));
+        List<String> texts = new ArrayList<>(ordered.size());
+        for (MemoryData memory : ordered) {
+            texts.add(memory.userText() == null ? "" : memory.userText());
+        }
+        if (texts.size() <= directLimit) {
+            return new Condensed(texts, false);
+        }
+
+        int level = 0;
+        while (texts.size() > directLimit) {
+            texts = summarizeChunks(texts, level++, model);
+        }
+        logger.info("Condensed " + memories.size() + " memories into " + texts.size() + " summaries over " + level + " level(s).");
+        return new Condensed(texts, true);
+    }
+
+    private List<String> summarizeChunks(List<String> texts, int level, GenerativeModel model)
+            throws ExecutionException, InterruptedException {
+        List<List<String>> chunks = new ArrayList<>();
+        for (int start = 0; start < texts.size(); start += chunkSize) {
+            chunks.add(texts.subList(start, Math.min(start + chunkSize, texts.size())));
+        }
+
+        DocumentReference[] refs = new DocumentReference[chunks.size()];
+        for (int i = 0; i < chunks.size(); i++) {
+            refs[i] = db.collection(COLLECTION).document(chunkKey(level, chunks.get(i)));
+        }
+        List<DocumentSnapshot> cached = db.getAll(refs).get();
+
+        List<String> summaries = new ArrayList<>(chunks.size());
+        List<Future<String>> pending = new ArrayList<>(chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            DocumentSnapshot snapshot = cached.get(i);
+            String summary = snapshot.exists() ? snapshot.getString("summary") : null;
+            summaries.add(summary);
+            if (summary == null) {
+                List<String> chunk = chunks.get(i);
+                pending.add(summaryExecutor.submit(() -> summarize(chunk, model)));
+            } else {
+                pending.add(null);
+            }
+        }
+
+        int generated = 0;
+        try {
+            for (int i = 0; i < chunks.size(); i++) {
+                Future<String> future = pending.get(i);
+                if (future != null) {
+                    String summary = future.get();
+                    summaries.set(i, summary);
+                    writeBehindQueue.set(refs[i], Map.of("summary", summary, "level", level, "createdAt", System.currentTimeMillis()));
+                    generated++;
+                }
+            }
+        } catch (ExecutionException | InterruptedException | RuntimeException e) {
+            // The analysis fails as a whole, so the other chunks' model calls would be paid for and thrown away.
+            for (Future<String> future : pending) {
+                if (future != null) {
+                    future.cancel(true);
+                }
+            }
+            throw e;
+        }
+        logger.info("Summary level " + level + ": " + chunks.size() + " chunks, " + generated + " generated, "
+                + (chunks.size() - generated) + " from cache.");
+        return summaries;
+    }
+
+    private String summarize(List<String> chunk, GenerativeModel model) throws Exception {
+        String prompt = CHUNK_PROMPT + "\n\n" + String.join("\n---\n", chunk);
+        return model.generateContent(prompt).getCandidates(0).getContent().getParts(0).getText().trim();
+    }
+
+    private static String chunkKey(int level, List<String> chunk) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((PROMPT_VERSION + "\n" + level + "\n").getBytes(StandardCharsets.UTF_8));
+            for (String text : chunk) {
+                digest.update(text.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0x1e);
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.cziczere.functions;
+
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldPath;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.FirestoreOptions;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.WriteBatch;
+import com.google.cloud.functions.CloudEventsFunction;
+import io.cloudevents.CloudEvent;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One-off job that rewrites the {@code emotions} of existing memories under the canonical
+ * {@link EmotionVocabulary}, so that documents written before it no longer depend on
+ * read-time normalization. Only memories whose emotion names change are written.
+ *
+ * <p>Memories are walked in document-id order one page at a time and every page is committed as a
+ * single batch. The position is saved in {@code jobs/migrate_emotion_vocabulary} after each page;
+ * a later invocation resumes from there, and a completed migration does nothing. Daily emotion
+ * aggregates need no migration: they are folded onto canonical names when read and rewritten that
+ * way on their next update.
+ */
+public class MigrateEmotionVocabulary implements CloudEventsFunction {
+
+    private static final Logger logger = Logger.getLogger(MigrateEmotionVocabulary.class.getName());
+
+    // Firestore allows at most 500 writes per batch.
+    private static final int PAGE_SIZE = 400;
+
+    static final String STATUS_RUNNING = "running";
+    static final String STATUS_COMPLETED = "completed";
+
+    private final Firestore db;
+
+    public MigrateEmotionVocabulary() throws IOException {
+        this(FirestoreOptions.getDefaultInstance().getService());
+    }
+
+    // Constructor for testing
+    MigrateEmotionVocabulary(Firestore db) {
+        this.db = db;
+    }
+
+    // Progress of the migration, persisted after every page.
+    record Checkpoint(String lastMemoryId, long scanned, long migrated, String status) {}
+
+    @Override
+    public void accept(CloudEvent event) {
+        try {
+            run();
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Error migrating emotion vocabulary", e);
+        }
+    }
+
+    void run() throws ExecutionException, InterruptedException {
+        Checkpoint checkpoint = loadCheckpoint();
+        if (STATUS_COMPLETED.equals(checkpoint.status())) {
+            logger.info("Emotion vocabulary migration already completed; nothing to do.");
+            return;
+        }
+
+        while (true) {
+            Query page = db.collection("memories").orderBy(FieldPath.documentId()).select("emotions").limit(PAGE_SIZE);
+            if (checkpoint.lastMemoryId() != null) {
+                page = page.startAfter(checkpoint.lastMemoryId());
+            }
+            List<QueryDocumentSnapshot> memories = page.get().get().getDocuments();
+            if (memories.isEmpty()) {
+                break;
+            }
+
+            WriteBatch batch = db.batch();
+            long migrated = 0;
+            for (QueryDocumentSnapshot memory : memories) {
+                if (!(memory.get("emotions") instanceof Map<?, ?> stored)) {
+                    continue;
+                }
+                Map<String, Double> canonical = EmotionVocabulary.canonicalize(stored);
+                if (!canonical.keySet().equals(stored.keySet())) {
+                    batch.update(memory.getReference(), "emotions", canonical);
+                    migrated++;
+                }
+            }
+            if (migrated > 0) {
+                batch.commit().get();
+            }
+
+            checkpoint = new Checkpoint(memories.get(memories.size() - 1).getId(),
+                checkpoint.scanned() + memories.size(), checkpoint.migrated() + migrated, STATUS_RUNNING);
+            saveCheckpoint(checkpoint);
+            if (memories.size() < PAGE_SIZE) {
+                break;
+            }
+        }
+
+        checkpoint = new Checkpoint(checkpoint.lastMemoryId(), checkpoint.scanned(), checkpoint.migrated(), STATUS_COMPLETED);
+        saveCheckpoint(checkpoint);
+        logger.info("Emotion vocabulary migration completed: " + checkpoint.migrated() + " of "
+            + checkpoint.scanned() + " memories rewritten.");
+    }
+
+    private Checkpoint loadCheckpoint() throws ExecutionException, InterruptedException {
+        DocumentSnapshot snapshot = checkpointRef().get().get();
+        if (!snapshot.exists()) {
+            return new Checkpoint(null, 0, 0, STATUS_RUNNING);
+        }
+        Long scanned = snapshot.getLong("scanned");
+        Long migrated = snapshot.getLong("migrated");
+        return new Checkpoint(snapshot.getString("lastMemoryId"),
+            scanned == null ? 0 : scanned, migrated == null ? 0 : migrated, snapshot.getString("status"));
+    }
+
+    private void saveCheckpoint(Checkpoint checkpoint) throws ExecutionException, InterruptedException {
+        Map<String, Object> fields = new HashMap<>();
+        fields.put("lastMemoryId", checkpoint.lastMemoryId());
+        fields.put("scanned", checkpoint.scanned());
+        fields.put("migrated", checkpoint.migrated());
+        fields.put("status", checkpoint.status());
+        fields.put("updatedAt", System.currentTimeMillis());
+        checkpointRef().set(fields).get();
+    }
+
+    private DocumentReference checkpointRef() {
+        return db.collection("jobs").document("migrate_emotion_vocabulary");
+    }
+}
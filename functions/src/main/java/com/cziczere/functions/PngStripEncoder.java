@@ -0,0 +1,181 @@
+package com.cziczere.functions;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes an 8-bit RGB PNG whose rows arrive in order, a strip at a time, so an image far larger
+ * than the heap can be encoded straight to a stream. {@code ImageIO} needs the whole image as one
+ * raster; this encoder only ever holds the current row and a bounded compression buffer.
+ *
+ * <p>Rows use the "Sub" filter, which compresses the flat backgrounds and smooth plant renders of
+ * a poster well for the cost of one subtraction per byte. The resolution is recorded in a
+ * {@code pHYs} chunk so that print software picks up the intended DPI.
+ *
+ * <p>The compressor holds native memory until {@link #close()}, so use the encoder in a
+ * try-with-resources block: a poster that fails half way must release it too.
+ */
+final class PngStripEncoder implements AutoCloseable {
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final int IDAT_CHUNK_SIZE = 64 * 1024;
+    private static final byte FILTER_SUB = 1;
+    private static final double INCHES_PER_METER = 39.3701;
+
+    private final OutputStream out;
+    private final int width;
+    private final int height;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final IdatOutputStream chunks = new IdatOutputStream();
+    private final DeflaterOutputStream idat;
+    private final byte[] row;
+    private int rowsWritten;
+    private boolean closed;
+
+    PngStripEncoder(OutputStream out, int width, int height, int dpi) throws IOException {
+        this.out = out;
+        this.width = width;
+        this.height = height;
+        this.row = new byte[1 + width * 3];
+        this.idat = new DeflaterOutputStream(chunks, deflater, IDAT_CHUNK_SIZE);
+
+        try {
+            writeHeader(dpi);
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private void writeHeader(int dpi) throws IOException {
+        out.write(SIGNATURE);
+        ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+        DataOutputStream fields = new DataOutputStream(header);
+        fields.writeInt(width);
+        fields.writeInt(height);
+        fields.writeByte(8); // bit depth
+        fields.writeByte(2); // color type: truecolor
+        fields.writeByte(0); // compression: deflate
+        fields.writeByte(0); // filter method: adaptive
+        fields.writeByte(0); // no interlace
+        writeChunk("IHDR", header.toByteArray(), header.size());
+
+        ByteArrayOutputStream physical = new ByteArrayOutputStream(9);
+        DataOutputStream pixelsPerMeter = new DataOutputStream(physical);
+        int ppm = (int) Math.round(dpi * INCHES_PER_METER);
+        pixelsPerMeter.writeInt(ppm);
+        pixelsPerMeter.writeInt(ppm);
+        pixelsPerMeter.writeByte(1); // unit: meter
+        writeChunk("pHYs", physical.toByteArray(), physical.size());
+    }
+
+    /** Appends every row of {@code strip}, which must be a {@code TYPE_INT_RGB} image of the poster's width. */
+    void writeRows(BufferedImage strip) throws IOException {
+        ensureOpen();
+        if (strip.getType() != BufferedImage.TYPE_INT_RGB || strip.getWidth() != width) {
+            throw new IllegalArgumentException("Strips must be TYPE_INT_RGB and " + width + " pixels wide.");
+        }
+        if (rowsWritten + strip.getHeight() > height) {
+            throw new IllegalStateException("Strip exceeds the image height of " + height + " rows.");
+        }
+        int[] pixels = ((DataBufferInt) strip.getRaster().getDataBuffer()).getData();
+        row[0] = FILTER_SUB;
+        for (int y = 0; y < strip.getHeight(); y++) {
+            int offset = y * width;
+            int previous = 0;
+            for (int x = 0; x < width; x++) {
+                int pixel = pixels[offset + x];
+                int i = 1 + x * 3;
+                row[i] = (byte) ((pixel >> 16) - (previous >> 16));
+                row[i + 1] = (byte) ((pixel >> 8) - (previous >> 8));
+                row[i + 2] = (byte) (pixel - previous);
+                previous = pixel;
+            }
+            idat.write(row);
+        }
+        rowsWritten += strip.getHeight();
+    }
+
+    /** Flushes the compressed data and writes the end marker. The underlying stream is left open. */
+    void finish() throws IOException {
+        ensureOpen();
+        if (rowsWritten != height) {
+            throw new IllegalStateException("Only " + rowsWritten + " of " + height + " rows were written.");
+        }
+        idat.finish();
+        chunks.flushChunk();
+        writeChunk("IEND", new byte[0], 0);
+        out.flush();
+    }
+
+    /** Releases the compressor, whether or not the image was finished. The underlying stream is left open. */
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            deflater.end();
+        }
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("The encoder is closed.");
+        }
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+
+        DataOutputStream chunk = new DataOutputStream(out);
+        chunk.writeInt(length);
+        chunk.write(typeBytes);
+        chunk.write(data, 0, length);
+        chunk.writeInt((int) crc.getValue());
+    }
+
+    // Collects deflated bytes and emits them as IDAT chunks of a fixed size.
+    private final class IdatOutputStream extends OutputStream {
+        private final byte[] buffer = new byte[IDAT_CHUNK_SIZE];
+        private int size;
+
+        @Override
+        public void write(int b) throws IOException {
+            if (size == buffer.length) {
+                flushChunk();
+            }
+            buffer[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (size == buffer.length) {
+                    flushChunk();
+                }
+                int n = Math.min(length, buffer.length - size);
+                System.arraycopy(data, offset, buffer, size, n);
+                size += n;
+                offset += n;
+                length -= n;
+            }
+        }
+
+        void flushChunk() throws IOException {
+            if (size > 0) {
+                writeChunk("IDAT", buffer, size);
+                size = 0;
+            }
+        }
+    }
+}
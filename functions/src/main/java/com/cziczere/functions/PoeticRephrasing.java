@@ -13,6 +13,7 @@ import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseAuthException;
 import com.google.firebase.auth.FirebaseToken;
 import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
@@ -142,19 +143,10 @@ public class PoeticRephrasing implements HttpFunction {
             GenerateContentResponse response = model.generateContent(fullPrompt);
             String responseText = response.getCandidates(0).getContent().getParts(0).getText();
 
-            // Clean up the response to extract JSON
-            String jsonResponse = responseText.trim();
-            if (!jsonResponse.startsWith("{")) {
-                // Try to extract JSON from response
-                int jsonStart = jsonResponse.indexOf("{");
-                int jsonEnd = jsonResponse.lastIndexOf("}") + 1;
-                if (jsonStart >= 0 && jsonEnd > jsonStart) {
-                    jsonResponse = jsonResponse.substring(jsonStart, jsonEnd);
-                }
-            }
-
-            logger.info("Generated poetic rephrasing response: " + jsonResponse);
-            return gson.fromJson(jsonResponse, RephrasingResponse.class);
+            RephrasingResponse rephrasing = StructuredOutputParser.parse(responseText, RephrasingResponse.class)
+                .orElseThrow(() -> new JsonSyntaxException("No valid JSON object in rephrasing response"));
+            logger.info("Generated poetic rephrasing response: " + rephrasing);
+            return rephrasing;
 
         } catch (Exception e) {
             logger.severe("Error generating poetic rephrasing: " + e.getMessage());
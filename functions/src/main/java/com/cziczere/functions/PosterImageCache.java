@@ -0,0 +1,237 @@
+package com.cziczere.functions;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Instance-local cache of memory images for poster exports, so that a user exporting several
+ * layouts in a row does not download every image again.
+ *
+ * <ul>
+ *   <li>The heap tier keeps decoded images, already subsampled to the size a poster asked for,
+ *       keyed by URL and that size. It is bounded by total pixels. A heap miss falls through to
+ *       the disk tier, where a miss counts as a miss of the cache.</li>
+ *   <li>The disk tier keeps the downloaded bytes as files under the temp directory, keyed by URL,
+ *       and serves them memory-mapped so a decode at any size needs no network and no heap copy.
+ *       It is bounded by total bytes. On Cloud Functions the temp directory lives in instance
+ *       memory, so its bound counts against the memory limit.</li>
+ * </ul>
+ *
+ * Both tiers evict the least recently used entries first. Hits, misses and evictions are counted
+ * for {@link #stats()}.
+ */
+class PosterImageCache {
+
+    private static final Logger logger = Logger.getLogger(PosterImageCache.class.getName());
+
+    private static final long HEAP_MAX_PIXELS = 1_000_000L
+        * Long.parseLong(System.getenv().getOrDefault("EXPORT_IMAGE_CACHE_HEAP_MEGAPIXELS", "8"));
+    private static final long DISK_MAX_BYTES = 1024L * 1024L
+        * Long.parseLong(System.getenv().getOrDefault("EXPORT_IMAGE_CACHE_DISK_MB", "64"));
+
+    // Counters since the instance started; rates are derived when logged.
+    record Stats(long heapHits, long diskHits, long misses, long heapEvictions, long diskEvictions,
+                 long heapPixels, long diskBytes) {
+        double hitRate() {
+            long lookups = heapHits + diskHits + misses;
+            return lookups == 0 ? 0.0 : (double) (heapHits + diskHits) / lookups;
+        }
+    }
+
+    private final long heapMaxPixels;
+    private final long diskMaxBytes;
+    private final Path directory;
+
+    private final LinkedHashMap<String, BufferedImage> heap = new LinkedHashMap<>(16, 0.75f, true);
+    private long heapPixels;
+    // File name -> size in bytes, in access order.
+    private final LinkedHashMap<String, Long> disk = new LinkedHashMap<>(16, 0.75f, true);
+    private long diskBytes;
+
+    private final AtomicLong heapHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong heapEvictions = new AtomicLong();
+    private final AtomicLong diskEvictions = new AtomicLong();
+
+    PosterImageCache() {
+        this(Path.of(System.getProperty("java.io.tmpdir"), "poster-image-cache"), HEAP_MAX_PIXELS, DISK_MAX_BYTES);
+    }
+
+    PosterImageCache(Path directory, long heapMaxPixels, long diskMaxBytes) {
+        this.heapMaxPixels = heapMaxPixels;
+        this.diskMaxBytes = diskMaxBytes;
+        this.directory = prepare(directory);
+    }
+
+    // Files left by an earlier process on the instance are not in the index, so they are removed.
+    private static Path prepare(Path directory) {
+        try {
+            Files.createDirectories(directory);
+            try (Stream<Path> stale = Files.list(directory)) {
+                for (Iterator<Path> it = stale.iterator(); it.hasNext(); ) {
+                    Files.deleteIfExists(it.next());
+                }
+            }
+            return directory;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Disk tier of the poster image cache is disabled.", e);
+            return null;
+        }
+    }
+
+    Optional<BufferedImage> getImage(String url, int size) {
+        BufferedImage image;
+        synchronized (this) {
+            image = heap.get(heapKey(url, size));
+        }
+        if (image != null) {
+            heapHits.incrementAndGet();
+        }
+        return Optional.ofNullable(image);
+    }
+
+    void putImage(String url, int size, BufferedImage image) {
+        long pixels = (long) image.getWidth() * image.getHeight();
+        if (pixels > heapMaxPixels) {
+            return;
+        }
+        synchronized (this) {
+            BufferedImage previous = heap.put(heapKey(url, size), image);
+            if (previous != null) {
+                heapPixels -= (long) previous.getWidth() * previous.getHeight();
+            }
+            heapPixels += pixels;
+            Iterator<Map.Entry<String, BufferedImage>> eldest = heap.entrySet().iterator();
+            while (heapPixels > heapMaxPixels && eldest.hasNext()) {
+                BufferedImage evicted = eldest.next().getValue();
+                eldest.remove();
+                heapPixels -= (long) evicted.getWidth() * evicted.getHeight();
+                heapEvictions.incrementAndGet();
+            }
+        }
+    }
+
+    /** The downloaded bytes of {@code url} as a read-only memory-mapped buffer, or empty on a miss. */
+    Optional<ByteBuffer> getBytes(String url) {
+        String name = fileName(url);
+        boolean indexed;
+        synchronized (this) {
+            indexed = directory != null && disk.get(name) != null;
+        }
+        if (indexed) {
+            try (FileChannel channel = FileChannel.open(directory.resolve(name), StandardOpenOption.READ)) {
+                // The mapping stays valid after the channel is closed, and even if the file is evicted meanwhile.
+                ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                diskHits.incrementAndGet();
+                return Optional.of(mapped);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not read cached image " + name, e);
+                synchronized (this) {
+                    Long size = disk.remove(name);
+                    if (size != null) {
+                        diskBytes -= size;
+                    }
+                }
+            }
+        }
+        misses.incrementAndGet();
+        return Optional.empty();
+    }
+
+    void putBytes(String url, byte[] bytes) {
+        if (directory == null || bytes.length > diskMaxBytes) {
+            return;
+        }
+        String name = fileName(url);
+        try {
+            // Written aside and moved into place, so a concurrent reader never maps a partial file.
+            Path temporary = Files.createTempFile(directory, name, ".part");
+            Files.write(temporary, bytes);
+            Files.move(temporary, directory.resolve(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not cache image " + name + " on disk.", e);
+            return;
+        }
+        synchronized (this) {
+            Long previous = disk.put(name, (long) bytes.length);
+            diskBytes += bytes.length - (previous == null ? 0 : previous);
+            Iterator<Map.Entry<String, Long>> eldest = disk.entrySet().iterator();
+            while (diskBytes > diskMaxBytes && eldest.hasNext()) {
+                Map.Entry<String, Long> evicted = eldest.next();
+                eldest.remove();
+                diskBytes -= evicted.getValue();
+                diskEvictions.incrementAndGet();
+                try {
+                    Files.deleteIfExists(directory.resolve(evicted.getKey()));
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Could not delete evicted image " + evicted.getKey(), e);
+                }
+            }
+        }
+    }
+
+    synchronized Stats stats() {
+        return new Stats(heapHits.get(), diskHits.get(), misses.get(), heapEvictions.get(), diskEvictions.get(),
+            heapPixels, diskBytes);
+    }
+
+    private static String heapKey(String url, int size) {
+        return size + "@" + fileName(url);
+    }
+
+    // URLs can be long (or whole data URLs), so files are named by a digest of the URL.
+    private static String fileName(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(url.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /** Reads a buffer from its position to its limit without copying it onto the heap first. */
+    static InputStream asStream(ByteBuffer buffer) {
+        ByteBuffer source = buffer.duplicate();
+        return new InputStream() {
+            @Override
+            public int read() {
+                return source.hasRemaining() ? source.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) {
+                if (!source.hasRemaining()) {
+                    return -1;
+                }
+                int n = Math.min(length, source.remaining());
+                source.get(bytes, offset, n);
+                return n;
+            }
+
+            @Override
+            public int available() {
+                return source.remaining();
+            }
+        };
+    }
+}
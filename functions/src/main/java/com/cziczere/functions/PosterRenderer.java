@@ -0,0 +1,218 @@
+package com.cziczere.functions;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.IntConsumer;
+
+/**
+ * Lays out and draws the garden poster for a paper size and print resolution. The poster is
+ * drawn one horizontal strip at a time and each strip is handed to {@link PngStripEncoder}
+ * before the next is drawn, so peak memory is one strip plus the memory images, however large the
+ * page: an A1 sheet at 600 DPI is about 280 megapixels, but a strip of it is under 15 MB.
+ *
+ * <p>The memory images themselves are bounded by {@link #sourceSize()}: a cell on a big poster is
+ * filled from a source of at most that size and scaled up while drawing.
+ */
+final class PosterRenderer {
+
+    enum PaperSize {
+        A4(210, 297),
+        A3(297, 420),
+        A2(420, 594),
+        A1(594, 841);
+
+        final int widthMm;
+        final int heightMm;
+
+        PaperSize(int widthMm, int heightMm) {
+            this.widthMm = widthMm;
+            this.heightMm = heightMm;
+        }
+    }
+
+    static final Set<Integer> SUPPORTED_DPI = Set.of(150, 300, 600);
+    static final PaperSize DEFAULT_PAPER = PaperSize.A4;
+    static final int DEFAULT_DPI = 150;
+
+    private static final int STRIP_HEIGHT = 256;
+    private static final int PROGRESS_STEP = 25;
+    private static final int PADDING_AT_150_DPI = 50;
+    // Total decoded source pixels allowed for one poster, about 48 MB of ARGB.
+    private static final long SOURCE_PIXEL_BUDGET = 12_000_000L;
+    private static final Color PLACEHOLDER_COLOR = new Color(0xE8EDE4);
+
+    // Top-left corner and edge length of one memory's square in the poster grid.
+    record Cell(int x, int y, int size) {}
+
+    // Columns and rows of the grid. Gardens with the same grid shape share their cell positions.
+    record Grid(int cols, int rows) {}
+
+    private final int dpi;
+    private final int width;
+    private final int height;
+    private final List<Cell> cells;
+
+    PosterRenderer(PaperSize paper, int dpi, int memoryCount) {
+        if (!SUPPORTED_DPI.contains(dpi)) {
+            throw new IllegalArgumentException("Unsupported DPI: " + dpi);
+        }
+        this.dpi = dpi;
+        this.width = pixels(paper.widthMm, dpi);
+        this.height = pixels(paper.heightMm, dpi);
+        this.cells = gridCells(memoryCount, width, height, PADDING_AT_150_DPI * dpi / DEFAULT_DPI);
+    }
+
+    /** Parses a paper size name such as "a3", case-insensitively. */
+    static PaperSize paperSizeOf(String name) {
+        return PaperSize.valueOf(name.trim().toUpperCase(Locale.ROOT));
+    }
+
+    static int pixels(int millimeters, int dpi) {
+        return (int) Math.round(millimeters * dpi / 25.4);
+    }
+
+    static Grid gridOf(int count) {
+        if (count == 0) {
+            return new Grid(0, 0);
+        }
+        int cols = (int) Math.ceil(Math.sqrt(count));
+        return new Grid(cols, (int) Math.ceil((double) count / cols));
+    }
+
+    /** Lays {@code count} memories out row by row in a near-square grid. */
+    static List<Cell> gridCells(int count, int width, int height, int padding) {
+        List<Cell> cells = new ArrayList<>(count);
+        if (count == 0) {
+            return cells;
+        }
+        Grid grid = gridOf(count);
+        int cols = grid.cols();
+        int rows = grid.rows();
+
+        int cellWidth = (width - 2 * padding) / cols;
+        int cellHeight = (height - 2 * padding) / rows;
+        int imageSize = Math.min(cellWidth, cellHeight) - padding;
+
+        for (int i = 0; i < count; i++) {
+            int row = i / cols;
+            int col = i % cols;
+            int x = padding + col * cellWidth + (cellWidth - imageSize) / 2;
+            int y = padding + row * cellHeight + (cellHeight - imageSize) / 2;
+            cells.add(new Cell(x, y, imageSize));
+        }
+        return cells;
+    }
+
+    int width() {
+        return width;
+    }
+
+    int height() {
+        return height;
+    }
+
+    List<Cell> cells() {
+        return cells;
+    }
+
+    /** Edge length to fetch memory images at: the cell size, capped so all sources fit the pixel budget. */
+    int sourceSize() {
+        if (cells.isEmpty()) {
+            return 0;
+        }
+        int budgeted = (int) Math.sqrt((double) SOURCE_PIXEL_BUDGET / cells.size());
+        return Math.max(1, Math.min(cells.get(0).size(), budgeted));
+    }
+
+    /**
+     * Draws rows {@code top} to {@code top + rows} of the poster. {@code images} is in cell order;
+     * a {@code null} image gets a placeholder tile.
+     */
+    BufferedImage render(List<BufferedImage> images, int top, int rows) {
+        BufferedImage strip = new BufferedImage(width, rows, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = strip.createGraphics();
+        try {
+            g2d.setColor(Color.WHITE);
+            g2d.fillRect(0, 0, width, rows);
+            g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+            g2d.translate(0, -top);
+
+            for (int i = 0; i < cells.size(); i++) {
+                Cell cell = cells.get(i);
+                // Only cells that overlap the strip are drawn; the clip keeps scaling to the visible rows.
+                if (cell.y() + cell.size() <= top || cell.y() >= top + rows) {
+                    continue;
+                }
+                drawCell(g2d, cell, images.get(i));
+            }
+        } finally {
+            g2d.dispose();
+        }
+        return strip;
+    }
+
+    private static void drawCell(Graphics2D g2d, Cell cell, BufferedImage image) {
+        if (image != null) {
+            g2d.drawImage(image, cell.x(), cell.y(), cell.size(), cell.size(), null);
+        } else {
+            g2d.setColor(PLACEHOLDER_COLOR);
+            int arc = cell.size() / 8;
+            g2d.fillRoundRect(cell.x(), cell.y(), cell.size(), cell.size(), arc, arc);
+        }
+    }
+
+    /**
+     * Draws cells {@code first} onwards over a copy of {@code base}, a poster of the same size
+     * and grid whose earlier cells are kept as they are. {@code images} holds the new cells only.
+     */
+    BufferedImage extend(BufferedImage base, List<BufferedImage> images, int first) {
+        if (base.getWidth() != width || base.getHeight() != height) {
+            throw new IllegalArgumentException("The base poster is " + base.getWidth() + "x" + base.getHeight()
+                + ", not " + width + "x" + height + ".");
+        }
+        BufferedImage poster = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = poster.createGraphics();
+        try {
+            g2d.drawImage(base, 0, 0, null);
+            g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+            for (int i = first; i < cells.size(); i++) {
+                drawCell(g2d, cells.get(i), images.get(i - first));
+            }
+        } finally {
+            g2d.dispose();
+        }
+        return poster;
+    }
+
+    /** Draws the poster strip by strip straight into a PNG on {@code out}. */
+    void writePng(List<BufferedImage> images, OutputStream out) throws IOException {
+        writePng(images, out, percent -> { });
+    }
+
+    /** Same, calling {@code onProgress} with the percentage done each time another quarter of the rows is written. */
+    void writePng(List<BufferedImage> images, OutputStream out, IntConsumer onProgress) throws IOException {
+        try (PngStripEncoder encoder = new PngStripEncoder(out, width, height, dpi)) {
+            int reported = 0;
+            for (int top = 0; top < height; top += STRIP_HEIGHT) {
+                int rows = Math.min(STRIP_HEIGHT, height - top);
+                encoder.writeRows(render(images, top, rows));
+                int percent = (int) (100L * (top + rows) / height);
+                if (percent / PROGRESS_STEP > reported / PROGRESS_STEP && percent < 100) {
+                    reported = percent;
+                    onProgress.accept(percent);
+                }
+            }
+            encoder.finish();
+        }
+    }
+}
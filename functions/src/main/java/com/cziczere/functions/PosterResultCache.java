@@ -0,0 +1,231 @@
+package com.cziczere.functions;
+
+import com.google.cloud.WriteChannel;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Rendered posters in Cloud Storage, stored under a fingerprint of what they show: the layout
+ * version, the paper size and resolution, and the user's memories in poster order. A repeated
+ * export with the same fingerprint is served from the stored PNG without fetching or drawing
+ * anything.
+ *
+ * <p>Memories are identified by their document ids, so two memories planted in the same
+ * millisecond, or sharing an image, are still told apart, together with the image URL the poster
+ * draws of them, which changes once when a memory planted in async mode blooms. Because memories
+ * are laid out oldest first, a garden that only gained
+ * memories has the previous garden's fingerprint as a prefix, which {@link #findPrefix} uses to
+ * find a poster that can be extended instead of redrawn. Only posters whose every image was
+ * fetched are stored, so neither a hit nor a prefix shows a placeholder for a failed download.
+ */
+class PosterResultCache {
+
+    private static final Logger logger = Logger.getLogger(PosterResultCache.class.getName());
+
+    private static final String CACHE_PREFIX = "exports/cache/";
+    // Job posters that must not be found by a fingerprint, such as ones drawn with placeholders.
+    private static final String JOBS_PREFIX = "exports/jobs/";
+    // Bump when the layout or drawing changes, so stored posters stop matching.
+    private static final int LAYOUT_VERSION = 1;
+
+    // Instance-wide counters, logged with every lookup.
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    // A stored poster of the first memoryCount memories of the garden.
+    record Prefix(int memoryCount, String blobName) {}
+
+    private final Storage storage;
+    private final String bucketName;
+
+    PosterResultCache(Storage storage, String bucketName) {
+        this.storage = storage;
+        this.bucketName = bucketName;
+    }
+
+    static String fingerprint(ExportGarden.PosterOptions options, ExportGarden.Garden garden) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((LAYOUT_VERSION + "\n" + options.paper() + "\n" + options.dpi() + "\n").getBytes(StandardCharsets.UTF_8));
+            for (int i = 0; i < garden.size(); i++) {
+                String entry = garden.memoryIds().get(i) + "\n" + garden.memories().get(i).imageUrl() + "\n";
+                digest.update(entry.getBytes(StandardCharsets.UTF_8));
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    String blobNameFor(String userId, String fingerprint) {
+        return CACHE_PREFIX + userId + "/" + fingerprint + ".png";
+    }
+
+    /** Where a job's poster is uploaded when it must not become a cache entry. */
+    String jobBlobNameFor(String userId, String jobId) {
+        return JOBS_PREFIX + userId + "/" + jobId + ".png";
+    }
+
+    String publicUrl(String blobName) {
+        return String.format("https://storage.googleapis.com/%s/%s", bucketName, blobName);
+    }
+
+    /** Whether a poster is stored under {@code blobName}; a failed lookup counts as a miss. */
+    boolean contains(String blobName) {
+        boolean hit;
+        try {
+            hit = storage.get(BlobId.of(bucketName, blobName)) != null;
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Could not look up cached poster " + blobName, e);
+            hit = false;
+        }
+        if (hit) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        long lookups = hits.get() + misses.get();
+        logger.info(String.format("Poster result cache: %s, %d hits of %d lookups.", hit ? "hit" : "miss", hits.get(), lookups));
+        return hit;
+    }
+
+    /**
+     * The largest stored poster of a leading part of the garden whose grid has the same
+     * shape as the whole garden's, so every one of its cells is exactly where it will be drawn
+     * again. Only shapes that match are probed, at most one row's worth.
+     */
+    Optional<Prefix> findPrefix(String userId, ExportGarden.PosterOptions options, ExportGarden.Garden garden) {
+        PosterRenderer.Grid grid = PosterRenderer.gridOf(garden.size());
+        for (int count = garden.size() - 1; count > 0 && PosterRenderer.gridOf(count).equals(grid); count--) {
+            String blobName = blobNameFor(userId, fingerprint(options, garden.head(count)));
+            try {
+                if (storage.get(BlobId.of(bucketName, blobName)) != null) {
+                    return Optional.of(new Prefix(count, blobName));
+                }
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Could not look up cached poster " + blobName, e);
+                return Optional.empty();
+            }
+        }
+        return Optional.empty();
+    }
+
+    byte[] read(String blobName) {
+        return storage.readAllBytes(BlobId.of(bucketName, blobName));
+    }
+
+    /** Copies the stored poster to {@code out} without holding all of it in memory. */
+    void copyTo(String blobName, OutputStream out) throws IOException {
+        try (InputStream in = Channels.newInputStream(storage.reader(BlobId.of(bucketName, blobName)))) {
+            in.transferTo(out);
+        }
+    }
+
+    /** Stores a poster; a failure is logged and otherwise ignored, since the poster was already served. */
+    void put(String blobName, byte[] png) {
+        try {
+            storage.create(blobInfo(blobName), png);
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Could not store poster " + blobName, e);
+        }
+    }
+
+    /**
+     * A stream that writes a poster to {@code out} and, alongside, uploads it under
+     * {@code blobName}. The upload is only completed by {@link Upload#complete()}, so a poster
+     * that fails halfway never becomes a cache entry.
+     */
+    Upload upload(String blobName, OutputStream out) {
+        WriteChannel channel;
+        try {
+            channel = storage.writer(blobInfo(blobName));
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Could not start storing poster " + blobName, e);
+            channel = null;
+        }
+        return new Upload(blobName, channel, out);
+    }
+
+    private BlobInfo blobInfo(String blobName) {
+        return BlobInfo.newBuilder(BlobId.of(bucketName, blobName)).setContentType("image/png").build();
+    }
+
+    static final class Upload extends OutputStream {
+        private final String blobName;
+        private final OutputStream out;
+        private WriteChannel channel;
+
+        private Upload(String blobName, WriteChannel channel, OutputStream out) {
+            this.blobName = blobName;
+            this.channel = channel;
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+            if (channel != null) {
+                try {
+                    ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // The client still gets the poster; only the cache entry is given up.
+                    logger.log(Level.WARNING, "Stopped storing poster " + blobName, e);
+                    channel = null;
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        /**
+         * Finalizes the upload and reports whether the poster is now stored. Closing the stream
+         * without this abandons it.
+         */
+        boolean complete() {
+            if (channel == null) {
+                return false;
+            }
+            boolean stored = false;
+            try {
+                channel.close();
+                stored = true;
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.WARNING, "Could not store poster " + blobName, e);
+            }
+            channel = null;
+            return stored;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.cziczere.functions;
+
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldPath;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.FirestoreOptions;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.functions.CloudEventsFunction;
+import com.google.common.util.concurrent.RateLimiter;
+import io.cloudevents.CloudEvent;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Scheduled job that computes the weekly and monthly insights of every recently active user ahead
+ * of time, so that the on-demand {@link AnalyzeMemories} request finds a current cache entry and
+ * answers from a single batched document read. A user counts as active when they planted a memory
+ * recently, going by the {@code memoriesChangedAt} marker the planting functions maintain.
+ *
+ * <p>Users are walked in document-id order one page at a time. Each page is analyzed by a bounded
+ * worker pool, with a shared rate limiter keeping the run within the Vertex AI quota. After every
+ * page the position is saved in {@code jobs/precompute_insights}. A failed run is rethrown so the
+ * scheduler's retry delivers the event again, and an unfinished run is always resumed after its
+ * last finished page, even by the next day's invocation, instead of being started over.
+ */
+public class PrecomputeInsights implements CloudEventsFunction {
+
+    private static final Logger logger = Logger.getLogger(PrecomputeInsights.class.getName());
+
+    private static final int PAGE_SIZE = 100;
+    // Users who planted nothing for longer have no new memories for an insight to cover.
+    private static final int ACTIVE_WITHIN_DAYS = 30;
+    private static final List<String> INSIGHT_TYPES = List.of("weekly", "monthly");
+    private static final long FLUSH_TIMEOUT_MILLIS = 30_000;
+
+    private static final int CONCURRENCY = Integer.parseInt(System.getenv().getOrDefault("PRECOMPUTE_CONCURRENCY", "4"));
+    private static final double ANALYSES_PER_SECOND = Double.parseDouble(System.getenv().getOrDefault("PRECOMPUTE_ANALYSES_PER_SECOND", "2"));
+
+    static final String STATUS_RUNNING = "running";
+    static final String STATUS_COMPLETED = "completed";
+
+    private final Firestore db;
+    private final AnalyzeMemories analyzer;
+    private final WriteBehindQueue writeBehindQueue;
+    private final int concurrency;
+    private final RateLimiter rateLimiter;
+
+    public PrecomputeInsights() throws IOException {
+        this(FirestoreOptions.getDefaultInstance().getService(), new AnalyzeMemories(), WriteBehindQueue.shared(),
+            CONCURRENCY, ANALYSES_PER_SECOND);
+    }
+
+    // Constructor for testing
+    PrecomputeInsights(Firestore db, AnalyzeMemories analyzer, WriteBehindQueue writeBehindQueue,
+                       int concurrency, double analysesPerSecond) {
+        this.db = db;
+        this.analyzer = analyzer;
+        this.writeBehindQueue = writeBehindQueue;
+        this.concurrency = Math.max(1, concurrency);
+        this.rateLimiter = RateLimiter.create(analysesPerSecond);
+    }
+
+    // Progress of one run, named by the day it started, persisted after every page.
+    record Checkpoint(String runId, String lastUserId, long processed, long failed, String status) {}
+
+    @Override
+    public void accept(CloudEvent event) throws InterruptedException {
+        try {
+            run(LocalDate.now(ZoneOffset.UTC).toString());
+        } catch (ExecutionException | RuntimeException e) {
+            logger.log(Level.SEVERE, "Error precomputing insights", e);
+            // Failing the invocation lets retry-on-failure redeliver the event, which resumes the checkpoint.
+            throw new IllegalStateException("Insight precomputation failed", e);
+        }
+    }
+
+    void run(String runId) throws ExecutionException, InterruptedException {
+        Checkpoint checkpoint = loadCheckpoint(runId);
+        runId = checkpoint.runId();
+        if (STATUS_COMPLETED.equals(checkpoint.status())) {
+            logger.info("Insight precomputation " + runId + " already completed; nothing to do.");
+            return;
+        }
+        if (checkpoint.lastUserId() != null) {
+            logger.info("Resuming insight precomputation " + runId + " after user " + checkpoint.lastUserId() + ".");
+        }
+
+        long activeSince = Instant.now().minus(ACTIVE_WITHIN_DAYS, ChronoUnit.DAYS).toEpochMilli();
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        try {
+            while (true) {
+                Query page = db.collection("users").orderBy(FieldPath.documentId()).select(InsightCache.MEMORIES_CHANGED_AT).limit(PAGE_SIZE);
+                if (checkpoint.lastUserId() != null) {
+                    page = page.startAfter(checkpoint.lastUserId());
+                }
+                List<QueryDocumentSnapshot> users = page.get().get().getDocuments();
+                if (users.isEmpty()) {
+                    break;
+                }
+
+                List<Future<Boolean>> results = new ArrayList<>(users.size());
+                for (QueryDocumentSnapshot user : users) {
+                    Long memoriesChangedAt = user.getLong(InsightCache.MEMORIES_CHANGED_AT);
+                    if (memoriesChangedAt != null && memoriesChangedAt >= activeSince) {
+                        String userId = user.getId();
+                        results.add(workers.submit(() -> precompute(userId)));
+                    }
+                }
+                long processed = checkpoint.processed();
+                long failed = checkpoint.failed();
+                for (Future<Boolean> result : results) {
+                    if (result.get()) {
+                        processed++;
+                    } else {
+                        failed++;
+                    }
+                }
+
+                // A page is only recorded once all of its users are done; a crash repeats at most that page,
+                // and repeated users are cheap because their fresh insights are already cached.
+                checkpoint = new Checkpoint(runId, users.get(users.size() - 1).getId(), processed, failed, STATUS_RUNNING);
+                saveCheckpoint(checkpoint);
+                if (users.size() < PAGE_SIZE) {
+                    break;
+                }
+            }
+        } finally {
+            workers.shutdown();
+        }
+
+        // The generated insights are queued; make sure they are stored before the job reports success.
+        if (!writeBehindQueue.flush(FLUSH_TIMEOUT_MILLIS)) {
+            logger.warning("Insight precomputation " + runId + " finished with writes still queued.");
+        }
+        checkpoint = new Checkpoint(runId, checkpoint.lastUserId(), checkpoint.processed(), checkpoint.failed(), STATUS_COMPLETED);
+        saveCheckpoint(checkpoint);
+        logger.info("Insight precomputation " + runId + " completed: " + checkpoint.processed() + " users processed, "
+            + checkpoint.failed() + " failed.");
+    }
+
+    // One user's failure is logged and counted, but does not stop the run.
+    private boolean precompute(String userId) {
+        try {
+            for (String type : INSIGHT_TYPES) {
+                rateLimiter.acquire();
+                analyzer.computeInsight(userId, type);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to precompute insights for user: " + userId, e);
+            return false;
+        }
+    }
+
+    /**
+     * The checkpoint to continue from: an unfinished run whatever day it started, or today's run if
+     * it already completed. Otherwise a fresh run named {@code runId}.
+     */
+    private Checkpoint loadCheckpoint(String runId) throws ExecutionException, InterruptedException {
+        DocumentSnapshot snapshot = checkpointRef().get().get();
+        boolean unfinished = snapshot.exists() && !STATUS_COMPLETED.equals(snapshot.getString("status"));
+        if (!snapshot.exists() || snapshot.getString("runId") == null
+                || (!unfinished && !runId.equals(snapshot.getString("runId")))) {
+            return new Checkpoint(runId, null, 0, 0, STATUS_RUNNING);
+        }
+        runId = snapshot.getString("runId");
+        Long processed = snapshot.getLong("processed");
+        Long failed = snapshot.getLong("failed");
+        return new Checkpoint(runId, snapshot.getString("lastUserId"),
+            processed == null ? 0 : processed, failed == null ? 0 : failed, snapshot.getString("status"));
+    }
+
+    private void saveCheckpoint(Checkpoint checkpoint) throws ExecutionException, InterruptedException {
+        Map<String, Object> fields = new HashMap<>();
+        fields.put("runId", checkpoint.runId());
+        fields.put("lastUserId", checkpoint.lastUserId());
+        fields.put("processed", checkpoint.processed());
+        fields.put("failed", checkpoint.failed());
+        fields.put("status", checkpoint.status());
+        fields.put("updatedAt", System.currentTimeMillis());
+        checkpointRef().set(fields).get();
+    }
+
+    private DocumentReference checkpointRef() {
+        return db.collection("jobs").document("precompute_insights");
+    }
+}
@@ -0,0 +1,106 @@
+package com.cziczere.functions;
+
+import com.google.api.gax.grpc.ChannelPoolSettings;
+import com.google.cloud.aiplatform.v1.PredictionServiceClient;
+import com.google.cloud.aiplatform.v1.PredictionServiceSettings;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Holds a single, lazily created {@link PredictionServiceClient} per function instance.
+ * The client owns a gRPC channel pool, so it is created once on first use and shared by
+ * every request instead of paying for a new channel, TLS handshake and auth per image.
+ */
+public class PredictionClientProvider implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(PredictionClientProvider.class.getName());
+
+    private static final String REGION = System.getenv().getOrDefault("GCP_REGION", "your-gcp-region");
+    private static final int CHANNEL_POOL_SIZE = Integer.parseInt(System.getenv().getOrDefault("IMAGEN_CHANNEL_POOL_SIZE", "2"));
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+    private static volatile PredictionClientProvider shared;
+
+    private final String endpoint;
+    private final int channelPoolSize;
+    private volatile PredictionServiceClient client;
+
+    PredictionClientProvider(String endpoint, int channelPoolSize) {
+        this.endpoint = endpoint;
+        this.channelPoolSize = channelPoolSize;
+    }
+
+    // This constructor is used for testing, wrapping an already created (or mocked) client.
+    PredictionClientProvider(PredictionServiceClient client) {
+        this.endpoint = null;
+        this.channelPoolSize = 0;
+        this.client = client;
+    }
+
+    /**
+     * Returns the instance-wide provider. The underlying client is closed gracefully
+     * when the JVM shuts down.
+     */
+    public static PredictionClientProvider shared() {
+        if (shared == null) {
+            synchronized (PredictionClientProvider.class) {
+                if (shared == null) {
+                    String endpoint = String.format("%s-aiplatform.googleapis.com:443", REGION);
+                    PredictionClientProvider provider = new PredictionClientProvider(endpoint, CHANNEL_POOL_SIZE);
+                    Runtime.getRuntime().addShutdownHook(new Thread(provider::close, "prediction-client-shutdown"));
+                    shared = provider;
+                }
+            }
+        }
+        return shared;
+    }
+
+    public PredictionServiceClient get() throws IOException {
+        PredictionServiceClient current = client;
+        if (current == null) {
+            synchronized (this) {
+                current = client;
+                if (current == null) {
+                    current = createClient();
+                    client = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    private PredictionServiceClient createClient() throws IOException {
+        logger.info("Creating shared PredictionServiceClient for " + endpoint + " with " + channelPoolSize + " channel(s).");
+        PredictionServiceSettings settings = PredictionServiceSettings.newBuilder()
+            .setEndpoint(endpoint)
+            .setTransportChannelProvider(PredictionServiceSettings.defaultGrpcTransportProviderBuilder()
+                .setChannelPoolSettings(ChannelPoolSettings.staticallySized(channelPoolSize))
+                .build())
+            .build();
+        return PredictionServiceClient.create(settings);
+    }
+
+    @Override
+    public synchronized void close() {
+        PredictionServiceClient current = client;
+        if (current == null) {
+            return;
+        }
+        client = null;
+        try {
+            current.shutdown();
+            if (!current.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                current.shutdownNow();
+            }
+            logger.info("Shared PredictionServiceClient shut down.");
+        } catch (InterruptedException e) {
+            current.shutdownNow();
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Error while shutting down PredictionServiceClient.", e);
+        }
+    }
+}
@@ -1,4 +1,15 @@
 package com.cziczere.functions;
 
-public record RequestData(String text) {
+/**
+ * @param skipImageCache when true, always generate a fresh image instead of reusing one for an identical prompt
+ */
+public record RequestData(String text, Boolean skipImageCache) {
+
+    public RequestData(String text) {
+        this(text, null);
+    }
+
+    public boolean useImageCache() {
+        return !Boolean.TRUE.equals(skipImageCache);
+    }
 }
@@ -0,0 +1,147 @@
+package com.cziczere.functions;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Optional;
+
+/**
+ * Extracts and binds the JSON object embedded in a Gemini response.
+ * Model output is often wrapped in ``` fences or surrounded by chatter, and is sometimes
+ * truncated. The text is scanned once for the first balanced object (string literals and
+ * escapes are respected, so braces inside values do not confuse it) and bound with a
+ * precomputed Gson type adapter, without regex matching or intermediate substrings.
+ */
+final class StructuredOutputParser {
+
+    private static final Gson gson = new Gson();
+
+    private static final ClassValue<TypeAdapter<?>> adapters = new ClassValue<>() {
+        @Override
+        protected TypeAdapter<?> computeValue(Class<?> type) {
+            return gson.getAdapter(type);
+        }
+    };
+
+    private StructuredOutputParser() {
+    }
+
+    /**
+     * Binds the first JSON object in {@code modelOutput} that matches {@code type}.
+     * Returns empty when there is no complete object, e.g. for a truncated response.
+     */
+    static <T> Optional<T> parse(CharSequence modelOutput, Class<T> type) {
+        if (modelOutput == null) {
+            return Optional.empty();
+        }
+        @SuppressWarnings("unchecked")
+        TypeAdapter<T> adapter = (TypeAdapter<T>) adapters.get(type);
+
+        int from = 0;
+        int length = modelOutput.length();
+        while (from < length) {
+            int start = indexOf(modelOutput, '{', from);
+            if (start < 0) {
+                return Optional.empty();
+            }
+            int end = findObjectEnd(modelOutput, start);
+            if (end < 0) {
+                return Optional.empty();
+            }
+            T value = bind(adapter, modelOutput, start, end);
+            if (value != null) {
+                return Optional.of(value);
+            }
+            // Not valid JSON (e.g. "{placeholder}" in prose). Skip the whole span: an object nested
+            // inside it is part of the failed value, not a top-level result.
+            from = end;
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Returns the index just past the brace closing the object that opens at {@code start},
+     * or -1 if the object is never closed.
+     */
+    static int findObjectEnd(CharSequence text, int start) {
+        int depth = 0;
+        boolean inString = false;
+        boolean escaped = false;
+        for (int i = start; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (inString) {
+                if (escaped) {
+                    escaped = false;
+                } else if (c == '\\') {
+                    escaped = true;
+                } else if (c == '"') {
+                    inString = false;
+                }
+                continue;
+            }
+            if (c == '"') {
+                inString = true;
+            } else if (c == '{') {
+                depth++;
+            } else if (c == '}') {
+                depth--;
+                if (depth == 0) {
+                    return i + 1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(CharSequence text, char target, int from) {
+        for (int i = from; i < text.length(); i++) {
+            if (text.charAt(i) == target) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static <T> T bind(TypeAdapter<T> adapter, CharSequence text, int start, int end) {
+        try {
+            JsonReader reader = new JsonReader(new CharSequenceReader(text, start, end));
+            reader.setLenient(true);
+            return adapter.read(reader);
+        } catch (IOException | JsonParseException | IllegalStateException e) {
+            return null;
+        }
+    }
+
+    /** Reads a range of a CharSequence without copying it. */
+    private static final class CharSequenceReader extends Reader {
+        private final CharSequence text;
+        private final int end;
+        private int position;
+
+        CharSequenceReader(CharSequence text, int start, int end) {
+            this.text = text;
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) {
+            if (position >= end) {
+                return -1;
+            }
+            int count = Math.min(length, end - position);
+            for (int i = 0; i < count; i++) {
+                buffer[offset + i] = text.charAt(position++);
+            }
+            return count;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.cziczere.functions;
+
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.FirestoreOptions;
+import com.google.cloud.firestore.WriteBatch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Buffers Firestore document writes so request threads can respond without waiting for a
+ * commit round trip. A single background thread coalesces queued writes into batched commits,
+ * retries transient failures with backoff and drains the queue when the instance shuts down.
+ * When a batch is rejected outright, its writes are committed again one at a time, so a single
+ * bad write only fails itself and not the writes of other requests that shared its batch.
+ *
+ * <p>The queue lives in instance memory: a write counts as accepted once it is queued, and is
+ * lost if the instance is killed before the shutdown flush completes. On Cloud Functions the CPU
+ * is throttled once a response is sent and the instance may be reclaimed at any time, so the
+ * queue is only for derived, best-effort data (insight history, summaries, cache entries) that
+ * can be recomputed. A user's own data, such as a memory, and anything that invalidates derived
+ * data, such as the {@code memoriesChangedAt} marker, is written directly and awaited.
+ */
+public class WriteBehindQueue implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(WriteBehindQueue.class.getName());
+
+    // Firestore rejects batches with more than 500 writes.
+    private static final int MAX_BATCH_SIZE = Math.min(500,
+        Integer.parseInt(System.getenv().getOrDefault("WRITE_BEHIND_BATCH_SIZE", "100")));
+    private static final long LINGER_MILLIS = Long.parseLong(System.getenv().getOrDefault("WRITE_BEHIND_LINGER_MS", "50"));
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long INITIAL_BACKOFF_MILLIS = 200;
+    private static final long POLL_MILLIS = 200;
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 10_000;
+    private static final int LOG_EVERY_FLUSHES = 50;
+
+    private static volatile WriteBehindQueue shared;
+
+    private record PendingWrite(DocumentReference reference, Object data, CompletableFuture<Void> done) {}
+
+    private final Firestore db;
+    private final int maxBatchSize;
+    private final long lingerMillis;
+    private final LinkedBlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+
+    // Writes that are queued or part of a commit in flight.
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong totalFlushMillis = new AtomicLong();
+    private final AtomicLong lastFlushMillis = new AtomicLong();
+    private final AtomicLong committedWrites = new AtomicLong();
+    private final AtomicLong failedWrites = new AtomicLong();
+
+    private Thread flusher;
+    private volatile boolean closed;
+
+    WriteBehindQueue(Firestore db) {
+        this(db, MAX_BATCH_SIZE, LINGER_MILLIS);
+    }
+
+    WriteBehindQueue(Firestore db, int maxBatchSize, long lingerMillis) {
+        this.db = db;
+        this.maxBatchSize = maxBatchSize;
+        this.lingerMillis = lingerMillis;
+    }
+
+    /**
+     * Returns the instance-wide queue. Whatever is still queued when the JVM shuts down is
+     * flushed from a shutdown hook.
+     */
+    public static WriteBehindQueue shared() {
+        if (shared == null) {
+            synchronized (WriteBehindQueue.class) {
+                if (shared == null) {
+                    WriteBehindQueue queue = new WriteBehindQueue(FirestoreOptions.getDefaultInstance().getService());
+                    Runtime.getRuntime().addShutdownHook(new Thread(queue::close, "write-behind-shutdown"));
+                    shared = queue;
+                }
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Queues a {@code set} of {@code data} on {@code reference}. The returned future completes
+     * when the write is committed, or exceptionally once retries are exhausted.
+     */
+    public CompletableFuture<Void> set(DocumentReference reference, Object data) {
+        return enqueue(reference, data);
+    }
+
+    private CompletableFuture<Void> enqueue(DocumentReference reference, Object data) {
+        if (closed) {
+            throw new IllegalStateException("Write-behind queue is closed.");
+        }
+        startFlusher();
+        PendingWrite write = new PendingWrite(reference, data, new CompletableFuture<>());
+        pending.incrementAndGet();
+        queue.add(write);
+        return write.done();
+    }
+
+    private synchronized void startFlusher() {
+        if (flusher == null) {
+            flusher = new Thread(this::run, "write-behind-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+
+    private void run() {
+        List<PendingWrite> batch = new ArrayList<>(maxBatchSize);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                PendingWrite first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                // Give concurrent requests a moment to join the same commit.
+                long deadline = System.currentTimeMillis() + lingerMillis;
+                while (batch.size() < maxBatchSize) {
+                    PendingWrite next = queue.poll(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                commit(batch);
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Write-behind commit failed unexpectedly.", e);
+                failAll(batch, e);
+            } catch (InterruptedException e) {
+                failAll(batch, e);
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void commit(List<PendingWrite> batch) throws InterruptedException {
+        long started = System.nanoTime();
+        long backoff = INITIAL_BACKOFF_MILLIS;
+        for (int attempt = 1; ; attempt++) {
+            WriteBatch writeBatch = db.batch();
+            for (PendingWrite write : batch) {
+                writeBatch.set(write.reference(), write.data());
+            }
+            try {
+                // Sets overwrite the same documents again, so repeating the batch after a timeout is safe.
+                writeBatch.commit().get();
+                break;
+            } catch (ExecutionException e) {
+                if (!FirestoreErrors.isTransient(e.getCause()) && batch.size() > 1) {
+                    // A batch is atomic, so one bad write fails writes of unrelated requests with it.
+                    // Committing them one by one keeps the failure to the writes that caused it.
+                    logger.warning("Batch of " + batch.size() + " queued writes was rejected (" + e.getCause()
+                        + "); committing them one by one.");
+                    for (PendingWrite write : batch) {
+                        commit(List.of(write));
+                    }
+                    return;
+                }
+                if (attempt >= MAX_ATTEMPTS || !FirestoreErrors.isTransient(e.getCause())) {
+                    logger.log(Level.SEVERE, "Dropping " + batch.size() + " queued write(s) after " + attempt + " attempt(s).", e.getCause());
+                    failAll(batch, e.getCause());
+                    return;
+                }
+                logger.warning("Write-behind commit failed (attempt " + attempt + "), retrying in " + backoff + " ms: " + e.getCause());
+                Thread.sleep(backoff);
+                backoff *= 2;
+            }
+        }
+
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        lastFlushMillis.set(elapsedMillis);
+        totalFlushMillis.addAndGet(elapsedMillis);
+        committedWrites.addAndGet(batch.size());
+        for (PendingWrite write : batch) {
+            pending.decrementAndGet();
+            write.done().complete(null);
+        }
+        if (flushes.incrementAndGet() % LOG_EVERY_FLUSHES == 0) {
+            logger.info(String.format("Write-behind queue: depth %d, %d flushes, avg flush %.1f ms, %d written, %d failed.",
+                depth(), flushes.get(), averageFlushMillis(), committedWrites.get(), failedWrites.get()));
+        }
+    }
+
+    // Writes already settled, e.g. by a one-by-one retry, are left alone.
+    private void failAll(List<PendingWrite> batch, Throwable cause) {
+        for (PendingWrite write : batch) {
+            if (write.done().completeExceptionally(cause)) {
+                failedWrites.incrementAndGet();
+                pending.decrementAndGet();
+            }
+        }
+    }
+
+    /** Waits until every write queued so far is committed or failed. Returns false on timeout. */
+    public boolean flush(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (pending.get() > 0) {
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            if (!flush(SHUTDOWN_TIMEOUT_MILLIS)) {
+                logger.severe("Write-behind queue shut down with " + depth() + " write(s) not yet committed.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Number of writes queued or being committed. */
+    int depth() {
+        return pending.get();
+    }
+
+    long lastFlushMillis() {
+        return lastFlushMillis.get();
+    }
+
+    double averageFlushMillis() {
+        long count = flushes.get();
+        return count == 0 ? 0.0 : (double) totalFlushMillis.get() / count;
+    }
+
+    long committedWrites() {
+        return committedWrites.get();
+    }
+
+    long failedWrites() {
+        return failedWrites.get();
+    }
+}
@@ -1,13 +1,12 @@
 package com.cziczere.functions;
 
-import com.google.api.core.ApiFuture;
+import com.google.api.gax.rpc.ApiStreamObserver;
 import com.google.cloud.firestore.CollectionReference;
 import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
 import com.google.cloud.firestore.Firestore;
 import com.google.cloud.firestore.Query;
 import com.google.cloud.firestore.QueryDocumentSnapshot;
-import com.google.cloud.firestore.QuerySnapshot;
-import com.google.cloud.firestore.WriteResult;
 import com.google.cloud.functions.HttpRequest;
 import com.google.cloud.functions.HttpResponse;
 import com.google.cloud.vertexai.VertexAI;
@@ -35,6 +34,7 @@ import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.ExecutionException;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyLong;
@@ -55,9 +55,8 @@ class AnalyzeMemoriesTest {
     @Mock private CollectionReference insightsCollection;
     @Mock private DocumentReference documentReference;
     @Mock private Query query;
-    @Mock private ApiFuture<QuerySnapshot> queryFuture;
-    @Mock private QuerySnapshot querySnapshot;
-    @Mock private ApiFuture<WriteResult> writeFuture;
+    @Mock private WriteBehindQueue writeBehindQueue;
+    @Mock private InsightCache insightCache;
 
     private StringWriter responseWriter;
     private BufferedWriter bufferedWriter;
@@ -68,9 +67,9 @@ class AnalyzeMemoriesTest {
     void setUp() throws IOException {
         responseWriter = new StringWriter();
         bufferedWriter = new BufferedWriter(responseWriter);
-        when(response.getWriter()).thenReturn(bufferedWriter);
+        lenient().when(response.getWriter()).thenReturn(bufferedWriter);
 
-        analyzeMemoriesFunction = Mockito.spy(new AnalyzeMemories(db, vertexAI, firebaseAuth));
+        analyzeMemoriesFunction = Mockito.spy(new AnalyzeMemories(db, vertexAI, firebaseAuth, writeBehindQueue, insightCache));
 
         lenient().doReturn(generativeModel).when(analyzeMemoriesFunction).getGenerativeModel(anyString());
     }
@@ -84,8 +83,6 @@ class AnalyzeMemoriesTest {
     private void mockFirestoreSave() throws Exception {
         lenient().when(db.collection("insights")).thenReturn(insightsCollection);
         lenient().when(insightsCollection.document()).thenReturn(documentReference);
-        lenient().when(documentReference.set(any(InsightData.class))).thenReturn(writeFuture);
-        lenient().when(writeFuture.get()).thenReturn(mock(WriteResult.class));
     }
 
     private void setupMockedFirestoreQuery(boolean withData, String type) throws ExecutionException, InterruptedException {
@@ -98,17 +95,18 @@ class AnalyzeMemoriesTest {
              when(queryMock.whereGreaterThanOrEqualTo(eq("timestamp"), anyLong())).thenReturn(queryMock);
         }
 
-        when(queryMock.get()).thenReturn(queryFuture);
-        when(queryFuture.get()).thenReturn(querySnapshot);
-
-        if (withData) {
-            QueryDocumentSnapshot document = mock(QueryDocumentSnapshot.class);
-            MemoryData memoryData = new MemoryData("test-user-id", "A beautiful day", "", "", System.currentTimeMillis(), "text", Collections.emptyMap());
-            when(document.toObject(MemoryData.class)).thenReturn(memoryData);
-            when(querySnapshot.getDocuments()).thenReturn(List.of(document));
-        } else {
-            when(querySnapshot.getDocuments()).thenReturn(Collections.emptyList());
-        }
+        when(queryMock.select(any(String[].class))).thenReturn(queryMock);
+        doAnswer(invocation -> {
+            ApiStreamObserver<DocumentSnapshot> observer = invocation.getArgument(0);
+            if (withData) {
+                QueryDocumentSnapshot document = mock(QueryDocumentSnapshot.class, withSettings().lenient());
+                when(document.getString("userText")).thenReturn("A beautiful day");
+                when(document.getLong("timestamp")).thenReturn(System.currentTimeMillis());
+                observer.onNext(document);
+            }
+            observer.onCompleted();
+            return null;
+        }).when(queryMock).stream(any());
     }
 
     @Test
@@ -132,9 +130,9 @@ class AnalyzeMemoriesTest {
         // Assert
         // The try-with-resources in the function closes the writer, so we must capture
         // the content *before* the service method completes. We can do this with an
-        // ArgumentCaptor on the set() method of the DocumentReference.
+        // ArgumentCaptor on the write queued for the insights document.
         ArgumentCaptor<InsightData> insightCaptor = ArgumentCaptor.forClass(InsightData.class);
-        verify(documentReference).set(insightCaptor.capture());
+        verify(writeBehindQueue).set(eq(documentReference), insightCaptor.capture());
 
         // Now, we can assert on the captured object.
         InsightData savedInsight = insightCaptor.getValue();
@@ -198,4 +196,107 @@ class AnalyzeMemoriesTest {
         verify(generativeModel).generateContent(promptCaptor.capture());
         assertTrue(promptCaptor.getValue().contains("memory bouquet"));
     }
+
+    @Test
+    void testService_GeminiError_ShowsStandInWithoutSavingOrCachingIt() throws Exception {
+        // Arrange
+        mockFirebaseAuth();
+        setupMockedFirestoreQuery(true, "weekly");
+        when(request.getFirstQueryParameter("type")).thenReturn(Optional.of("weekly"));
+        when(generativeModel.generateContent(anyString())).thenThrow(new IOException("Vertex AI unavailable"));
+
+        // Act
+        analyzeMemoriesFunction.service(request, response);
+
+        // Assert
+        verify(response).setStatusCode(200, "OK");
+        assertTrue(responseWriter.toString().contains("Could not compose your weekly memory bouquet"));
+        verifyNoInteractions(writeBehindQueue);
+        verify(insightCache, never()).store(any(), any(), any());
+    }
+
+    @Test
+    void testService_UnchangedMemories_ServesCachedInsight() throws Exception {
+        // Arrange
+        mockFirebaseAuth();
+        setupMockedFirestoreQuery(true, "insight");
+        when(request.getFirstQueryParameter("type")).thenReturn(Optional.of("insight"));
+        InsightData cached = new InsightData("test-user-id", "I've noticed that you love sunny walks.", 1000L, "insight");
+        InsightCache.Probe probe = new InsightCache.Probe(cached, "abc", null, null);
+        when(insightCache.probe("test-user-id", "insight")).thenReturn(probe);
+        when(insightCache.lookup(probe)).thenReturn(Optional.empty());
+        when(insightCache.lookup(eq(probe), anyString())).thenReturn(Optional.of(cached));
+
+        // Act
+        analyzeMemoriesFunction.service(request, response);
+
+        // Assert
+        verify(response).setStatusCode(200, "OK");
+        assertTrue(responseWriter.toString().contains("sunny walks"));
+        verify(generativeModel, never()).generateContent(anyString());
+        verifyNoInteractions(writeBehindQueue);
+        verify(insightCache, never()).store(any(), anyString(), any());
+    }
+
+    @Test
+    void testService_UnchangedMemoryVersion_SkipsMemoryQuery() throws Exception {
+        // Arrange
+        mockFirebaseAuth();
+        when(request.getFirstQueryParameter("type")).thenReturn(Optional.of("weekly"));
+        InsightData cached = new InsightData("test-user-id", "Here is your weekly bouquet of memories.", 1000L, "weekly");
+        InsightCache.Probe probe = new InsightCache.Probe(cached, "abc", 5L, 5L);
+        when(insightCache.probe("test-user-id", "weekly")).thenReturn(probe);
+        when(insightCache.lookup(probe)).thenReturn(Optional.of(cached));
+
+        // Act
+        analyzeMemoriesFunction.service(request, response);
+
+        // Assert
+        verify(response).setStatusCode(200, "OK");
+        assertTrue(responseWriter.toString().contains("weekly bouquet"));
+        verify(db, never()).collection("memories");
+        verify(generativeModel, never()).generateContent(anyString());
+    }
+
+    @Test
+    void composeMonth_usesNonOverlappingWeeks_andKeepsOnlyUncoveredMemories() {
+        // Arrange: bouquets stored on days 14, 12 (overlapping day 14's week) and 7; memories on days 1, 9 and 20.
+        long day = 24L * 60 * 60 * 1000;
+        InsightData week7 = new InsightData("u", "Week A", 7 * day, "weekly");
+        InsightData week12 = new InsightData("u", "Week B", 12 * day, "weekly");
+        InsightData week14 = new InsightData("u", "Week C", 14 * day, "weekly");
+        MemoryData beforeWeeks = new MemoryData("u", "Garden fair", "", "", 0, "memory", Collections.emptyMap());
+        MemoryData insideWeek = new MemoryData("u", "Picnic", "", "", 9 * day, "memory", Collections.emptyMap());
+        MemoryData afterWeeks = new MemoryData("u", "First snow", "", "", 20 * day, "memory", Collections.emptyMap());
+
+        // Act
+        AnalyzeMemories.MonthlyMaterial material = AnalyzeMemories.composeMonth(
+                List.of(week12, week7, week14), List.of(beforeWeeks, insideWeek, afterWeeks));
+
+        // Assert
+        assertEquals(List.of(week14), material.weeks());
+        assertEquals(List.of(beforeWeeks, afterWeeks), material.uncoveredMemories());
+    }
+
+    @Test
+    void generateMonthlyInsight_promptsWithWeeklySummariesInsteadOfTheirMemories() throws Exception {
+        // Arrange
+        InsightData week = new InsightData("test-user-id", "Here is your weekly bouquet of long walks.", 1_000_000L, "weekly");
+        MemoryData lateMemory = new MemoryData("test-user-id", "A quiet evening with tea", "", "", 2_000_000L, "memory", Collections.emptyMap());
+        GenerateContentResponse geminiResponse = GenerateContentResponse.newBuilder()
+                .addCandidates(Candidate.newBuilder()
+                        .setContent(Content.newBuilder()
+                                .addParts(Part.newBuilder().setText("Looking back on the past month..."))))
+                .build();
+        when(generativeModel.generateContent(anyString())).thenReturn(geminiResponse);
+
+        // Act
+        analyzeMemoriesFunction.generateMonthlyInsight(new AnalyzeMemories.MonthlyMaterial(List.of(week), List.of(lateMemory)));
+
+        // Assert
+        ArgumentCaptor<String> promptCaptor = ArgumentCaptor.forClass(String.class);
+        verify(generativeModel).generateContent(promptCaptor.capture());
+        assertTrue(promptCaptor.getValue().contains("weekly bouquet of long walks"));
+        assertTrue(promptCaptor.getValue().contains("A quiet evening with tea"));
+    }
 }
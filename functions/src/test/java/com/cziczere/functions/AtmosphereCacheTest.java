@@ -0,0 +1,35 @@
+package com.cziczere.functions;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AtmosphereCacheTest {
+
+    @Test
+    void get_missesAfterAMemoryVersionChange_andEvictsLeastRecentlyUsed() {
+        AtmosphereCache cache = new AtmosphereCache(2, 60_000);
+        cache.put("alice", 1L, "{}");
+        cache.put("bob", null, "{}");
+
+        assertTrue(cache.get("alice", 1L).isPresent());
+        assertFalse(cache.get("alice", 2L).isPresent());
+        assertTrue(cache.get("bob", null).isPresent());
+
+        cache.put("carol", 1L, "{}");
+        assertFalse(cache.get("alice", 1L).isPresent());
+        assertTrue(cache.get("bob", null).isPresent());
+    }
+
+    @Test
+    void matches_acceptsListsWeakTagsAndWildcard() {
+        String etag = AtmosphereCache.etagOf("{\"weather\":\"Sunny\"}");
+
+        assertTrue(AtmosphereCache.matches("\"other\", " + etag, etag));
+        assertTrue(AtmosphereCache.matches("W/" + etag, etag));
+        assertTrue(AtmosphereCache.matches("*", etag));
+        assertFalse(AtmosphereCache.matches("\"other\"", etag));
+        assertFalse(AtmosphereCache.matches(null, etag));
+    }
+}
@@ -0,0 +1,69 @@
+package com.cziczere.functions;
+
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestFactory;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.DynamicTest.dynamicTest;
+
+class AtmosphereEngineTest {
+
+    private record Case(String name, Map<String, Double> emotions, String weather, boolean ambiguous) {}
+
+    private static final List<Case> CASES = List.of(
+        new Case("joy is sunny", Map.of("joy", 0.9), "Sunny", false),
+        new Case("calm is clear", Map.of("calm", 0.8), "Clear", false),
+        new Case("sadness is rainy", Map.of("sadness", 0.7), "Rainy", false),
+        new Case("anger and fear are stormy", Map.of("anger", 0.6, "fear", 0.5), "Stormy", false),
+        new Case("grief and tiredness are snowy", Map.of("grief", 0.8, "tiredness", 0.8), "Snowy", false),
+        new Case("nostalgia is foggy", Map.of("nostalgia", 0.9), "Foggy", false),
+        new Case("keys are matched case-insensitively", Map.of(" Joy ", 0.9), "Sunny", false),
+        new Case("synonyms resolve to the vocabulary", Map.of("Serenity", 0.8), "Clear", false),
+        new Case("mixed feelings are ambiguous", Map.of("joy", 0.8, "sadness", 0.8), "Clear", true),
+        new Case("unknown emotions are ambiguous", Map.of("bittersweet", 0.9, "joy", 0.2), "Sunny", true),
+        new Case("no emotions are ambiguous", Map.of(), "Clear", true)
+    );
+
+    private static Map<String, EmotionAggregates.EmotionStats> stats(Map<String, Double> emotions) {
+        Map<String, EmotionAggregates.EmotionStats> stats = new HashMap<>();
+        emotions.forEach((name, score) -> stats.put(name, EmotionAggregates.EmotionStats.of(score)));
+        return stats;
+    }
+
+    @TestFactory
+    Stream<DynamicTest> weatherAndAmbiguity() {
+        return CASES.stream().map(c -> dynamicTest(c.name(), () -> {
+            AtmosphereEngine.Mood mood = AtmosphereEngine.moodOf(stats(c.emotions()));
+
+            assertEquals(c.weather(), AtmosphereEngine.weatherFor(mood));
+            assertEquals(c.ambiguous(), mood.ambiguous());
+        }));
+    }
+
+    @Test
+    void colorFor_followsTheValenceRamp_andArousalShade() {
+        assertEquals("#B0C4DE", AtmosphereEngine.colorFor(new AtmosphereEngine.Mood(0, 0, 1, false)));
+        assertEquals("#FFD59E", AtmosphereEngine.colorFor(new AtmosphereEngine.Mood(1, 0, 1, false)));
+        assertEquals("#2F3E56", AtmosphereEngine.colorFor(new AtmosphereEngine.Mood(-1, 0, 1, false)));
+
+        String energized = AtmosphereEngine.colorFor(new AtmosphereEngine.Mood(0, 1, 1, false));
+        String subdued = AtmosphereEngine.colorFor(new AtmosphereEngine.Mood(0, -1, 1, false));
+        assertTrue(Integer.parseInt(energized.substring(1), 16) > Integer.parseInt(subdued.substring(1), 16));
+    }
+
+    @Test
+    void moodOf_ignoresNonPositiveScores() {
+        AtmosphereEngine.Mood mood = AtmosphereEngine.moodOf(stats(Map.of("joy", 0.9, "anger", 0.0)));
+
+        assertEquals(0.8, mood.valence(), 1e-9);
+        assertFalse(mood.ambiguous());
+    }
+}
@@ -0,0 +1,152 @@
+package com.cziczere.functions;
+
+import com.google.api.core.ApiFutures;
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.SetOptions;
+import com.google.cloud.firestore.Transaction;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class EmotionAggregatesTest {
+
+    // 2024-05-01T10:00:00Z
+    private static final long MAY_FIRST = 1714557600000L;
+
+    @Mock private Firestore db;
+    @Mock private CollectionReference aggregatesCollection;
+    @Mock private DocumentReference userDocument;
+    @Mock private CollectionReference dailyCollection;
+    @Mock private DocumentReference bucketRef;
+    @Mock private Transaction transaction;
+    @Mock private DocumentSnapshot existingBucket;
+    @Mock private DocumentSnapshot userSnapshot;
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void record_foldsMemoriesIntoExistingDailyBucket() throws Exception {
+        // Arrange
+        when(db.collection("emotion_aggregates")).thenReturn(aggregatesCollection);
+        when(aggregatesCollection.document("user-1")).thenReturn(userDocument);
+        when(userDocument.collection("daily")).thenReturn(dailyCollection);
+        when(dailyCollection.document("2024-05-01")).thenReturn(bucketRef);
+        when(transaction.get(userDocument)).thenReturn(ApiFutures.immediateFuture(userSnapshot));
+        when(userSnapshot.getLong("coveredSince")).thenReturn(MAY_FIRST - 86_400_000L);
+        when(transaction.get(bucketRef)).thenReturn(ApiFutures.immediateFuture(existingBucket));
+        when(existingBucket.exists()).thenReturn(true);
+        when(existingBucket.getId()).thenReturn("2024-05-01");
+        when(existingBucket.getLong("memoryCount")).thenReturn(1L);
+        when(existingBucket.get("emotions")).thenReturn(Map.of(
+            "joy", Map.of("sum", 0.5, "count", 1L, "min", 0.5, "max", 0.5)));
+
+        List<MemoryData> memories = List.of(
+            new MemoryData("user-1", "Picnic", "", "", MAY_FIRST, "memory", Map.of("Joy", 0.9, "calm", 0.4)),
+            new MemoryData("user-1", "Rain", "", "", MAY_FIRST + 3600_000, "memory", Map.of("joy", -0.2)));
+
+        // Act
+        new EmotionAggregates(db).record(transaction, memories);
+
+        // Assert: both memories share the bucket, so it is read and written once.
+        ArgumentCaptor<Map<String, Object>> fieldsCaptor = ArgumentCaptor.forClass(Map.class);
+        verify(transaction, times(1)).set(eq(bucketRef), fieldsCaptor.capture());
+        Map<String, Object> fields = fieldsCaptor.getValue();
+        assertEquals(3L, fields.get("memoryCount"));
+
+        Map<String, Map<String, Object>> emotions = (Map<String, Map<String, Object>>) fields.get("emotions");
+        assertEquals(1.2, (Double) emotions.get("joy").get("sum"), 1e-9);
+        assertEquals(3L, emotions.get("joy").get("count"));
+        assertEquals(-0.2, (Double) emotions.get("joy").get("min"), 1e-9);
+        assertEquals(0.9, (Double) emotions.get("joy").get("max"), 1e-9);
+        assertEquals(1L, emotions.get("calm").get("count"));
+        // The user was already covered, so the marker is left alone.
+        verify(transaction, never()).set(eq(userDocument), anyMap(), any(SetOptions.class));
+    }
+
+    @Test
+    void record_marksWhenAUsersAggregatesStartedCovering() throws Exception {
+        // Arrange
+        when(db.collection("emotion_aggregates")).thenReturn(aggregatesCollection);
+        when(aggregatesCollection.document("user-1")).thenReturn(userDocument);
+        when(userDocument.collection("daily")).thenReturn(dailyCollection);
+        when(dailyCollection.document("2024-05-01")).thenReturn(bucketRef);
+        when(transaction.get(userDocument)).thenReturn(ApiFutures.immediateFuture(userSnapshot));
+        when(userSnapshot.getLong("coveredSince")).thenReturn(null);
+        when(transaction.get(bucketRef)).thenReturn(ApiFutures.immediateFuture(existingBucket));
+        long before = System.currentTimeMillis();
+
+        // Act
+        new EmotionAggregates(db).record(transaction,
+            List.of(new MemoryData("user-1", "Picnic", "", "", MAY_FIRST, "memory", Map.of("joy", 0.9))));
+
+        // Assert
+        ArgumentCaptor<Map<String, Object>> markerCaptor = ArgumentCaptor.forClass(Map.class);
+        verify(transaction).set(eq(userDocument), markerCaptor.capture(), any(SetOptions.class));
+        assertTrue((Long) markerCaptor.getValue().get("coveredSince") >= before);
+        verify(transaction).set(eq(bucketRef), anyMap());
+    }
+
+    @Test
+    void recentDays_isCompleteOnlyWhenCoverageStartedBeforeTheWindow() throws Exception {
+        // Arrange
+        when(db.collection("emotion_aggregates")).thenReturn(aggregatesCollection);
+        when(aggregatesCollection.document("user-1")).thenReturn(userDocument);
+        when(userDocument.collection("daily")).thenReturn(dailyCollection);
+        when(dailyCollection.document(anyString())).thenReturn(bucketRef);
+        when(existingBucket.exists()).thenReturn(false);
+        when(db.getAll(any(DocumentReference[].class))).thenReturn(
+            ApiFutures.immediateFuture(List.of(userSnapshot, existingBucket, existingBucket, existingBucket)));
+        long now = System.currentTimeMillis();
+        when(userSnapshot.getLong("coveredSince")).thenReturn(now - 4 * 86_400_000L, now - 2 * 86_400_000L, null);
+
+        EmotionAggregates aggregates = new EmotionAggregates(db);
+
+        // Act & Assert: a three-day window starts at most three days ago.
+        assertTrue(aggregates.recentDays("user-1", 3).complete());
+        assertFalse(aggregates.recentDays("user-1", 3).complete());
+        assertFalse(aggregates.recentDays("user-1", 3).complete());
+    }
+
+    @Test
+    void memoryTally_countsZeroScores_likeTheDailyBuckets() {
+        EmotionAggregates.MemoryTally tally = new EmotionAggregates.MemoryTally();
+        tally.accept(new MemoryData("user-1", "Quiet", "", "", MAY_FIRST, "memory", Map.of("joy", 0.0, "calm", 0.6)));
+        tally.accept(new MemoryData("user-1", "Sunny", "", "", MAY_FIRST, "memory", Map.of("Joy", 0.8)));
+
+        EmotionAggregates.Summary summary = tally.summary();
+
+        assertEquals(2, summary.memoryCount());
+        assertEquals(2, summary.emotions().get("joy").count());
+        assertEquals(0.4, summary.emotions().get("joy").mean(), 1e-9);
+        assertEquals(0.0, summary.emotions().get("joy").min(), 1e-9);
+    }
+
+    @Test
+    void summarize_combinesBucketsAcrossDays() {
+        EmotionAggregates.Summary summary = EmotionAggregates.summarize(List.of(
+            new EmotionAggregates.DailyBucket("2024-05-01", 2, Map.of(
+                "joy", new EmotionAggregates.EmotionStats(1.0, 2, 0.2, 0.8))),
+            new EmotionAggregates.DailyBucket("2024-05-02", 1, Map.of(
+                "joy", new EmotionAggregates.EmotionStats(-0.4, 1, -0.4, -0.4),
+                "calm", new EmotionAggregates.EmotionStats(0.6, 1, 0.6, 0.6)))));
+
+        assertEquals(3, summary.memoryCount());
+        assertEquals(0.2, summary.emotions().get("joy").mean(), 1e-9);
+        assertEquals(-0.4, summary.emotions().get("joy").min(), 1e-9);
+        assertEquals(0.3, summary.averageScore().getAsDouble(), 1e-9);
+        assertEquals("2024-05-01", EmotionAggregates.dayOf(MAY_FIRST));
+    }
+}
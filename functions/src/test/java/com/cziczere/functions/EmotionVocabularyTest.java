@@ -0,0 +1,49 @@
+package com.cziczere.functions;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class EmotionVocabularyTest {
+
+    @Test
+    void canonicalize_foldsCaseAndSynonyms_keepingTheStrongestScore() {
+        Map<String, Double> canonical = EmotionVocabulary.canonicalize(Map.of(
+            "Happiness", 0.4, "joy", 0.7, " Serenity ", 0.5, "bittersweet", 0.3));
+
+        assertEquals(Map.of("joy", 0.7, "calm", 0.5, "bittersweet", 0.3), canonical);
+        assertNull(EmotionVocabulary.canonicalize(null));
+    }
+
+    @Test
+    void sum_readsFirestoreNumbers_andPoolsUnknownNames() {
+        EmotionVocabulary.Sum sum = new EmotionVocabulary.Sum();
+        sum.add(Map.of("joy", 1L, "worry", 0.5, "bittersweet", 0.25, "note", "x"));
+        sum.add(null);
+
+        assertEquals(1.0, sum.sums[EmotionVocabulary.indexOf("joy")], 1e-6);
+        assertEquals(0.5, sum.sums[EmotionVocabulary.indexOf("anxiety")], 1e-6);
+        assertEquals(0.25, sum.unmappedSum, 1e-6);
+        assertEquals(1, sum.unmappedCount);
+    }
+
+    @Test
+    void sum_addsMapsIndexByIndex_countingZeroScores() {
+        EmotionVocabulary.Sum sum = new EmotionVocabulary.Sum();
+        for (Map<String, Double> emotions : List.of(Map.of("joy", 0.25), Map.of("happy", 0.75, "fear", 0.0))) {
+            sum.add(emotions);
+        }
+
+        int joy = EmotionVocabulary.indexOf("joy");
+        int fear = EmotionVocabulary.indexOf("fear");
+        assertEquals(1.0, sum.sums[joy], 1e-6);
+        assertEquals(2, sum.counts[joy]);
+        assertEquals(0.25, sum.mins[joy], 1e-6);
+        assertEquals(1, sum.counts[fear]);
+        assertEquals(0.0, sum.maxs[fear], 1e-6);
+    }
+}
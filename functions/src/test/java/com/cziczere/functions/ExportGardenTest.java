@@ -1,25 +1,54 @@
 package com.cziczere.functions;
 
+import com.google.api.core.ApiFutures;
+import com.google.cloud.Timestamp;
+import com.google.cloud.WriteChannel;
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
 import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.Precondition;
 import com.google.cloud.functions.HttpRequest;
 import com.google.cloud.functions.HttpResponse;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
 import com.google.gson.Gson;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyMap;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.*;
 
@@ -27,20 +56,34 @@ import static org.mockito.Mockito.*;
 class ExportGardenTest {
 
     @Mock private Firestore db;
+    @Mock private Storage storage;
+    @Mock private CollectionReference jobsCollection;
+    @Mock private DocumentReference jobRef;
+    @Mock private DocumentSnapshot jobSnapshot;
     @Mock private HttpRequest request;
     @Mock private HttpResponse response;
     @Mock private BufferedWriter bufferedWriter; // Mock the writer
+    @TempDir Path cacheDir;
+
+    // Gives each memory a document id of its own, in order.
+    private static ExportGarden.Garden gardenOf(List<MemoryData> memories) {
+        List<String> memoryIds = new ArrayList<>();
+        for (int i = 0; i < memories.size(); i++) {
+            memoryIds.add("memory-" + i);
+        }
+        return new ExportGarden.Garden(memoryIds, memories);
+    }
 
     @BeforeEach
     void setUp() throws Exception {
         // When getWriter() is called on the mocked response, return our mocked writer
-        when(response.getWriter()).thenReturn(bufferedWriter);
+        lenient().when(response.getWriter()).thenReturn(bufferedWriter);
     }
 
     @Test
     void service_shouldReturnPoster_whenMemoriesExist() throws Exception {
         // Arrange
-        ExportGarden exportGarden = spy(new ExportGarden(db));
+        ExportGarden exportGarden = spy(new ExportGarden(db, storage));
         String testUserId = "test-user-123";
         List<MemoryData> memories = List.of(
             new MemoryData(testUserId, "Test Memory", "p1", "url1", 1L, "memory", Collections.emptyMap())
@@ -50,8 +93,8 @@ class ExportGardenTest {
 
 
         doReturn(testUserId).when(exportGarden).getUserIdFromAuthToken(any());
-        doReturn(memories).when(exportGarden).getMemoriesForUser(testUserId);
-        doReturn(dummyImage).when(exportGarden).fetchImage(anyString());
+        doReturn(gardenOf(memories)).when(exportGarden).getGardenForUser(testUserId);
+        doReturn(dummyImage).when(exportGarden).fetchImage(anyString(), anyInt());
 
         // Act
         exportGarden.service(request, response);
@@ -68,12 +111,12 @@ class ExportGardenTest {
     @Test
     void service_shouldReturnNotFound_whenNoMemories() throws Exception {
         // Arrange
-        ExportGarden gardenExporter = spy(new ExportGarden(db));
+        ExportGarden gardenExporter = spy(new ExportGarden(db, storage));
         String testUserId = "test-user-123";
         ArgumentCaptor<String> captor = ArgumentCaptor.forClass(String.class);
 
         doReturn(testUserId).when(gardenExporter).getUserIdFromAuthToken(any());
-        doReturn(Collections.emptyList()).when(gardenExporter).getMemoriesForUser(testUserId);
+        doReturn(gardenOf(List.of())).when(gardenExporter).getGardenForUser(testUserId);
 
         // Act
         gardenExporter.service(request, response);
@@ -83,4 +126,382 @@ class ExportGardenTest {
         verify(bufferedWriter).write(captor.capture());
         assertTrue(captor.getValue().contains("No memories found"));
     }
+
+    @Test
+    void service_streamsBinaryPng_whenFormatIsPng() throws Exception {
+        // Arrange
+        ExportGarden exportGarden = spy(new ExportGarden(db, storage));
+        String testUserId = "test-user-123";
+        List<MemoryData> memories = List.of(
+            new MemoryData(testUserId, "Test Memory", "p1", "url1", 1L, "memory", Collections.emptyMap()));
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        when(request.getFirstQueryParameter("format")).thenReturn(Optional.of("png"));
+        when(response.getOutputStream()).thenReturn(body);
+        doReturn(testUserId).when(exportGarden).getUserIdFromAuthToken(any());
+        doReturn(gardenOf(memories)).when(exportGarden).getGardenForUser(testUserId);
+        doReturn(solid(Color.RED)).when(exportGarden).fetchImage(anyString(), anyInt());
+
+        // Act
+        exportGarden.service(request, response);
+
+        // Assert
+        verify(response).setContentType("image/png");
+        verify(response).setStatusCode(200, "OK");
+        verify(response, never()).getWriter();
+        BufferedImage poster = ImageIO.read(new ByteArrayInputStream(body.toByteArray()));
+        assertEquals(1240, poster.getWidth());
+        assertEquals(1754, poster.getHeight());
+    }
+
+    @Test
+    void service_rejectsLargePosters_outsideBinaryMode() throws Exception {
+        // Arrange
+        ExportGarden exportGarden = spy(new ExportGarden(db, storage));
+        ArgumentCaptor<String> captor = ArgumentCaptor.forClass(String.class);
+        when(request.getFirstQueryParameter(anyString())).thenReturn(Optional.empty());
+        when(request.getFirstQueryParameter("size")).thenReturn(Optional.of("A1"));
+        doReturn("test-user-123").when(exportGarden).getUserIdFromAuthToken(any());
+
+        // Act
+        exportGarden.service(request, response);
+
+        // Assert
+        verify(response).setStatusCode(400, "Bad Request");
+        verify(bufferedWriter).write(captor.capture());
+        assertTrue(captor.getValue().contains("format=png"));
+        verify(exportGarden, never()).getGardenForUser(anyString());
+    }
+
+    @Test
+    void service_jobMode_queuesAJob_andAnswersAccepted() throws Exception {
+        // Arrange
+        ExportGarden exportGarden = spy(new ExportGarden(db, storage));
+        List<MemoryData> memories = List.of(
+            new MemoryData("test-user-123", "Test Memory", "p1", "url1", 1L, "memory", Collections.emptyMap()));
+        ArgumentCaptor<String> captor = ArgumentCaptor.forClass(String.class);
+        when(request.getFirstQueryParameter(anyString())).thenReturn(Optional.empty());
+        when(request.getFirstQueryParameter("mode")).thenReturn(Optional.of("job"));
+        when(request.getFirstQueryParameter("size")).thenReturn(Optional.of("A2"));
+        when(db.collection(ExportGarden.JOBS_COLLECTION)).thenReturn(jobsCollection);
+        when(jobsCollection.document()).thenReturn(jobRef);
+        when(jobRef.getId()).thenReturn("job-1");
+        when(jobRef.set(anyMap())).thenReturn(ApiFutures.immediateFuture(null));
+        doReturn("test-user-123").when(exportGarden).getUserIdFromAuthToken(any());
+        doReturn(gardenOf(memories)).when(exportGarden).getGardenForUser("test-user-123");
+        doNothing().when(exportGarden).scheduleJob(any(), anyString(), any(), any());
+
+        // Act
+        exportGarden.service(request, response);
+
+        // Assert
+        verify(response).setStatusCode(202, "Accepted");
+        verify(bufferedWriter).write(captor.capture());
+        assertTrue(captor.getValue().contains("job-1"));
+        verify(exportGarden).scheduleJob(jobRef, "test-user-123",
+            new ExportGarden.PosterOptions(PosterRenderer.PaperSize.A2, 150), gardenOf(memories));
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Map<String, Object>> fields = ArgumentCaptor.forClass(Map.class);
+        verify(jobRef).set(fields.capture());
+        assertTrue(fields.getValue().get("expiresAt") instanceof Timestamp);
+    }
+
+    @Test
+    void runJob_uploadsThePosterToStorage_andCompletesTheJob() throws Exception {
+        // Arrange
+        ExportGarden exportGarden = spy(new ExportGarden(db, storage));
+        List<MemoryData> memories = List.of(
+            new MemoryData("test-user-123", "Test Memory", "p1", "url1", 1L, "memory", Collections.emptyMap()));
+        ByteArrayOutputStream uploaded = new ByteArrayOutputStream();
+        WriteChannel channel = mock(WriteChannel.class);
+        when(channel.write(any(ByteBuffer.class))).thenAnswer(invocation -> {
+            ByteBuffer buffer = invocation.getArgument(0);
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            uploaded.write(bytes);
+            return bytes.length;
+        });
+        when(storage.writer(any(BlobInfo.class))).thenReturn(channel);
+        when(jobRef.getId()).thenReturn("job-1");
+        when(jobRef.update(anyMap())).thenReturn(ApiFutures.immediateFuture(null));
+        doReturn(solid(Color.RED)).when(exportGarden).fetchImage(anyString(), anyInt());
+
+        // Act
+        exportGarden.runJob(jobRef, "test-user-123", new ExportGarden.PosterOptions(PosterRenderer.PaperSize.A4, 150), gardenOf(memories));
+
+        // Assert
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Map<String, Object>> updates = ArgumentCaptor.forClass(Map.class);
+        verify(jobRef, atLeast(3)).update(updates.capture());
+        Map<String, Object> last = updates.getValue();
+        assertEquals(ExportGarden.JOB_COMPLETED, last.get("status"));
+        String fingerprint = PosterResultCache.fingerprint(new ExportGarden.PosterOptions(PosterRenderer.PaperSize.A4, 150), gardenOf(memories));
+        assertTrue(((String) last.get("url")).endsWith("/exports/cache/test-user-123/" + fingerprint + ".png"));
+        BufferedImage poster = ImageIO.read(new ByteArrayInputStream(uploaded.toByteArray()));
+        assertEquals(1240, poster.getWidth());
+    }
+
+    @Test
+    void runJob_failsTheJob_withoutFinalizingAnUploadThatBrokePartway() throws Exception {
+        // Arrange
+        ExportGarden exportGarden = spy(new ExportGarden(db, storage));
+        List<MemoryData> memories = List.of(
+            new MemoryData("test-user-123", "Test Memory", "p1", "url1", 1L, "memory", Collections.emptyMap()));
+        WriteChannel channel = mock(WriteChannel.class);
+        when(channel.write(any(ByteBuffer.class))).thenThrow(new IOException("connection reset"));
+        when(storage.writer(any(BlobInfo.class))).thenReturn(channel);
+        when(jobRef.getId()).thenReturn("job-1");
+        when(jobRef.update(anyMap())).thenReturn(ApiFutures.immediateFuture(null));
+        doReturn(solid(Color.RED)).when(exportGarden).fetchImage(anyString(), anyInt());
+
+        // Act
+        exportGarden.runJob(jobRef, "test-user-123", new ExportGarden.PosterOptions(PosterRenderer.PaperSize.A4, 150), gardenOf(memories));
+
+        // Assert: closing the channel would store the truncated PNG under the poster's fingerprint.
+        verify(channel, never()).close();
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Map<String, Object>> updates = ArgumentCaptor.forClass(Map.class);
+        verify(jobRef, atLeast(1)).update(updates.capture());
+        assertEquals(ExportGarden.JOB_FAILED, updates.getValue().get("status"));
+    }
+
+    @Test
+    void service_jobStatus_hidesOtherUsersJobs() throws Exception {
+        // Arrange
+        ExportGarden exportGarden = spy(new ExportGarden(db, storage));
+        ArgumentCaptor<String> captor = ArgumentCaptor.forClass(String.class);
+        when(request.getFirstQueryParameter(anyString())).thenReturn(Optional.empty());
+        when(request.getFirstQueryParameter("jobId")).thenReturn(Optional.of("job-1"));
+        when(db.collection(ExportGarden.JOBS_COLLECTION)).thenReturn(jobsCollection);
+        when(jobsCollection.document("job-1")).thenReturn(jobRef);
+        when(jobRef.get()).thenReturn(ApiFutures.immediateFuture(jobSnapshot));
+        when(jobSnapshot.exists()).thenReturn(true);
+        when(jobSnapshot.getString("userId")).thenReturn("someone-else");
+        doReturn("test-user-123").when(exportGarden).getUserIdFromAuthToken(any());
+
+        // Act
+        exportGarden.service(request, response);
+
+        // Assert
+        verify(response).setStatusCode(404, "Not Found");
+        verify(bufferedWriter).write(captor.capture());
+        assertTrue(captor.getValue().contains("Export job not found"));
+    }
+
+    @Test
+    void service_jobStatus_reportsAJobWithoutHeartbeatAsFailed() throws Exception {
+        // Arrange
+        ExportGarden exportGarden = spy(new ExportGarden(db, storage));
+        ArgumentCaptor<String> captor = ArgumentCaptor.forClass(String.class);
+        when(request.getFirstQueryParameter(anyString())).thenReturn(Optional.empty());
+        when(request.getFirstQueryParameter("jobId")).thenReturn(Optional.of("job-1"));
+        when(db.collection(ExportGarden.JOBS_COLLECTION)).thenReturn(jobsCollection);
+        when(jobsCollection.document("job-1")).thenReturn(jobRef);
+        when(jobRef.get()).thenReturn(ApiFutures.immediateFuture(jobSnapshot));
+        when(jobSnapshot.exists()).thenReturn(true);
+        when(jobSnapshot.getString("userId")).thenReturn("test-user-123");
+        when(jobSnapshot.getString("status")).thenReturn(ExportGarden.JOB_RENDERING);
+        when(jobSnapshot.getLong("updatedAt")).thenReturn(System.currentTimeMillis() - 3_600_000L);
+        when(jobRef.update(anyMap(), any(Precondition.class))).thenReturn(ApiFutures.immediateFuture(null));
+        doReturn("test-user-123").when(exportGarden).getUserIdFromAuthToken(any());
+
+        // Act
+        exportGarden.service(request, response);
+
+        // Assert
+        verify(response).setStatusCode(200, "OK");
+        verify(bufferedWriter).write(captor.capture());
+        ExportGarden.ExportJobStatus status = new Gson().fromJson(captor.getValue(), ExportGarden.ExportJobStatus.class);
+        assertEquals(ExportGarden.JOB_FAILED, status.status());
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Map<String, Object>> update = ArgumentCaptor.forClass(Map.class);
+        verify(jobRef).update(update.capture(), any(Precondition.class));
+        assertEquals(ExportGarden.JOB_FAILED, update.getValue().get("status"));
+    }
+
+    @Test
+    void service_neverStoresAPosterWithPlaceholdersForFailedDownloads() throws Exception {
+        // Arrange
+        ExportGarden exportGarden = spy(new ExportGarden(db, storage));
+        List<MemoryData> memories = List.of(
+            new MemoryData("test-user-123", "a", "p", "red", 1L, "memory", Collections.emptyMap()),
+            new MemoryData("test-user-123", "b", "p", "broken", 2L, "memory", Collections.emptyMap()));
+        doReturn("test-user-123").when(exportGarden).getUserIdFromAuthToken(any());
+        doReturn(gardenOf(memories)).when(exportGarden).getGardenForUser("test-user-123");
+        doReturn(solid(Color.RED)).when(exportGarden).fetchImage(eq("red"), anyInt());
+        doThrow(new IOException("timed out")).when(exportGarden).fetchImage(eq("broken"), anyInt());
+
+        // Act
+        exportGarden.service(request, response);
+
+        // Assert: the user gets the poster, but the fingerprint of the real images does not.
+        verify(response).setStatusCode(200, "OK");
+        verify(storage, never()).create(any(BlobInfo.class), any(byte[].class));
+        verify(storage, never()).writer(any(BlobInfo.class));
+    }
+
+    @Test
+    void runJob_uploadsAPosterWithPlaceholders_outsideTheResultCache() throws Exception {
+        // Arrange
+        ExportGarden exportGarden = spy(new ExportGarden(db, storage));
+        List<MemoryData> memories = List.of(
+            new MemoryData("test-user-123", "Test Memory", "p1", "broken", 1L, "memory", Collections.emptyMap()));
+        WriteChannel channel = mock(WriteChannel.class);
+        when(channel.write(any(ByteBuffer.class))).thenAnswer(invocation -> {
+            ByteBuffer buffer = invocation.getArgument(0);
+            int length = buffer.remaining();
+            buffer.position(buffer.limit());
+            return length;
+        });
+        when(storage.writer(any(BlobInfo.class))).thenReturn(channel);
+        when(jobRef.getId()).thenReturn("job-1");
+        when(jobRef.update(anyMap())).thenReturn(ApiFutures.immediateFuture(null));
+        doThrow(new IOException("timed out")).when(exportGarden).fetchImage(anyString(), anyInt());
+
+        // Act
+        exportGarden.runJob(jobRef, "test-user-123", new ExportGarden.PosterOptions(PosterRenderer.PaperSize.A4, 150), gardenOf(memories));
+
+        // Assert
+        ArgumentCaptor<BlobInfo> blob = ArgumentCaptor.forClass(BlobInfo.class);
+        verify(storage).writer(blob.capture());
+        assertEquals("exports/jobs/test-user-123/job-1.png", blob.getValue().getName());
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Map<String, Object>> updates = ArgumentCaptor.forClass(Map.class);
+        verify(jobRef, atLeast(3)).update(updates.capture());
+        assertEquals(ExportGarden.JOB_COMPLETED, updates.getValue().get("status"));
+        assertTrue(((String) updates.getValue().get("url")).endsWith("/exports/jobs/test-user-123/job-1.png"));
+    }
+
+    @Test
+    void service_servesAStoredPoster_withoutRendering() throws Exception {
+        // Arrange
+        ExportGarden exportGarden = spy(new ExportGarden(db, storage));
+        List<MemoryData> memories = List.of(
+            new MemoryData("test-user-123", "Test Memory", "p1", "url1", 1L, "memory", Collections.emptyMap()));
+        byte[] stored = {1, 2, 3};
+        ArgumentCaptor<String> captor = ArgumentCaptor.forClass(String.class);
+        when(storage.get(any(BlobId.class))).thenReturn(mock(Blob.class));
+        when(storage.readAllBytes(any(BlobId.class))).thenReturn(stored);
+        doReturn("test-user-123").when(exportGarden).getUserIdFromAuthToken(any());
+        doReturn(gardenOf(memories)).when(exportGarden).getGardenForUser("test-user-123");
+
+        // Act
+        exportGarden.service(request, response);
+
+        // Assert
+        verify(response).setStatusCode(200, "OK");
+        verify(bufferedWriter).write(captor.capture());
+        ExportGarden.PosterResponse posterResponse = new Gson().fromJson(captor.getValue(), ExportGarden.PosterResponse.class);
+        assertEquals(Base64.getEncoder().encodeToString(stored), posterResponse.base64Image());
+        verify(exportGarden, never()).fetchImage(anyString(), anyInt());
+    }
+
+    @Test
+    void createPoster_extendsACachedPoster_drawingOnlyTheNewMemories() throws Exception {
+        // Arrange
+        ExportGarden exportGarden = spy(new ExportGarden(db, storage));
+        List<MemoryData> memories = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            memories.add(new MemoryData("test-user-123", "m" + i, "p", "url" + i, i, "memory", Collections.emptyMap()));
+        }
+        // Three and four memories share a 2x2 grid, so the first three cells are already drawn.
+        doReturn(solid(Color.RED)).when(exportGarden).fetchImage(anyString(), anyInt());
+        BufferedImage previous = exportGarden.createPoster(memories.subList(0, 3)).image();
+        ByteArrayOutputStream previousPng = new ByteArrayOutputStream();
+        ImageIO.write(previous, "png", previousPng);
+        String prefixBlob = "exports/cache/test-user-123/"
+            + PosterResultCache.fingerprint(ExportGarden.DEFAULT_OPTIONS, gardenOf(memories).head(3)) + ".png";
+        when(storage.get(any(BlobId.class))).thenAnswer(invocation ->
+            prefixBlob.equals(((BlobId) invocation.getArgument(0)).getName()) ? mock(Blob.class) : null);
+        when(storage.readAllBytes(any(BlobId.class))).thenReturn(previousPng.toByteArray());
+        doReturn(solid(Color.BLUE)).when(exportGarden).fetchImage(eq("url3"), anyInt());
+        clearInvocations(exportGarden);
+
+        // Act
+        ExportGarden.RenderedPoster rendered = exportGarden.createPoster("test-user-123", gardenOf(memories));
+
+        // Assert
+        verify(exportGarden, times(1)).fetchImage(anyString(), anyInt());
+        assertTrue(rendered.complete());
+        BufferedImage poster = rendered.image();
+        PosterRenderer renderer = new PosterRenderer(PosterRenderer.PaperSize.A4, 150, 4);
+        PosterRenderer.Cell first = renderer.cells().get(0);
+        PosterRenderer.Cell last = renderer.cells().get(3);
+        assertEquals(Color.RED.getRGB(), poster.getRGB(first.x() + first.size() / 2, first.y() + first.size() / 2));
+        assertEquals(Color.BLUE.getRGB(), poster.getRGB(last.x() + last.size() / 2, last.y() + last.size() / 2));
+    }
+
+    @Test
+    void createPoster_drawsInGridOrder_withPlaceholdersForFailedAndLateImages() throws Exception {
+        // Arrange
+        ExportGarden exportGarden = spy(new ExportGarden(db, storage, 300, new PosterImageCache(cacheDir, 1_000_000, 1_000_000)));
+        List<MemoryData> memories = List.of(
+            new MemoryData("u", "a", "p", "red", 1L, "memory", Collections.emptyMap()),
+            new MemoryData("u", "b", "p", "slow", 2L, "memory", Collections.emptyMap()),
+            new MemoryData("u", "c", "p", "broken", 3L, "memory", Collections.emptyMap()),
+            new MemoryData("u", "d", "p", "blue", 4L, "memory", Collections.emptyMap()));
+        doReturn(solid(Color.RED)).when(exportGarden).fetchImage(eq("red"), anyInt());
+        doReturn(solid(Color.BLUE)).when(exportGarden).fetchImage(eq("blue"), anyInt());
+        doThrow(new IOException("404")).when(exportGarden).fetchImage(eq("broken"), anyInt());
+        doAnswer(invocation -> {
+            Thread.sleep(5_000);
+            return solid(Color.GREEN);
+        }).when(exportGarden).fetchImage(eq("slow"), anyInt());
+
+        // Act
+        long start = System.nanoTime();
+        ExportGarden.RenderedPoster rendered = exportGarden.createPoster(memories);
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        // Assert
+        assertTrue(elapsedMillis < 3_000, "the slow image must not hold up the poster");
+        assertFalse(rendered.complete());
+        BufferedImage poster = rendered.image();
+        List<PosterRenderer.Cell> cells = new PosterRenderer(PosterRenderer.PaperSize.A4, 150, 4).cells();
+        assertEquals(Color.RED.getRGB(), centerOf(poster, cells.get(0)));
+        assertEquals(centerOf(poster, cells.get(1)), centerOf(poster, cells.get(2)));
+        assertNotEquals(Color.WHITE.getRGB(), centerOf(poster, cells.get(1)));
+        assertEquals(Color.BLUE.getRGB(), centerOf(poster, cells.get(3)));
+    }
+
+    @Test
+    void fetchImage_subsamplesLargeSourcesDownToTheCell() throws Exception {
+        // Arrange
+        BufferedImage source = new BufferedImage(1024, 768, BufferedImage.TYPE_INT_RGB);
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(source, "png", png);
+        String dataUrl = "data:image/png;base64," + Base64.getEncoder().encodeToString(png.toByteArray());
+
+        // Act
+        BufferedImage decoded = new ExportGarden(db, storage).fetchImage(dataUrl, 100);
+
+        // Assert: every 7th pixel is read, which keeps the shorter side at or above the cell size.
+        assertEquals(147, decoded.getWidth());
+        assertEquals(110, decoded.getHeight());
+    }
+
+    @Test
+    void sourceUrlFor_prefersTheSmallestRenditionThatCoversTheCell() {
+        MemoryData memory = new MemoryData("u", "t", "p", "original.png", 1L, "memory", Collections.emptyMap(),
+            MemoryData.IMAGE_STATUS_READY, "thumb.jpg", "medium.jpg");
+        MemoryData legacy = new MemoryData("u", "t", "p", "original.png", 1L, "memory", Collections.emptyMap());
+
+        assertEquals("thumb.jpg", ExportGarden.sourceUrlFor(memory, 64));
+        assertEquals("medium.jpg", ExportGarden.sourceUrlFor(memory, 178));
+        assertEquals("original.png", ExportGarden.sourceUrlFor(memory, 1090));
+        assertEquals("original.png", ExportGarden.sourceUrlFor(legacy, 64));
+    }
+
+    private static BufferedImage solid(Color color) {
+        BufferedImage image = new BufferedImage(10, 10, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(color);
+        g.fillRect(0, 0, 10, 10);
+        g.dispose();
+        return image;
+    }
+
+    private static int centerOf(BufferedImage poster, PosterRenderer.Cell cell) {
+        return poster.getRGB(cell.x() + cell.size() / 2, cell.y() + cell.size() / 2);
+    }
 }
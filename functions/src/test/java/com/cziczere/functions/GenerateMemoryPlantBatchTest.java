@@ -0,0 +1,149 @@
+package com.cziczere.functions;
+
+import com.google.cloud.functions.HttpRequest;
+import com.google.cloud.functions.HttpResponse;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class GenerateMemoryPlantBatchTest {
+
+    @Mock private GenerateMemoryPlant planter;
+    @Mock private HttpRequest request;
+    @Mock private HttpResponse response;
+
+    private StringWriter responseWriter;
+    private GenerateMemoryPlantBatch function;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        responseWriter = new StringWriter();
+        // Tests that call plantAll directly never touch the response.
+        lenient().when(response.getWriter()).thenReturn(new BufferedWriter(responseWriter));
+        lenient().when(planter.getUserIdFromAuthToken(request)).thenReturn("test-user-id");
+        function = new GenerateMemoryPlantBatch(planter);
+    }
+
+    @Test
+    void service_plantsEveryEntry_andStreamsProgress() throws Exception {
+        // Arrange
+        String json = "{\"entries\":[{\"text\":\"First day\"},{\"text\":\"Second day\"},{\"text\":\"\"}]}";
+        when(request.getReader()).thenReturn(new BufferedReader(new StringReader(json)));
+        when(planter.generateAnalysisWithGemini(anyString()))
+            .thenAnswer(invocation -> new GenerateMemoryPlant.GeminiResponse("prompt for " + invocation.getArgument(0), null));
+        when(planter.generateImageWithImagen(anyString(), anyBoolean())).thenReturn(new GenerateMemoryPlant.PlantImage("http://fake.url/image.png", null, null));
+
+        // Act
+        function.service(request, response);
+
+        // Assert
+        verify(response).setStatusCode(200, "OK");
+        verify(planter).storeMemories(argThat(memories -> memories.size() == 2));
+
+        String[] lines = responseWriter.toString().trim().split("\n");
+        assertEquals(4, lines.length);
+        assertTrue(lines[0].contains("\"index\":2") && lines[0].contains("\"failed\""));
+        assertTrue(lines[3].contains("\"planted\":2") && lines[3].contains("\"failed\":1"));
+    }
+
+    @Test
+    void service_reportsFailedEntries_withoutAbortingTheBatch() throws Exception {
+        // Arrange
+        String json = "{\"entries\":[{\"text\":\"Good\"},{\"text\":\"Bad\"}]}";
+        when(request.getReader()).thenReturn(new BufferedReader(new StringReader(json)));
+        when(planter.generateAnalysisWithGemini(anyString()))
+            .thenAnswer(invocation -> new GenerateMemoryPlant.GeminiResponse((String) invocation.getArgument(0), null));
+        when(planter.generateImageWithImagen("Good", true)).thenReturn(new GenerateMemoryPlant.PlantImage("http://fake.url/image.png", null, null));
+        when(planter.generateImageWithImagen("Bad", true)).thenThrow(new IOException("Imagen quota exceeded"));
+
+        // Act
+        function.service(request, response);
+
+        // Assert
+        verify(planter).storeMemories(argThat(memories -> memories.size() == 1));
+        assertTrue(responseWriter.toString().contains("\"planted\":1,\"failed\":1"));
+    }
+
+    @Test
+    void plantAll_reportsAnEntryWhoseTaskDiesUnexpectedly_andFinishesTheBatch() throws Exception {
+        // Arrange
+        List<RequestData> entries = List.of(new RequestData("Good"), new RequestData("Doomed"));
+        when(planter.generateAnalysisWithGemini("Good")).thenReturn(new GenerateMemoryPlant.GeminiResponse("Good", null));
+        when(planter.generateAnalysisWithGemini("Doomed")).thenThrow(new StackOverflowError());
+        when(planter.generateImageWithImagen("Good", true)).thenReturn(new GenerateMemoryPlant.PlantImage("http://fake.url/image.png", null, null));
+
+        // Act
+        function.plantAll("test-user-id", entries, new BufferedWriter(responseWriter), System.nanoTime() + 60_000_000_000L);
+
+        // Assert
+        verify(planter).storeMemories(argThat(memories -> memories.size() == 1));
+        String output = responseWriter.toString();
+        assertTrue(output.contains("\"index\":1,\"status\":\"failed\""));
+        assertTrue(output.contains("\"done\":true,\"planted\":1,\"failed\":1,\"skipped\":0"));
+    }
+
+    @Test
+    void plantAll_pastTheDeadline_startsNothing_andReportsEntriesAsSkipped() throws Exception {
+        // Arrange
+        List<RequestData> entries = List.of(new RequestData("First day"), new RequestData("Second day"));
+        BufferedWriter writer = new BufferedWriter(responseWriter);
+
+        // Act
+        function.plantAll("test-user-id", entries, writer, System.nanoTime() - 1);
+
+        // Assert
+        verify(planter, never()).generateAnalysisWithGemini(anyString());
+        String[] lines = responseWriter.toString().trim().split("\n");
+        assertEquals(3, lines.length);
+        assertTrue(lines[0].contains("\"index\":0") && lines[0].contains("\"skipped\""));
+        assertTrue(lines[2].contains("\"done\":false") && lines[2].contains("\"skipped\":2"));
+    }
+
+    @Test
+    void plantAll_stopsStartingEntries_onceTheClientHasDisconnected() throws Exception {
+        // Arrange
+        List<RequestData> entries = List.of(new RequestData(""), new RequestData("First day"));
+        BufferedWriter disconnected = new BufferedWriter(new StringWriter()) {
+            @Override
+            public void flush() throws IOException {
+                throw new IOException("Broken pipe");
+            }
+        };
+
+        // Act
+        function.plantAll("test-user-id", entries, disconnected, System.nanoTime() + 60_000_000_000L);
+
+        // Assert
+        verify(planter, never()).generateAnalysisWithGemini(anyString());
+        verify(planter, never()).storeMemories(anyList());
+    }
+
+    @Test
+    void service_emptyEntries_returns400() throws Exception {
+        // Arrange
+        when(request.getReader()).thenReturn(new BufferedReader(new StringReader("{\"entries\":[]}")));
+
+        // Act
+        function.service(request, response);
+
+        // Assert
+        verify(response).setStatusCode(400, "Bad Request: 'entries' field is required and cannot be empty.");
+        verify(planter, never()).storeMemories(anyList());
+    }
+}
@@ -1,24 +1,45 @@
 package com.cziczere.functions;
 
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentReference;
 import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.SetOptions;
+import com.google.cloud.firestore.Transaction;
+import com.google.cloud.firestore.WriteResult;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
 import com.google.cloud.storage.Storage;
 import com.google.cloud.vertexai.VertexAI;
 import com.google.cloud.functions.HttpRequest;
 import com.google.cloud.functions.HttpResponse;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.BufferedWriter;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
 
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseToken;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.*;
 
 class GenerateMemoryPlantTest {
@@ -30,9 +51,31 @@ class GenerateMemoryPlantTest {
     @Mock private HttpRequest request;
     @Mock private HttpResponse response;
     @Mock private FirebaseToken decodedToken;
+    @Mock private CollectionReference memoriesCollection;
+    @Mock private DocumentReference memoryRef;
+    @Mock private CollectionReference usersCollection;
+    @Mock private DocumentReference userRef;
+    @Mock private ApiFuture<WriteResult> writeFuture;
+    @Mock private PredictionClientProvider predictionClientProvider;
+    @Mock private IdempotencyStore idempotencyStore;
+    @Mock private EmotionAggregates emotionAggregates;
+    @Mock private Transaction transaction;
 
     private GenerateMemoryPlant function;
 
+    private GenerateMemoryPlant functionWithMockedAggregates() {
+        return new GenerateMemoryPlant(db, vertexAI, storage, firebaseAuth, predictionClientProvider, idempotencyStore,
+            emotionAggregates);
+    }
+
+    // Runs transaction functions against the mocked transaction, as Firestore would on its first attempt.
+    private void runTransactionsInline() {
+        doAnswer(invocation -> {
+            Transaction.Function<?> transactionFunction = invocation.getArgument(0);
+            return ApiFutures.immediateFuture(transactionFunction.updateCallback(transaction));
+        }).when(db).runTransaction(any());
+    }
+
     @BeforeEach
     void setUp() throws Exception {
         MockitoAnnotations.openMocks(this);
@@ -92,7 +135,7 @@ class GenerateMemoryPlantTest {
         GenerateMemoryPlant.GeminiResponse fakeGeminiResponse = new GenerateMemoryPlant.GeminiResponse("a painting of a beautiful day", null);
 
         doReturn(fakeGeminiResponse).when(spyFunction).generateAnalysisWithGemini(anyString());
-        doReturn("http://fake.url/image.png").when(spyFunction).generateImageWithImagen(anyString());
+        doReturn(new GenerateMemoryPlant.PlantImage("http://fake.url/image.png", null, null)).when(spyFunction).generateImageWithImagen(anyString(), anyBoolean());
         doNothing().when(spyFunction).saveToFirestore(any());
 
         // When
@@ -118,7 +161,7 @@ class GenerateMemoryPlantTest {
         GenerateMemoryPlant spyFunction = spy(function);
 
         doThrow(new IOException("Gemini is down")).when(spyFunction).generateAnalysisWithGemini(anyString());
-        doReturn("http://fake.url/image.png").when(spyFunction).generateImageWithImagen(anyString());
+        doReturn(new GenerateMemoryPlant.PlantImage("http://fake.url/image.png", null, null)).when(spyFunction).generateImageWithImagen(anyString(), anyBoolean());
         doNothing().when(spyFunction).saveToFirestore(any());
 
         // When
@@ -128,4 +171,249 @@ class GenerateMemoryPlantTest {
         verify(response).setStatusCode(500, "Internal Server Error.");
         // We can also verify that the fallback prompt was used, but for now, just checking the status is enough.
     }
+
+    @Test
+    void testService_asyncMode_persistsPendingMemoryAndReturns202() throws Exception {
+        // Given
+        String json = "{\"text\":\"A beautiful day\"}";
+        BufferedReader reader = new BufferedReader(new StringReader(json));
+        StringWriter stringWriter = new StringWriter();
+        BufferedWriter writer = new BufferedWriter(stringWriter);
+
+        when(request.getReader()).thenReturn(reader);
+        when(request.getFirstHeader("Authorization")).thenReturn(Optional.of("Bearer fake-token"));
+        when(request.getFirstQueryParameter("mode")).thenReturn(Optional.of("async"));
+        when(response.getWriter()).thenReturn(writer);
+        when(db.collection("memories")).thenReturn(memoriesCollection);
+        when(memoriesCollection.document()).thenReturn(memoryRef);
+        when(memoryRef.getId()).thenReturn("memory-123");
+        when(db.collection("users")).thenReturn(usersCollection);
+        when(usersCollection.document("fake-user-id")).thenReturn(userRef);
+        runTransactionsInline();
+
+        GenerateMemoryPlant spyFunction = spy(function);
+        doNothing().when(spyFunction).scheduleBloom(any(), any(), anyBoolean());
+
+        // When
+        spyFunction.service(request, response);
+
+        // Then: the memory and its change marker are written together.
+        verify(response).setStatusCode(202, "Accepted");
+        verify(transaction).set(eq(userRef), argThat(fields -> fields.containsKey(InsightCache.MEMORIES_CHANGED_AT)), any(SetOptions.class));
+        ArgumentCaptor<MemoryData> memoryCaptor = ArgumentCaptor.forClass(MemoryData.class);
+        verify(transaction).create(eq(memoryRef), memoryCaptor.capture());
+        assertEquals(MemoryData.IMAGE_STATUS_PENDING, memoryCaptor.getValue().imageStatus());
+        verify(spyFunction).scheduleBloom(memoryRef, memoryCaptor.getValue(), true);
+        verify(spyFunction, never()).generateAnalysisWithGemini(anyString());
+        assertTrue(stringWriter.toString().contains("memory-123"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testCompleteBloom_updatesDocumentAndAggregatesInOneTransaction() throws Exception {
+        // Given
+        GenerateMemoryPlant spyFunction = spy(functionWithMockedAggregates());
+        GenerateMemoryPlant.GeminiResponse fakeGeminiResponse =
+            new GenerateMemoryPlant.GeminiResponse("a painting of a beautiful day", Map.of("joy", 0.9));
+        doReturn(fakeGeminiResponse).when(spyFunction).generateAnalysisWithGemini(anyString());
+        doReturn(new GenerateMemoryPlant.PlantImage("http://fake.url/image.png", null, null)).when(spyFunction).generateImageWithImagen(anyString(), anyBoolean());
+        when(db.collection("users")).thenReturn(usersCollection);
+        when(usersCollection.document("fake-user-id")).thenReturn(userRef);
+        runTransactionsInline();
+        MemoryData pendingMemory = new MemoryData("fake-user-id", "A beautiful day", null, null, 1234L, "memory",
+            Collections.emptyMap(), MemoryData.IMAGE_STATUS_PENDING, null, null);
+
+        // When
+        spyFunction.completeBloom(memoryRef, pendingMemory, true);
+
+        // Then
+        ArgumentCaptor<Map<String, Object>> updateCaptor = ArgumentCaptor.forClass(Map.class);
+        verify(transaction).update(eq(memoryRef), updateCaptor.capture());
+        assertEquals("http://fake.url/image.png", updateCaptor.getValue().get("imageUrl"));
+        assertEquals(MemoryData.IMAGE_STATUS_READY, updateCaptor.getValue().get("imageStatus"));
+
+        ArgumentCaptor<List<MemoryData>> bloomedCaptor = ArgumentCaptor.forClass(List.class);
+        verify(emotionAggregates).record(eq(transaction), bloomedCaptor.capture());
+        assertEquals(Map.of("joy", 0.9), bloomedCaptor.getValue().get(0).emotions());
+        assertEquals(1234L, bloomedCaptor.getValue().get(0).timestamp());
+        verify(transaction).set(eq(userRef), anyMap(), any(SetOptions.class));
+        verify(memoryRef, never()).update(anyMap());
+    }
+
+    @Test
+    void testSaveToFirestore_createsTheMemoryWithItsAggregatesAndChangeMarkerInOneTransaction() throws Exception {
+        // Given
+        GenerateMemoryPlant planter = functionWithMockedAggregates();
+        when(db.collection("memories")).thenReturn(memoriesCollection);
+        when(memoriesCollection.document()).thenReturn(memoryRef);
+        when(db.collection("users")).thenReturn(usersCollection);
+        when(usersCollection.document("fake-user-id")).thenReturn(userRef);
+        runTransactionsInline();
+        MemoryData memory = new MemoryData("fake-user-id", "A beautiful day", "prompt", "http://fake.url/image.png",
+            1234L, "memory", Map.of("joy", 0.9));
+
+        // When
+        planter.saveToFirestore(memory);
+
+        // Then
+        verify(emotionAggregates).record(transaction, List.of(memory));
+        verify(transaction).create(memoryRef, memory);
+        verify(transaction).set(eq(userRef), argThat(fields -> fields.containsKey(InsightCache.MEMORIES_CHANGED_AT)), any(SetOptions.class));
+    }
+
+    @Test
+    void testStoreMemories_failedAggregateUpdate_leavesNoChangeMarker() throws Exception {
+        // Given
+        GenerateMemoryPlant planter = functionWithMockedAggregates();
+        when(db.collection("memories")).thenReturn(memoriesCollection);
+        when(memoriesCollection.document()).thenReturn(memoryRef);
+        runTransactionsInline();
+        MemoryData memory = new MemoryData("fake-user-id", "A beautiful day", "prompt", "http://fake.url/image.png",
+            1234L, "memory", Map.of("joy", 0.9));
+        doThrow(new ExecutionException(new RuntimeException("contention"))).when(emotionAggregates).record(any(), anyList());
+
+        // When / Then: caches must not be told about memories whose aggregates were not updated.
+        assertThrows(ExecutionException.class, () -> planter.storeMemories(List.of(memory)));
+        verify(transaction, never()).create(any(DocumentReference.class), any());
+        verify(transaction, never()).set(any(DocumentReference.class), anyMap(), any(SetOptions.class));
+    }
+
+    @Test
+    void testService_repeatedIdempotencyKey_replaysStoredResponse() throws Exception {
+        // Given
+        String json = "{\"text\":\"A beautiful day\"}";
+        BufferedReader reader = new BufferedReader(new StringReader(json));
+        StringWriter stringWriter = new StringWriter();
+        BufferedWriter writer = new BufferedWriter(stringWriter);
+
+        when(request.getReader()).thenReturn(reader);
+        when(request.getFirstHeader("Authorization")).thenReturn(Optional.of("Bearer fake-token"));
+        when(request.getFirstHeader("Idempotency-Key")).thenReturn(Optional.of("retry-key-1"));
+        when(response.getWriter()).thenReturn(writer);
+        when(idempotencyStore.begin(eq("fake-user-id"), eq("retry-key-1"), anyString()))
+            .thenReturn(Optional.of(new IdempotencyStore.StoredResponse(200, "OK", "{\"userText\":\"A beautiful day\"}")));
+
+        GenerateMemoryPlant spyFunction = spy(new GenerateMemoryPlant(db, vertexAI, storage, firebaseAuth, predictionClientProvider, idempotencyStore, emotionAggregates));
+
+        // When
+        spyFunction.service(request, response);
+
+        // Then
+        verify(response).setStatusCode(200, "OK");
+        verify(response).appendHeader("Idempotent-Replayed", "true");
+        verify(spyFunction, never()).generateAnalysisWithGemini(anyString());
+        verify(spyFunction, never()).generateImageWithImagen(anyString(), anyBoolean());
+        assertTrue(stringWriter.toString().contains("A beautiful day"));
+    }
+
+    @Test
+    void testService_newIdempotencyKey_storesResponse_andReleasesKeyOnFailure() throws Exception {
+        // Given
+        String json = "{\"text\":\"A beautiful day\"}";
+        when(request.getReader()).thenReturn(new BufferedReader(new StringReader(json)));
+        when(request.getFirstHeader("Authorization")).thenReturn(Optional.of("Bearer fake-token"));
+        when(request.getFirstHeader("Idempotency-Key")).thenReturn(Optional.of("retry-key-2"));
+        when(response.getWriter()).thenReturn(new BufferedWriter(new StringWriter()));
+        when(idempotencyStore.begin(eq("fake-user-id"), eq("retry-key-2"), anyString())).thenReturn(Optional.empty());
+
+        GenerateMemoryPlant spyFunction = spy(new GenerateMemoryPlant(db, vertexAI, storage, firebaseAuth, predictionClientProvider, idempotencyStore, emotionAggregates));
+        doReturn(new GenerateMemoryPlant.GeminiResponse("a painting of a beautiful day", null)).when(spyFunction).generateAnalysisWithGemini(anyString());
+        doThrow(new IOException("Imagen is down")).when(spyFunction).generateImageWithImagen(anyString(), anyBoolean());
+
+        // When
+        spyFunction.service(request, response);
+
+        // Then
+        verify(response).setStatusCode(500, "Internal Server Error.");
+        verify(idempotencyStore).abandon("fake-user-id", "retry-key-2");
+        verify(idempotencyStore, never()).complete(anyString(), anyString(), any());
+    }
+
+    @Test
+    void testService_failureToStoreTheResponse_keepsTheKeyAndStillAnswersWithTheMemory() throws Exception {
+        // Given
+        String json = "{\"text\":\"A beautiful day\"}";
+        StringWriter stringWriter = new StringWriter();
+        when(request.getReader()).thenReturn(new BufferedReader(new StringReader(json)));
+        when(request.getFirstHeader("Authorization")).thenReturn(Optional.of("Bearer fake-token"));
+        when(request.getFirstHeader("Idempotency-Key")).thenReturn(Optional.of("retry-key-4"));
+        when(response.getWriter()).thenReturn(new BufferedWriter(stringWriter));
+        when(idempotencyStore.begin(eq("fake-user-id"), eq("retry-key-4"), anyString())).thenReturn(Optional.empty());
+        doThrow(new ExecutionException(new IllegalStateException("deadline exceeded")))
+            .when(idempotencyStore).complete(eq("fake-user-id"), eq("retry-key-4"), any());
+
+        GenerateMemoryPlant spyFunction = spy(new GenerateMemoryPlant(db, vertexAI, storage, firebaseAuth, predictionClientProvider, idempotencyStore, emotionAggregates));
+        doReturn(new IdempotencyStore.StoredResponse(200, "OK", "{\"userText\":\"A beautiful day\"}"))
+            .when(spyFunction).plant(any(), eq("fake-user-id"), any());
+
+        // When
+        spyFunction.service(request, response);
+
+        // Then: releasing the key would let a retry plant the memory a second time.
+        verify(response).setStatusCode(200, "OK");
+        verify(idempotencyStore, never()).abandon(anyString(), anyString());
+        assertTrue(stringWriter.toString().contains("A beautiful day"));
+    }
+
+    @Test
+    void testCachedImage_regeneratesMissingRenditionsFromTheOriginal() throws Exception {
+        // Given: a cache entry from before renditions existed, with only its thumbnail added since.
+        ByteArrayOutputStream original = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(1024, 1024, BufferedImage.TYPE_INT_RGB), "png", original);
+        when(storage.get(any(BlobId.class))).thenAnswer(invocation ->
+            ((BlobId) invocation.getArgument(0)).getName().endsWith("_thumb.jpg") ? mock(Blob.class) : null);
+        when(storage.readAllBytes(any(BlobId.class))).thenReturn(original.toByteArray());
+
+        // When
+        GenerateMemoryPlant.PlantImage image = function.cachedImage("imagen-cache/abc.png", "https://example/abc.png");
+
+        // Then
+        ArgumentCaptor<BlobInfo> created = ArgumentCaptor.forClass(BlobInfo.class);
+        verify(storage).create(created.capture(), any(byte[].class));
+        assertEquals("imagen-cache/abc_medium.jpg", created.getValue().getName());
+        assertTrue(image.thumbnailUrl().endsWith("/imagen-cache/abc_thumb.jpg"));
+        assertTrue(image.mediumUrl().endsWith("/imagen-cache/abc_medium.jpg"));
+    }
+
+    @Test
+    void testCachedImage_leavesRenditionsOut_whenTheOriginalCannotBeDecoded() {
+        // Given
+        when(storage.get(any(BlobId.class))).thenReturn(null);
+        when(storage.readAllBytes(any(BlobId.class))).thenReturn(new byte[] {1, 2, 3});
+
+        // When
+        GenerateMemoryPlant.PlantImage image = function.cachedImage("imagen-cache/abc.png", "https://example/abc.png");
+
+        // Then
+        assertEquals(new GenerateMemoryPlant.PlantImage("https://example/abc.png", null, null), image);
+        verify(storage, never()).create(any(BlobInfo.class), any(byte[].class));
+    }
+
+    @Test
+    void testService_failedMemoryWrite_returns500_andDoesNotStoreTheResponse() throws Exception {
+        // Given
+        String json = "{\"text\":\"A beautiful day\"}";
+        when(request.getReader()).thenReturn(new BufferedReader(new StringReader(json)));
+        when(request.getFirstHeader("Authorization")).thenReturn(Optional.of("Bearer fake-token"));
+        when(request.getFirstHeader("Idempotency-Key")).thenReturn(Optional.of("retry-key-3"));
+        when(response.getWriter()).thenReturn(new BufferedWriter(new StringWriter()));
+        when(idempotencyStore.begin(eq("fake-user-id"), eq("retry-key-3"), anyString())).thenReturn(Optional.empty());
+        when(db.collection("memories")).thenReturn(memoriesCollection);
+        when(memoriesCollection.document()).thenReturn(memoryRef);
+        doReturn(ApiFutures.immediateFailedFuture(new RuntimeException("Firestore is down"))).when(db).runTransaction(any());
+
+        GenerateMemoryPlant spyFunction = spy(functionWithMockedAggregates());
+        doReturn(new GenerateMemoryPlant.GeminiResponse("a painting of a beautiful day", null)).when(spyFunction).generateAnalysisWithGemini(anyString());
+        doReturn(new GenerateMemoryPlant.PlantImage("http://fake.url/image.png", null, null)).when(spyFunction).generateImageWithImagen(anyString(), anyBoolean());
+
+        // When
+        spyFunction.service(request, response);
+
+        // Then
+        verify(db).runTransaction(any());
+        verify(response).setStatusCode(500, "Internal Server Error.");
+        verify(idempotencyStore, never()).complete(anyString(), anyString(), any());
+        verify(idempotencyStore).abandon("fake-user-id", "retry-key-3");
+        verify(db, never()).collection("users");
+    }
 }
@@ -1,11 +1,13 @@
 package com.cziczere.functions;
 
-import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.rpc.ApiStreamObserver;
 import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
 import com.google.cloud.firestore.Firestore;
 import com.google.cloud.firestore.Query;
 import com.google.cloud.firestore.QueryDocumentSnapshot;
-import com.google.cloud.firestore.QuerySnapshot;
 import com.google.cloud.functions.HttpRequest;
 import com.google.cloud.functions.HttpResponse;
 import com.google.cloud.vertexai.VertexAI;
@@ -16,6 +18,7 @@ import com.google.cloud.vertexai.api.Part;
 import com.google.cloud.vertexai.generativeai.GenerativeModel;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseToken;
+import com.google.gson.Gson;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -28,10 +31,12 @@ import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.util.Collections;
+import java.util.Map;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.ExecutionException;
 
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyLong;
@@ -50,8 +55,13 @@ class GetAtmosphereTest {
     @Mock private FirebaseToken decodedToken;
     @Mock private CollectionReference collectionReference;
     @Mock private Query query;
-    @Mock private ApiFuture<QuerySnapshot> future;
-    @Mock private QuerySnapshot querySnapshot;
+    @Mock private EmotionAggregates emotionAggregates;
+    @Mock private CollectionReference usersCollection;
+    @Mock private DocumentReference userRef;
+    @Mock private DocumentSnapshot userSnapshot;
+
+    private Optional<String> ifNoneMatch = Optional.empty();
+    private Long memoriesVersion;
 
     private StringWriter responseWriter;
     private BufferedWriter bufferedWriter;
@@ -64,7 +74,7 @@ class GetAtmosphereTest {
         bufferedWriter = new BufferedWriter(responseWriter);
         when(response.getWriter()).thenReturn(bufferedWriter);
 
-        getAtmosphereFunction = Mockito.spy(new GetAtmosphere(db, vertexAI));
+        getAtmosphereFunction = Mockito.spy(new GetAtmosphere(db, vertexAI, emotionAggregates));
 
         lenient().doReturn(generativeModel).when(getAtmosphereFunction).getGenerativeModel(anyString());
     }
@@ -75,6 +85,12 @@ class GetAtmosphereTest {
             when(request.getFirstHeader("Authorization")).thenReturn(Optional.of("Bearer fake-token"));
             when(firebaseAuth.verifyIdToken("fake-token")).thenReturn(decodedToken);
             when(decodedToken.getUid()).thenReturn("test-user-id");
+            lenient().when(request.getFirstHeader("If-None-Match")).thenReturn(ifNoneMatch);
+            lenient().when(db.collection("users")).thenReturn(usersCollection);
+            lenient().when(usersCollection.document("test-user-id")).thenReturn(userRef);
+            lenient().when(userRef.get()).thenReturn(ApiFutures.immediateFuture(userSnapshot));
+            lenient().when(userSnapshot.exists()).thenReturn(memoriesVersion != null);
+            lenient().when(userSnapshot.getLong("memoriesChangedAt")).thenReturn(memoriesVersion);
 
             getAtmosphereFunction.service(request, response);
         }
@@ -84,17 +100,18 @@ class GetAtmosphereTest {
         when(db.collection("memories")).thenReturn(collectionReference);
         when(collectionReference.whereEqualTo(anyString(), anyString())).thenReturn(query);
         when(query.whereGreaterThanOrEqualTo(anyString(), anyLong())).thenReturn(query);
-        when(query.get()).thenReturn(future);
-        when(future.get()).thenReturn(querySnapshot);
-
-        if (withData) {
-            QueryDocumentSnapshot document = mock(QueryDocumentSnapshot.class);
-            MemoryData memoryData = new MemoryData("test-user-id", "A recent memory", "", "", System.currentTimeMillis(), "text", Collections.emptyMap());
-            when(document.toObject(MemoryData.class)).thenReturn(memoryData);
-            when(querySnapshot.getDocuments()).thenReturn(List.of(document));
-        } else {
-            when(querySnapshot.getDocuments()).thenReturn(Collections.emptyList());
-        }
+        when(query.select(any(String[].class))).thenReturn(query);
+        doAnswer(invocation -> {
+            ApiStreamObserver<DocumentSnapshot> observer = invocation.getArgument(0);
+            if (withData) {
+                QueryDocumentSnapshot document = mock(QueryDocumentSnapshot.class, withSettings().lenient());
+                when(document.getString("userText")).thenReturn("A recent memory");
+                when(document.getLong("timestamp")).thenReturn(System.currentTimeMillis());
+                observer.onNext(document);
+            }
+            observer.onCompleted();
+            return null;
+        }).when(query).stream(any());
     }
 
     @Test
@@ -115,6 +132,9 @@ class GetAtmosphereTest {
         verify(response).setStatusCode(200, "OK");
         assertTrue(responseWriter.toString().contains("\"weather\":\"Sunny\""));
         assertTrue(responseWriter.toString().contains("\"backgroundColor\":\"#87CEEB\""));
+        // The mood is read from the scores alone; texts are fetched only for the Gemini prompt.
+        verify(query).select(MemoryQueries.MOOD_FIELDS);
+        verify(query).select(MemoryQueries.TEXT_FIELDS);
     }
 
     @Test
@@ -126,23 +146,151 @@ class GetAtmosphereTest {
         mockAuthAndServiceCall();
 
         // Assert
-        verify(response).setStatusCode(200);
+        verify(response).setStatusCode(200, "OK");
         assertTrue(responseWriter.toString().contains("\"weather\":\"Clear\""));
         assertTrue(responseWriter.toString().contains("\"backgroundColor\":\"#87CEEB\""));
+        verify(query, never()).select(MemoryQueries.TEXT_FIELDS);
+    }
+
+    @Test
+    void testService_GeminiError_FallsBackToTheEnginesAtmosphere() throws Exception {
+        // Arrange
+        mockFirestore(true);
+        when(generativeModel.generateContent(anyString())).thenThrow(new IOException("Gemini API is down"));
+
+        // Act
+        mockAuthAndServiceCall();
+
+        // Assert: the memory carries no emotions, so the engine reads a neutral mood.
+        AtmosphereEngine.Mood neutral = AtmosphereEngine.moodOf(Map.of());
+        verify(response).setStatusCode(200, "OK");
+        assertTrue(responseWriter.toString().contains("\"weather\":\"" + AtmosphereEngine.weatherFor(neutral) + "\""));
+        assertTrue(responseWriter.toString().contains("\"backgroundColor\":\"" + AtmosphereEngine.colorFor(neutral) + "\""));
+        assertFalse(responseWriter.toString().contains("#DDDDDD"));
+    }
+
+    @Test
+    void testService_UnparseableGeminiAnswer_FallsBackToTheEnginesAtmosphere() throws Exception {
+        // Arrange
+        mockFirestore(true);
+        GenerateContentResponse geminiResponse = GenerateContentResponse.newBuilder()
+                .addCandidates(Candidate.newBuilder()
+                        .setContent(Content.newBuilder().addParts(Part.newBuilder().setText("It feels sunny today."))))
+                .build();
+        when(generativeModel.generateContent(anyString())).thenReturn(geminiResponse);
+
+        // Act
+        mockAuthAndServiceCall();
+
+        // Assert
+        verify(response).setStatusCode(200, "OK");
+        assertTrue(responseWriter.toString().contains(
+            "\"backgroundColor\":\"" + AtmosphereEngine.colorFor(AtmosphereEngine.moodOf(Map.of())) + "\""));
+    }
+
+    @Test
+    void testService_ClearMoodFromAggregates_SkipsMemoriesAndGemini() throws Exception {
+        // Arrange
+        EmotionAggregates.DailyBucket joyfulDay = new EmotionAggregates.DailyBucket("2024-05-01", 2,
+            Map.of("joy", new EmotionAggregates.EmotionStats(1.8, 2, 0.8, 1.0)));
+        when(emotionAggregates.recentDays("test-user-id", 7)).thenReturn(new EmotionAggregates.Window(List.of(joyfulDay), true));
+
+        // Act
+        mockAuthAndServiceCall();
+
+        // Assert
+        verify(response).setStatusCode(200, "OK");
+        assertTrue(responseWriter.toString().contains("sounds/happy.mp3"));
+        assertTrue(responseWriter.toString().contains("\"weather\":\"Sunny\""));
+        verify(db, never()).collection("memories");
+        verifyNoInteractions(generativeModel);
     }
 
     @Test
-    void testService_GeminiError_ReturnsFallback() throws Exception {
+    void testService_AggregatesNotCoveringTheWindow_ReadsMemoryDocuments() throws Exception {
+        // Arrange: the buckets look joyful, but older memories of the window are missing from them.
+        EmotionAggregates.DailyBucket joyfulDay = new EmotionAggregates.DailyBucket("2024-05-01", 2,
+            Map.of("joy", new EmotionAggregates.EmotionStats(1.8, 2, 0.8, 1.0)));
+        when(emotionAggregates.recentDays("test-user-id", 7)).thenReturn(new EmotionAggregates.Window(List.of(joyfulDay), false));
+        mockFirestore(false);
+
+        // Act
+        mockAuthAndServiceCall();
+
+        // Assert
+        verify(response).setStatusCode(200, "OK");
+        assertTrue(responseWriter.toString().contains("sounds/calm.mp3"));
+        verify(db).collection("memories");
+    }
+
+    @Test
+    void testService_MatchingIfNoneMatch_Returns304WithoutBody() throws Exception {
+        // Arrange
+        mockFirestore(false);
+        String body = new Gson().toJson(new GetAtmosphere.AtmosphereData("Clear", "#87CEEB", "sounds/calm.mp3"));
+        ifNoneMatch = Optional.of("W/" + AtmosphereCache.etagOf(body));
+
+        // Act
+        mockAuthAndServiceCall();
+
+        // Assert
+        verify(response).setStatusCode(304, "Not Modified");
+        verify(response).appendHeader("ETag", AtmosphereCache.etagOf(body));
+        assertTrue(responseWriter.toString().isEmpty());
+    }
+
+    @Test
+    void testService_UnchangedMemoryVersion_ServesCachedAtmosphere() throws Exception {
         // Arrange
+        AtmosphereCache cache = new AtmosphereCache(10, 60_000);
+        cache.put("test-user-id", 5L, "{\"weather\":\"Rainy\",\"backgroundColor\":\"#708090\",\"soundUrl\":\"sounds/sad.mp3\"}");
+        getAtmosphereFunction = Mockito.spy(new GetAtmosphere(db, vertexAI, emotionAggregates, cache));
+        memoriesVersion = 5L;
+
+        // Act
+        mockAuthAndServiceCall();
+
+        // Assert
+        verify(response).setStatusCode(200, "OK");
+        assertTrue(responseWriter.toString().contains("\"weather\":\"Rainy\""));
+        verify(db, never()).collection("memories");
+        verifyNoInteractions(emotionAggregates, generativeModel);
+    }
+
+    @Test
+    void testService_GeminiFallback_IsServedWithAnETagButNotCached() throws Exception {
+        // Arrange
+        AtmosphereCache cache = new AtmosphereCache(10, 60_000);
+        getAtmosphereFunction = Mockito.spy(new GetAtmosphere(db, vertexAI, emotionAggregates, cache));
+        doReturn(generativeModel).when(getAtmosphereFunction).getGenerativeModel(anyString());
+        memoriesVersion = 5L;
         mockFirestore(true);
         when(generativeModel.generateContent(anyString())).thenThrow(new IOException("Gemini API is down"));
 
         // Act
         mockAuthAndServiceCall();
 
+        // Assert: the next request asks Gemini again instead of repeating the fallback.
+        verify(response).setStatusCode(200, "OK");
+        verify(response).appendHeader(eq("ETag"), anyString());
+        assertTrue(cache.get("test-user-id", 5L).isEmpty());
+    }
+
+    @Test
+    void testService_UnreadableMemoryVersion_ServesWithoutCaching() throws Exception {
+        // Arrange
+        AtmosphereCache cache = new AtmosphereCache(10, 60_000);
+        getAtmosphereFunction = Mockito.spy(new GetAtmosphere(db, vertexAI, emotionAggregates, cache));
+        mockFirestore(false);
+        doThrow(new ExecutionException(new IllegalStateException("unavailable")))
+            .when(getAtmosphereFunction).memoriesVersionOf("test-user-id");
+
+        // Act
+        mockAuthAndServiceCall();
+
         // Assert
         verify(response).setStatusCode(200, "OK");
         assertTrue(responseWriter.toString().contains("\"weather\":\"Clear\""));
-        assertTrue(responseWriter.toString().contains("\"backgroundColor\":\"#DDDDDD\""));
+        assertTrue(cache.get("test-user-id", null).isEmpty());
     }
 }
@@ -0,0 +1,56 @@
+package com.cziczere.functions;
+
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class ImageBlobWriterTest {
+
+    private static final BlobInfo BLOB_INFO = BlobInfo.newBuilder(BlobId.of("bucket", "image.png")).setContentType("image/png").build();
+
+    @Mock private Storage storage;
+
+    private static byte[] randomImage(int size) {
+        byte[] image = new byte[size];
+        new Random(42).nextBytes(image);
+        return image;
+    }
+
+    private static ByteString base64Of(byte[] image) {
+        return ByteString.copyFromUtf8(Base64.getEncoder().encodeToString(image));
+    }
+
+    @Test
+    void writeBase64_storesATypicalImageWithOneRequest() throws Exception {
+        // Arrange
+        byte[] image = randomImage(300 * 1024);
+        ArgumentCaptor<byte[]> content = ArgumentCaptor.forClass(byte[].class);
+        ArgumentCaptor<Integer> offset = ArgumentCaptor.forClass(Integer.class);
+        ArgumentCaptor<Integer> length = ArgumentCaptor.forClass(Integer.class);
+
+        // Act
+        long written = ImageBlobWriter.writeBase64(storage, BLOB_INFO, base64Of(image));
+
+        // Assert
+        verify(storage).create(eq(BLOB_INFO), content.capture(), offset.capture(), length.capture());
+        verify(storage, never()).writer(any(BlobInfo.class));
+        assertEquals(image.length, written);
+        assertArrayEquals(image, Arrays.copyOfRange(content.getValue(), offset.getValue(), offset.getValue() + length.getValue()));
+    }
+}
@@ -0,0 +1,74 @@
+package com.cziczere.functions;
+
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.*;
+
+class ImageDerivativesTest {
+
+    @Test
+    void blobName_placesRenditionNextToOriginal() {
+        assertEquals("abc_thumb.jpg", ImageDerivatives.blobName("abc.png", ImageDerivatives.Size.THUMBNAIL));
+        assertEquals("imagen-cache/0f1e_medium.jpg", ImageDerivatives.blobName("imagen-cache/0f1e.png", ImageDerivatives.Size.MEDIUM));
+    }
+
+    @Test
+    void scale_fitsLongerSideAndKeepsAspectRatio() {
+        BufferedImage source = new BufferedImage(1024, 768, BufferedImage.TYPE_INT_ARGB);
+
+        BufferedImage thumbnail = ImageDerivatives.scale(source, ImageDerivatives.Size.THUMBNAIL.maxDimension);
+        BufferedImage medium = ImageDerivatives.scale(source, ImageDerivatives.Size.MEDIUM.maxDimension);
+
+        assertEquals(128, thumbnail.getWidth());
+        assertEquals(96, thumbnail.getHeight());
+        assertEquals(512, medium.getWidth());
+        assertEquals(384, medium.getHeight());
+        assertEquals(BufferedImage.TYPE_INT_RGB, thumbnail.getType());
+    }
+
+    @Test
+    void scale_neverEnlargesSmallImages() {
+        BufferedImage source = new BufferedImage(100, 50, BufferedImage.TYPE_INT_ARGB);
+
+        BufferedImage scaled = ImageDerivatives.scale(source, ImageDerivatives.Size.MEDIUM.maxDimension);
+
+        assertEquals(100, scaled.getWidth());
+        assertEquals(50, scaled.getHeight());
+    }
+
+    @Test
+    void upload_storesTheEncodedRenditionWithOneRequest() throws Exception {
+        Storage storage = mock(Storage.class);
+        ArgumentCaptor<byte[]> content = ArgumentCaptor.forClass(byte[].class);
+        BufferedImage source = new BufferedImage(1024, 1024, BufferedImage.TYPE_INT_ARGB);
+
+        String blobName = ImageDerivatives.upload(storage, "bucket", "abc.png", source, ImageDerivatives.Size.THUMBNAIL);
+
+        BlobInfo expected = BlobInfo.newBuilder(BlobId.of("bucket", "abc_thumb.jpg")).setContentType("image/jpeg").build();
+        verify(storage).create(eq(expected), content.capture());
+        verify(storage, never()).writer(any(BlobInfo.class));
+        assertEquals("abc_thumb.jpg", blobName);
+        assertEquals(128, ImageIO.read(new ByteArrayInputStream(content.getValue())).getWidth());
+    }
+
+    @Test
+    void decodeForRenditions_subsamplesLargeOriginals() throws Exception {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(1024, 1024, BufferedImage.TYPE_INT_RGB), "png", png);
+
+        BufferedImage decoded = ImageDerivatives.decodeForRenditions(new ByteArrayInputStream(png.toByteArray()));
+
+        assertEquals(512, decoded.getWidth());
+        assertEquals(512, decoded.getHeight());
+    }
+}
@@ -0,0 +1,49 @@
+package com.cziczere.functions;
+
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.Storage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class ImagePromptCacheTest {
+
+    @Mock private Storage storage;
+    @Mock private Blob blob;
+
+    @Test
+    void blobNameFor_ignoresCaseAndWhitespace_butNotModelOrParameters() {
+        ImagePromptCache cache = new ImagePromptCache(storage, "bucket", "imagegeneration@006", "{\"sampleCount\": 1}");
+        ImagePromptCache otherModel = new ImagePromptCache(storage, "bucket", "imagegeneration@005", "{\"sampleCount\": 1}");
+
+        String name = cache.blobNameFor("A beautiful digital painting of  a garden.");
+
+        assertEquals(name, cache.blobNameFor("  a BEAUTIFUL digital\npainting of a garden. "));
+        assertNotEquals(name, cache.blobNameFor("A beautiful digital painting of a forest."));
+        assertNotEquals(name, otherModel.blobNameFor("A beautiful digital painting of  a garden."));
+        assertTrue(name.startsWith("imagen-cache/") && name.endsWith(".png"));
+    }
+
+    @Test
+    void lookup_returnsPublicUrlOnHit_andEmptyOnMiss() {
+        ImagePromptCache cache = new ImagePromptCache(storage, "bucket", "imagegeneration@006", "{}");
+        when(storage.get(BlobId.of("bucket", "imagen-cache/hit.png"))).thenReturn(blob);
+        long hitsBefore = ImagePromptCache.hits();
+        long missesBefore = ImagePromptCache.misses();
+
+        assertEquals(Optional.of("https://storage.googleapis.com/bucket/imagen-cache/hit.png"), cache.lookup("imagen-cache/hit.png"));
+        assertEquals(Optional.empty(), cache.lookup("imagen-cache/miss.png"));
+        assertEquals(hitsBefore + 1, ImagePromptCache.hits());
+        assertEquals(missesBefore + 1, ImagePromptCache.misses());
+    }
+}
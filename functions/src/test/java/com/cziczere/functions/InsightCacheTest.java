@@ -0,0 +1,106 @@
+package com.cziczere.functions;
+
+import com.google.api.core.ApiFutures;
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class InsightCacheTest {
+
+    @Mock private Firestore db;
+    @Mock private WriteBehindQueue writeBehindQueue;
+    @Mock private CollectionReference cacheCollection;
+    @Mock private DocumentReference entryRef;
+    @Mock private DocumentSnapshot entry;
+    @Mock private CollectionReference usersCollection;
+    @Mock private DocumentReference userRef;
+    @Mock private DocumentSnapshot user;
+
+    private static final MemoryData MORNING = new MemoryData("user-1", "Coffee on the balcony", "", "", 1000L, "memory", Map.of("calm", 0.7, "joy", 0.4));
+    private static final MemoryData EVENING = new MemoryData("user-1", "Long call with mum", "", "", 2000L, "memory", Map.of("love", 0.9));
+
+    @Test
+    void fingerprint_ignoresOrder_butChangesWithANewMemory() {
+        String fingerprint = InsightCache.fingerprint(List.of(MORNING, EVENING));
+
+        assertEquals(fingerprint, InsightCache.fingerprint(List.of(EVENING, MORNING)));
+        MemoryData night = new MemoryData("user-1", "Stargazing", "", "", 3000L, "memory", Map.of());
+        assertNotEquals(fingerprint, InsightCache.fingerprint(List.of(MORNING, EVENING, night)));
+    }
+
+    private InsightCache.Probe probe(long ttlMillis, Long entryVersion, Long memoriesVersion) throws Exception {
+        when(db.collection("insight_cache")).thenReturn(cacheCollection);
+        when(cacheCollection.document("user-1_weekly")).thenReturn(entryRef);
+        when(db.collection("users")).thenReturn(usersCollection);
+        when(usersCollection.document("user-1")).thenReturn(userRef);
+        when(db.getAll(entryRef, userRef)).thenReturn(ApiFutures.immediateFuture(List.of(entry, user)));
+        when(entry.exists()).thenReturn(true);
+        lenient().when(entry.getString("fingerprint")).thenReturn("abc");
+        lenient().when(entry.getString("text")).thenReturn("Here is your weekly bouquet.");
+        lenient().when(entry.getLong("memoriesChangedAt")).thenReturn(entryVersion);
+        when(entry.getLong("createdAt")).thenReturn(System.currentTimeMillis() - 1000);
+        when(user.exists()).thenReturn(true);
+        when(user.getLong("memoriesChangedAt")).thenReturn(memoriesVersion);
+        return new InsightCache(db, writeBehindQueue, ttlMillis).probe("user-1", "weekly");
+    }
+
+    @Test
+    void lookup_unchangedMemoryVersion_hitsWithoutFingerprint() throws Exception {
+        // Arrange
+        InsightCache cache = new InsightCache(db, writeBehindQueue, 60_000);
+        InsightCache.Probe probe = probe(60_000, 5L, 5L);
+
+        // Act
+        Optional<InsightData> hit = cache.lookup(probe);
+
+        // Assert
+        assertTrue(hit.isPresent());
+        assertEquals("Here is your weekly bouquet.", hit.get().text());
+        assertTrue(cache.lookup(new InsightCache.Probe(hit.get(), "abc", 5L, 6L)).isEmpty());
+        assertTrue(cache.lookup(new InsightCache.Probe(hit.get(), "abc", null, null)).isEmpty());
+    }
+
+    @Test
+    void lookup_matchingFingerprint_hitsAndRestampsTheEntry() throws Exception {
+        // Arrange
+        InsightCache cache = new InsightCache(db, writeBehindQueue, 60_000);
+        InsightCache.Probe probe = probe(60_000, 5L, 6L);
+
+        // Act
+        Optional<InsightData> hit = cache.lookup(probe, "abc");
+        Optional<InsightData> changed = cache.lookup(probe, "def");
+
+        // Assert
+        assertTrue(hit.isPresent());
+        assertTrue(changed.isEmpty());
+        verify(writeBehindQueue).set(eq(entryRef), argThat(stored -> Long.valueOf(6L).equals(((Map<?, ?>) stored).get("memoriesChangedAt"))));
+    }
+
+    @Test
+    void probe_expiredEntry_isReportedAsMissing() throws Exception {
+        // Act
+        InsightCache.Probe probe = probe(10, 5L, 5L);
+
+        // Assert
+        assertNull(probe.insight());
+        assertEquals(5L, probe.memoriesVersion());
+    }
+}
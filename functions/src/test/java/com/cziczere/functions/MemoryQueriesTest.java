@@ -0,0 +1,101 @@
+package com.cziczere.functions;
+
+import com.google.api.gax.rpc.ApiStreamObserver;
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class MemoryQueriesTest {
+
+    @Mock private Firestore db;
+    @Mock private CollectionReference memoriesCollection;
+    @Mock private Query query;
+    @Mock private QueryDocumentSnapshot document;
+
+    @BeforeEach
+    void setUp() {
+        when(db.collection("memories")).thenReturn(memoriesCollection);
+        when(memoriesCollection.whereEqualTo("userId", "user-1")).thenReturn(query);
+    }
+
+    @Test
+    void list_projectsRequestedFields_andMapsStreamedDocuments() throws Exception {
+        // Arrange
+        when(query.orderBy("timestamp", Query.Direction.ASCENDING)).thenReturn(query);
+        when(query.select(MemoryQueries.EXPORT_FIELDS)).thenReturn(query);
+        when(document.getString(anyString())).thenReturn(null);
+        when(document.getString("imageUrl")).thenReturn("https://example.com/plant.png");
+        when(document.getLong("timestamp")).thenReturn(42L);
+        doAnswer(invocation -> {
+            ApiStreamObserver<DocumentSnapshot> observer = invocation.getArgument(0);
+            observer.onNext(document);
+            observer.onCompleted();
+            return null;
+        }).when(query).stream(any());
+
+        // Act
+        List<MemoryData> memories = new MemoryQueries(db).list("user-1", 0, true, MemoryQueries.EXPORT_FIELDS);
+
+        // Assert
+        assertEquals(1, memories.size());
+        assertEquals("user-1", memories.get(0).userId());
+        assertEquals("https://example.com/plant.png", memories.get(0).imageUrl());
+        assertEquals(42L, memories.get(0).timestamp());
+        assertNull(memories.get(0).userText());
+        verify(query, never()).whereGreaterThanOrEqualTo(anyString(), any());
+    }
+
+    @Test
+    void list_convertsStoredEmotionNumbers() throws Exception {
+        // Arrange
+        when(query.whereGreaterThanOrEqualTo("timestamp", 1000L)).thenReturn(query);
+        when(query.select(MemoryQueries.ANALYSIS_FIELDS)).thenReturn(query);
+        when(document.get("emotions")).thenReturn(Map.of("joy", 1L, "calm", 0.5));
+        doAnswer(invocation -> {
+            ApiStreamObserver<DocumentSnapshot> observer = invocation.getArgument(0);
+            observer.onNext(document);
+            observer.onCompleted();
+            return null;
+        }).when(query).stream(any());
+
+        // Act
+        List<MemoryData> memories = new MemoryQueries(db).list("user-1", 1000L, false, MemoryQueries.ANALYSIS_FIELDS);
+
+        // Assert
+        assertEquals(Map.of("joy", 1.0, "calm", 0.5), memories.get(0).emotions());
+    }
+
+    @Test
+    void list_propagatesStreamErrors() {
+        // Arrange
+        when(query.select(MemoryQueries.ANALYSIS_FIELDS)).thenReturn(query);
+        doAnswer(invocation -> {
+            ApiStreamObserver<DocumentSnapshot> observer = invocation.getArgument(0);
+            observer.onError(new IllegalStateException("stream reset"));
+            return null;
+        }).when(query).stream(any());
+
+        // Act & Assert
+        assertThrows(ExecutionException.class,
+            () -> new MemoryQueries(db).list("user-1", 0, false, MemoryQueries.ANALYSIS_FIELDS));
+    }
+}
@@ -0,0 +1,145 @@
+package com.cziczere.functions;
+
+import com.google.api.core.ApiFutures;
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.vertexai.api.Candidate;
+import com.google.cloud.vertexai.api.Content;
+import com.google.cloud.vertexai.api.GenerateContentResponse;
+import com.google.cloud.vertexai.api.Part;
+import com.google.cloud.vertexai.generativeai.GenerativeModel;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class MemorySummarizerTest {
+
+    @Mock private Firestore db;
+    @Mock private WriteBehindQueue writeBehindQueue;
+    @Mock private GenerativeModel model;
+    @Mock private CollectionReference summariesCollection;
+    @Mock private DocumentReference summaryRef;
+
+    private static List<MemoryData> memories(int count) {
+        List<MemoryData> memories = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            memories.add(new MemoryData("user-1", "Memory " + i, "", "", i, "memory", Collections.emptyMap()));
+        }
+        return memories;
+    }
+
+    private static GenerateContentResponse text(String value) {
+        return GenerateContentResponse.newBuilder()
+                .addCandidates(Candidate.newBuilder()
+                        .setContent(Content.newBuilder().addParts(Part.newBuilder().setText(value))))
+                .build();
+    }
+
+    private void mockChunkCache(boolean cached) throws Exception {
+        when(db.collection("chunk_summaries")).thenReturn(summariesCollection);
+        when(summariesCollection.document(anyString())).thenReturn(summaryRef);
+        doAnswer(invocation -> {
+            List<DocumentSnapshot> snapshots = new ArrayList<>();
+            for (int i = 0; i < invocation.getArguments().length; i++) {
+                DocumentSnapshot snapshot = mock(DocumentSnapshot.class);
+                when(snapshot.exists()).thenReturn(cached);
+                if (cached) {
+                    when(snapshot.getString("summary")).thenReturn("cached summary");
+                }
+                snapshots.add(snapshot);
+            }
+            return ApiFutures.immediateFuture(snapshots);
+        }).when(db).getAll(any(DocumentReference[].class));
+    }
+
+    @Test
+    void condense_smallGarden_isPassedThroughUntouched() throws Exception {
+        MemorySummarizer summarizer = new MemorySummarizer(db, writeBehindQueue, 2, 5);
+
+        MemorySummarizer.Condensed condensed = summarizer.condense(memories(5), model);
+
+        assertFalse(condensed.summarized());
+        assertEquals(5, condensed.texts().size());
+        verifyNoInteractions(db, model);
+    }
+
+    @Test
+    void condense_largeGarden_reducesLevelByLevel() throws Exception {
+        // Arrange: 5 memories -> 3 chunk summaries -> 2 summaries, which fits the limit of 2.
+        mockChunkCache(false);
+        when(model.generateContent(anyString())).thenReturn(text("summary"));
+        MemorySummarizer summarizer = new MemorySummarizer(db, writeBehindQueue, 2, 2);
+
+        // Act
+        MemorySummarizer.Condensed condensed = summarizer.condense(memories(5), model);
+
+        // Assert
+        assertTrue(condensed.summarized());
+        assertEquals(List.of("summary", "summary"), condensed.texts());
+        verify(model, times(5)).generateContent(anyString());
+        verify(writeBehindQueue, times(5)).set(eq(summaryRef), any());
+    }
+
+    @Test
+    void condense_cachedChunks_skipTheModel() throws Exception {
+        // Arrange
+        mockChunkCache(true);
+        MemorySummarizer summarizer = new MemorySummarizer(db, writeBehindQueue, 4, 3);
+
+        // Act
+        MemorySummarizer.Condensed condensed = summarizer.condense(memories(8), model);
+
+        // Assert
+        assertEquals(List.of("cached summary", "cached summary"), condensed.texts());
+        verifyNoInteractions(model, writeBehindQueue);
+    }
+
+    @Test
+    void condense_failingChunk_cancelsTheOtherChunks() throws Exception {
+        // Arrange: 6 memories -> 3 chunks; the first fails once the other two are waiting on the model.
+        mockChunkCache(false);
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch interrupted = new CountDownLatch(2);
+        when(model.generateContent(anyString())).thenAnswer(invocation -> {
+            if (invocation.<String>getArgument(0).contains("Memory 0")) {
+                started.await(10, TimeUnit.SECONDS);
+                throw new IllegalStateException("Quota exceeded");
+            }
+            started.countDown();
+            try {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(30));
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+                throw e;
+            }
+            return text("summary");
+        });
+        MemorySummarizer summarizer = new MemorySummarizer(db, writeBehindQueue, 2, 2);
+
+        // Act
+        assertThrows(ExecutionException.class, () -> summarizer.condense(memories(6), model));
+
+        // Assert
+        assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+        verifyNoInteractions(writeBehindQueue);
+    }
+}
@@ -0,0 +1,105 @@
+package com.cziczere.functions;
+
+import com.google.api.core.ApiFutures;
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldPath;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.QuerySnapshot;
+import com.google.cloud.firestore.WriteBatch;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class MigrateEmotionVocabularyTest {
+
+    @Mock private Firestore db;
+    @Mock private CollectionReference memoriesCollection;
+    @Mock private CollectionReference jobsCollection;
+    @Mock private DocumentReference checkpointRef;
+    @Mock private DocumentSnapshot checkpoint;
+    @Mock private Query page;
+    @Mock private QuerySnapshot pageSnapshot;
+    @Mock private WriteBatch batch;
+
+    private MigrateEmotionVocabulary job;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        when(db.collection("jobs")).thenReturn(jobsCollection);
+        when(jobsCollection.document("migrate_emotion_vocabulary")).thenReturn(checkpointRef);
+        when(checkpointRef.get()).thenReturn(ApiFutures.immediateFuture(checkpoint));
+        lenient().when(checkpointRef.set(anyMap())).thenReturn(ApiFutures.immediateFuture(null));
+        job = new MigrateEmotionVocabulary(db);
+    }
+
+    private static QueryDocumentSnapshot memory(String id, Object emotions) {
+        QueryDocumentSnapshot memory = mock(QueryDocumentSnapshot.class, withSettings().lenient());
+        when(memory.getId()).thenReturn(id);
+        when(memory.get("emotions")).thenReturn(emotions);
+        when(memory.getReference()).thenReturn(mock(DocumentReference.class));
+        return memory;
+    }
+
+    @Test
+    void run_rewritesOnlyMemoriesWithNonCanonicalNames() throws Exception {
+        // Arrange
+        when(checkpoint.exists()).thenReturn(false);
+        QueryDocumentSnapshot legacy = memory("m1", Map.of("Happiness", 0.8, "stress", 0.4));
+        QueryDocumentSnapshot current = memory("m2", Map.of("joy", 0.5));
+        QueryDocumentSnapshot empty = memory("m3", null);
+        when(db.collection("memories")).thenReturn(memoriesCollection);
+        when(memoriesCollection.orderBy(FieldPath.documentId())).thenReturn(page);
+        when(page.select("emotions")).thenReturn(page);
+        when(page.limit(anyInt())).thenReturn(page);
+        when(page.get()).thenReturn(ApiFutures.immediateFuture(pageSnapshot));
+        when(pageSnapshot.getDocuments()).thenReturn(List.of(legacy, current, empty));
+        when(db.batch()).thenReturn(batch);
+        when(batch.commit()).thenReturn(ApiFutures.immediateFuture(List.of()));
+
+        // Act
+        job.run();
+
+        // Assert
+        verify(batch).update(legacy.getReference(), "emotions", Map.of("joy", 0.8, "anxiety", 0.4));
+        verify(batch, never()).update(eq(current.getReference()), anyString(), any());
+        verify(batch).commit();
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Map<String, Object>> saved = ArgumentCaptor.forClass(Map.class);
+        verify(checkpointRef, times(2)).set(saved.capture());
+        assertEquals(MigrateEmotionVocabulary.STATUS_COMPLETED, saved.getValue().get("status"));
+        assertEquals("m3", saved.getValue().get("lastMemoryId"));
+        assertEquals(3L, saved.getValue().get("scanned"));
+        assertEquals(1L, saved.getValue().get("migrated"));
+    }
+
+    @Test
+    void run_completedMigration_doesNothing() throws Exception {
+        // Arrange
+        when(checkpoint.exists()).thenReturn(true);
+        when(checkpoint.getString(anyString())).thenReturn(null);
+        when(checkpoint.getString("status")).thenReturn(MigrateEmotionVocabulary.STATUS_COMPLETED);
+
+        // Act
+        job.run();
+
+        // Assert
+        verify(db, never()).collection("memories");
+        verify(checkpointRef, never()).set(anyMap());
+    }
+}
@@ -0,0 +1,62 @@
+package com.cziczere.functions;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PngStripEncoderTest {
+
+    @Test
+    void close_afterFinish_leavesAReadablePng() throws Exception {
+        // Arrange
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        BufferedImage strip = new BufferedImage(4, 2, BufferedImage.TYPE_INT_RGB);
+        strip.setRGB(1, 1, 0x336699);
+
+        // Act
+        try (PngStripEncoder encoder = new PngStripEncoder(png, 4, 2, 150)) {
+            encoder.writeRows(strip);
+            encoder.finish();
+        }
+
+        // Assert
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(png.toByteArray()));
+        assertEquals(0x336699, decoded.getRGB(1, 1) & 0xFFFFFF);
+    }
+
+    @Test
+    void close_releasesAnUnfinishedEncoder_whoseStreamFailed() throws Exception {
+        // Arrange: the stream accepts the header, then breaks.
+        BufferedImage strip = new BufferedImage(4, 2, BufferedImage.TYPE_INT_RGB);
+        OutputStream breaking = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void flush() throws IOException {
+                throw new IOException("Broken pipe");
+            }
+        };
+        PngStripEncoder released;
+
+        // Act
+        try (PngStripEncoder encoder = new PngStripEncoder(breaking, 4, 2, 150)) {
+            released = encoder;
+            encoder.writeRows(strip);
+            assertThrows(IOException.class, encoder::finish);
+        }
+
+        // Assert
+        assertThrows(IllegalStateException.class, () -> released.writeRows(strip));
+        assertThrows(IllegalStateException.class, released::finish);
+    }
+}
@@ -0,0 +1,70 @@
+package com.cziczere.functions;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PosterImageCacheTest {
+
+    @TempDir Path cacheDir;
+
+    @Test
+    void heapTier_isKeyedBySize_andEvictsTheLeastRecentlyUsedImage() {
+        // Arrange: room for two 10x10 images.
+        PosterImageCache cache = new PosterImageCache(cacheDir, 200, 1_000);
+        BufferedImage a = new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB);
+        BufferedImage b = new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB);
+        cache.putImage("https://img/a.png", 64, a);
+        cache.putImage("https://img/b.png", 64, b);
+
+        // Act
+        cache.getImage("https://img/a.png", 64);
+        cache.putImage("https://img/c.png", 64, new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB));
+
+        // Assert
+        assertSame(a, cache.getImage("https://img/a.png", 64).orElseThrow());
+        assertFalse(cache.getImage("https://img/a.png", 128).isPresent());
+        assertFalse(cache.getImage("https://img/b.png", 64).isPresent());
+        assertEquals(1, cache.stats().heapEvictions());
+        assertEquals(200, cache.stats().heapPixels());
+    }
+
+    @Test
+    void diskTier_servesMappedBytes_andDeletesEvictedFiles() throws Exception {
+        // Arrange: room for two 400-byte downloads.
+        PosterImageCache cache = new PosterImageCache(cacheDir, 0, 1_000);
+        byte[] first = new byte[400];
+        first[0] = 42;
+        cache.putBytes("https://img/first.png", first);
+        cache.putBytes("https://img/second.png", new byte[400]);
+
+        // Act
+        Optional<ByteBuffer> hit = cache.getBytes("https://img/first.png");
+        cache.putBytes("https://img/third.png", new byte[400]);
+        Optional<ByteBuffer> evicted = cache.getBytes("https://img/second.png");
+
+        // Assert
+        assertTrue(hit.isPresent());
+        assertArrayEquals(first, PosterImageCache.asStream(hit.get()).readAllBytes());
+        assertFalse(evicted.isPresent());
+        try (var files = Files.list(cacheDir)) {
+            assertEquals(2, files.count());
+        }
+        PosterImageCache.Stats stats = cache.stats();
+        assertEquals(1, stats.diskHits());
+        assertEquals(1, stats.misses());
+        assertEquals(1, stats.diskEvictions());
+        assertEquals(0.5, stats.hitRate(), 1e-9);
+    }
+}
@@ -0,0 +1,61 @@
+package com.cziczere.functions;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PosterRendererTest {
+
+    @Test
+    void writePng_stripByStrip_matchesTheWholePosterDrawnAtOnce() throws Exception {
+        // Arrange: five cells, so rows of cells straddle strip boundaries.
+        PosterRenderer renderer = new PosterRenderer(PosterRenderer.PaperSize.A4, 150, 5);
+        List<BufferedImage> images = Arrays.asList(gradient(), null, gradient(), gradient(), null);
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+
+        // Act
+        renderer.writePng(images, png);
+
+        // Assert
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(png.toByteArray()));
+        BufferedImage whole = renderer.render(images, 0, renderer.height());
+        assertEquals(renderer.width(), decoded.getWidth());
+        assertEquals(renderer.height(), decoded.getHeight());
+        int[] expected = whole.getRGB(0, 0, whole.getWidth(), whole.getHeight(), null, 0, whole.getWidth());
+        int[] actual = decoded.getRGB(0, 0, decoded.getWidth(), decoded.getHeight(), null, 0, decoded.getWidth());
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    void paperAndDpi_setThePixelSize_andSourcesStayWithinBudget() {
+        PosterRenderer a1 = new PosterRenderer(PosterRenderer.PaperSize.A1, 600, 100);
+
+        assertEquals(14031, a1.width());
+        assertEquals(19866, a1.height());
+        assertTrue(a1.sourceSize() < a1.cells().get(0).size());
+        assertTrue((long) a1.sourceSize() * a1.sourceSize() * a1.cells().size() <= 12_000_000L);
+        assertEquals(PosterRenderer.PaperSize.A3, PosterRenderer.paperSizeOf(" a3 "));
+        assertThrows(IllegalArgumentException.class, () -> new PosterRenderer(PosterRenderer.PaperSize.A4, 72, 1));
+    }
+
+    private static BufferedImage gradient() {
+        BufferedImage image = new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 64; y++) {
+            for (int x = 0; x < 64; x++) {
+                image.setRGB(x, y, new Color(x * 4, y * 4, 128).getRGB());
+            }
+        }
+        return image;
+    }
+}
@@ -0,0 +1,116 @@
+package com.cziczere.functions;
+
+import com.google.cloud.WriteChannel;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class PosterResultCacheTest {
+
+    private static final ExportGarden.PosterOptions A4 = new ExportGarden.PosterOptions(PosterRenderer.PaperSize.A4, 150);
+
+    @Mock private Storage storage;
+    @Mock private Blob blob;
+    @Mock private WriteChannel channel;
+
+    private static ExportGarden.Garden garden(int count) {
+        List<String> memoryIds = new ArrayList<>();
+        List<MemoryData> memories = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            memoryIds.add("memory-" + i);
+            memories.add(new MemoryData("user-1", "m" + i, "p", "url" + i, i, "memory", Collections.emptyMap()));
+        }
+        return new ExportGarden.Garden(memoryIds, memories);
+    }
+
+    @Test
+    void fingerprint_dependsOnMemoryIdsTheirOrderImagesAndOptions_butNotOnText() {
+        ExportGarden.Garden garden = garden(3);
+        List<MemoryData> memories = garden.memories();
+        ExportGarden.Garden reordered = new ExportGarden.Garden(
+            List.of("memory-1", "memory-0", "memory-2"), List.of(memories.get(1), memories.get(0), memories.get(2)));
+        List<MemoryData> rewritten = new ArrayList<>(memories);
+        rewritten.set(0, new MemoryData("user-1", "edited", "p", "url0", 0, "memory", Collections.emptyMap()));
+        List<MemoryData> bloomed = new ArrayList<>(memories);
+        bloomed.set(0, new MemoryData("user-1", "m0", "p", "bloomed-url", 0, "memory", Collections.emptyMap()));
+
+        String fingerprint = PosterResultCache.fingerprint(A4, garden);
+
+        assertEquals(fingerprint, PosterResultCache.fingerprint(A4, new ExportGarden.Garden(garden.memoryIds(), rewritten)));
+        assertNotEquals(fingerprint, PosterResultCache.fingerprint(A4, new ExportGarden.Garden(garden.memoryIds(), bloomed)));
+        assertNotEquals(fingerprint, PosterResultCache.fingerprint(A4, reordered));
+        assertNotEquals(fingerprint, PosterResultCache.fingerprint(new ExportGarden.PosterOptions(PosterRenderer.PaperSize.A4, 300), garden));
+        assertNotEquals(fingerprint, PosterResultCache.fingerprint(A4, garden(4)));
+    }
+
+    @Test
+    void fingerprint_tellsApartMemoriesPlantedInTheSameMillisecond_beforeTheirImagesExist() {
+        MemoryData pending = new MemoryData("user-1", "a", "p", null, 5L, "memory", Collections.emptyMap());
+
+        String first = PosterResultCache.fingerprint(A4, new ExportGarden.Garden(List.of("memory-a"), List.of(pending)));
+        String second = PosterResultCache.fingerprint(A4, new ExportGarden.Garden(List.of("memory-b"), List.of(pending)));
+
+        assertNotEquals(first, second);
+    }
+
+    @Test
+    void findPrefix_returnsTheLargestStoredPrefix_withinTheSameGridShape() {
+        // Arrange
+        PosterResultCache cache = new PosterResultCache(storage, "bucket");
+        ExportGarden.Garden garden = garden(12);
+        String stored = cache.blobNameFor("user-1", PosterResultCache.fingerprint(A4, garden.head(10)));
+        when(storage.get(any(BlobId.class))).thenAnswer(invocation ->
+            stored.equals(((BlobId) invocation.getArgument(0)).getName()) ? blob : null);
+
+        // Act
+        Optional<PosterResultCache.Prefix> prefix = cache.findPrefix("user-1", A4, garden);
+        Optional<PosterResultCache.Prefix> acrossShapes = cache.findPrefix("user-1", A4, garden(13));
+
+        // Assert
+        assertEquals(Optional.of(new PosterResultCache.Prefix(10, stored)), prefix);
+        assertEquals(Optional.empty(), acrossShapes);
+        // 11 and 10 for the 4x3 garden; 13 memories need a 4x4 grid, which no smaller garden has.
+        verify(storage, times(2)).get(any(BlobId.class));
+    }
+
+    @Test
+    void upload_keepsServingTheClient_andAbandonsTheEntry_whenStorageFails() throws Exception {
+        // Arrange
+        PosterResultCache cache = new PosterResultCache(storage, "bucket");
+        ByteArrayOutputStream client = new ByteArrayOutputStream();
+        when(storage.writer(any(BlobInfo.class))).thenReturn(channel);
+        when(channel.write(any(ByteBuffer.class))).thenThrow(new IOException("connection reset"));
+
+        // Act
+        try (PosterResultCache.Upload upload = cache.upload("exports/cache/user-1/f.png", client)) {
+            upload.write(new byte[] {1, 2, 3});
+            upload.write(new byte[] {4});
+            assertFalse(upload.complete());
+        }
+
+        // Assert
+        assertArrayEquals(new byte[] {1, 2, 3, 4}, client.toByteArray());
+        verify(channel, times(1)).write(any(ByteBuffer.class));
+        verify(channel, never()).close();
+    }
+}
@@ -0,0 +1,177 @@
+package com.cziczere.functions;
+
+import com.google.api.core.ApiFutures;
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldPath;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.QuerySnapshot;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class PrecomputeInsightsTest {
+
+    @Mock private Firestore db;
+    @Mock private AnalyzeMemories analyzer;
+    @Mock private WriteBehindQueue writeBehindQueue;
+    @Mock private CollectionReference usersCollection;
+    @Mock private CollectionReference jobsCollection;
+    @Mock private DocumentReference checkpointRef;
+    @Mock private DocumentSnapshot checkpoint;
+    @Mock private Query page;
+    @Mock private QuerySnapshot pageSnapshot;
+
+    private PrecomputeInsights job;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        when(db.collection("jobs")).thenReturn(jobsCollection);
+        when(jobsCollection.document("precompute_insights")).thenReturn(checkpointRef);
+        when(checkpointRef.get()).thenReturn(ApiFutures.immediateFuture(checkpoint));
+        lenient().when(checkpointRef.set(anyMap())).thenReturn(ApiFutures.immediateFuture(null));
+        lenient().when(writeBehindQueue.flush(anyLong())).thenReturn(true);
+        job = new PrecomputeInsights(db, analyzer, writeBehindQueue, 2, 1000);
+    }
+
+    private void mockUsersPage(QueryDocumentSnapshot... users) throws Exception {
+        when(db.collection("users")).thenReturn(usersCollection);
+        when(usersCollection.orderBy(FieldPath.documentId())).thenReturn(page);
+        when(page.select(InsightCache.MEMORIES_CHANGED_AT)).thenReturn(page);
+        when(page.limit(anyInt())).thenReturn(page);
+        lenient().when(page.startAfter(anyString())).thenReturn(page);
+        when(page.get()).thenReturn(ApiFutures.immediateFuture(pageSnapshot));
+        when(pageSnapshot.getDocuments()).thenReturn(List.of(users));
+    }
+
+    private static QueryDocumentSnapshot user(String id, long memoriesChangedAt) {
+        QueryDocumentSnapshot user = mock(QueryDocumentSnapshot.class, withSettings().lenient());
+        when(user.getId()).thenReturn(id);
+        when(user.getLong(InsightCache.MEMORIES_CHANGED_AT)).thenReturn(memoriesChangedAt);
+        return user;
+    }
+
+    @Test
+    void run_precomputesUsersWhoRecentlyPlanted_andCompletesTheCheckpoint() throws Exception {
+        // Arrange
+        when(checkpoint.exists()).thenReturn(false);
+        mockUsersPage(user("active", System.currentTimeMillis()), user("dormant", 0L));
+        when(analyzer.computeInsight(anyString(), anyString())).thenReturn(Optional.empty());
+
+        // Act
+        job.run("2026-10-16");
+
+        // Assert
+        verify(analyzer).computeInsight("active", "weekly");
+        verify(analyzer).computeInsight("active", "monthly");
+        verify(analyzer, never()).computeInsight(eq("dormant"), anyString());
+        verify(writeBehindQueue).flush(anyLong());
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Map<String, Object>> saved = ArgumentCaptor.forClass(Map.class);
+        verify(checkpointRef, times(2)).set(saved.capture());
+        Map<String, Object> last = saved.getValue();
+        assertEquals(PrecomputeInsights.STATUS_COMPLETED, last.get("status"));
+        assertEquals("dormant", last.get("lastUserId"));
+        assertEquals(1L, last.get("processed"));
+    }
+
+    @Test
+    void run_resumesAfterTheCheckpointedUser() throws Exception {
+        // Arrange
+        when(checkpoint.exists()).thenReturn(true);
+        when(checkpoint.getString(anyString())).thenReturn(null);
+        when(checkpoint.getString("runId")).thenReturn("2026-10-16");
+        when(checkpoint.getString("lastUserId")).thenReturn("user-100");
+        when(checkpoint.getString("status")).thenReturn(PrecomputeInsights.STATUS_RUNNING);
+        when(checkpoint.getLong("processed")).thenReturn(100L);
+        mockUsersPage(user("user-101", System.currentTimeMillis()));
+        when(analyzer.computeInsight(anyString(), anyString())).thenThrow(new IllegalStateException("quota"));
+
+        // Act
+        job.run("2026-10-16");
+
+        // Assert
+        verify(page).startAfter((Object) "user-100");
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Map<String, Object>> saved = ArgumentCaptor.forClass(Map.class);
+        verify(checkpointRef, times(2)).set(saved.capture());
+        assertEquals(100L, saved.getValue().get("processed"));
+        assertEquals(1L, saved.getValue().get("failed"));
+    }
+
+    @Test
+    void run_resumesAnUnfinishedRunFromAnEarlierDay() throws Exception {
+        // Arrange
+        when(checkpoint.exists()).thenReturn(true);
+        when(checkpoint.getString(anyString())).thenReturn(null);
+        when(checkpoint.getString("runId")).thenReturn("2026-10-15");
+        when(checkpoint.getString("lastUserId")).thenReturn("user-100");
+        when(checkpoint.getString("status")).thenReturn(PrecomputeInsights.STATUS_RUNNING);
+        mockUsersPage(user("user-101", System.currentTimeMillis()));
+        when(analyzer.computeInsight(anyString(), anyString())).thenReturn(Optional.empty());
+
+        // Act
+        job.run("2026-10-16");
+
+        // Assert: the crashed run is finished under its own id rather than dropped.
+        verify(page).startAfter((Object) "user-100");
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Map<String, Object>> saved = ArgumentCaptor.forClass(Map.class);
+        verify(checkpointRef, times(2)).set(saved.capture());
+        assertEquals("2026-10-15", saved.getValue().get("runId"));
+        assertEquals(PrecomputeInsights.STATUS_COMPLETED, saved.getValue().get("status"));
+    }
+
+    @Test
+    void run_startsAfresh_afterAnEarlierDaysRunCompleted() throws Exception {
+        // Arrange
+        when(checkpoint.exists()).thenReturn(true);
+        when(checkpoint.getString(anyString())).thenReturn(null);
+        when(checkpoint.getString("runId")).thenReturn("2026-10-15");
+        when(checkpoint.getString("status")).thenReturn(PrecomputeInsights.STATUS_COMPLETED);
+        mockUsersPage(user("user-001", System.currentTimeMillis()));
+        when(analyzer.computeInsight(anyString(), anyString())).thenReturn(Optional.empty());
+
+        // Act
+        job.run("2026-10-16");
+
+        // Assert
+        verify(page, never()).startAfter(any(Object.class));
+        verify(analyzer).computeInsight("user-001", "weekly");
+    }
+
+    @Test
+    void run_completedCheckpoint_doesNothing() throws Exception {
+        // Arrange
+        when(checkpoint.exists()).thenReturn(true);
+        when(checkpoint.getString(anyString())).thenReturn(null);
+        when(checkpoint.getString("runId")).thenReturn("2026-10-16");
+        when(checkpoint.getString("status")).thenReturn(PrecomputeInsights.STATUS_COMPLETED);
+
+        // Act
+        job.run("2026-10-16");
+
+        // Assert
+        verifyNoInteractions(analyzer);
+        verify(db, never()).collection("users");
+    }
+}
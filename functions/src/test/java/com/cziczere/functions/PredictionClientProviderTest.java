@@ -0,0 +1,41 @@
+package com.cziczere.functions;
+
+import com.google.cloud.aiplatform.v1.PredictionServiceClient;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class PredictionClientProviderTest {
+
+    @Mock private PredictionServiceClient client;
+
+    @Test
+    void get_returnsSameClientForEveryCall() throws Exception {
+        PredictionClientProvider provider = new PredictionClientProvider(client);
+
+        assertSame(client, provider.get());
+        assertSame(client, provider.get());
+        verify(client, never()).close();
+    }
+
+    @Test
+    void close_shutsDownGracefully_andForcesWhenTerminationTimesOut() throws Exception {
+        when(client.awaitTermination(anyLong(), eq(TimeUnit.SECONDS))).thenReturn(false);
+        PredictionClientProvider provider = new PredictionClientProvider(client);
+
+        provider.close();
+        provider.close(); // Second close is a no-op.
+
+        verify(client, times(1)).shutdown();
+        verify(client, times(1)).shutdownNow();
+    }
+}
@@ -0,0 +1,54 @@
+package com.cziczere.functions;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StructuredOutputParserTest {
+
+    @Test
+    void parse_readsFencedResponse() {
+        String response = "```json\n{\"weather\": \"Rainy\", \"backgroundColor\": \"#708090\"}\n```";
+
+        Optional<GetAtmosphere.AtmosphereData> data = StructuredOutputParser.parse(response, GetAtmosphere.AtmosphereData.class);
+
+        assertEquals("Rainy", data.orElseThrow().weather());
+        assertEquals("#708090", data.orElseThrow().backgroundColor());
+    }
+
+    @Test
+    void parse_readsFirstObjectFromChattyResponse_withBracesInsideStrings() {
+        String response = "Sure! Here is the {analysis} you asked for:\n"
+            + "{\"imagePrompt\": \"a lantern shaped like } a moon \\\"glowing\\\"\", \"emotions\": {\"joy\": 0.7, \"calm\": 0.4}}\n"
+            + "Let me know if you need anything else. {\"imagePrompt\": \"ignored\"}";
+
+        GenerateMemoryPlant.GeminiResponse parsed =
+            StructuredOutputParser.parse(response, GenerateMemoryPlant.GeminiResponse.class).orElseThrow();
+
+        assertEquals("a lantern shaped like } a moon \"glowing\"", parsed.imagePrompt());
+        assertEquals(Map.of("joy", 0.7, "calm", 0.4), parsed.emotions());
+    }
+
+    @Test
+    void parse_skipsObjectsNestedInAnObjectThatFailedToBind() {
+        String response = "{\"imagePrompt\": \"broken\", \"emotions\": {\"joy\": 0.5}, oops}\n"
+            + "{\"imagePrompt\": \"a quiet pond\", \"emotions\": {\"calm\": 0.9}}";
+
+        GenerateMemoryPlant.GeminiResponse parsed =
+            StructuredOutputParser.parse(response, GenerateMemoryPlant.GeminiResponse.class).orElseThrow();
+
+        assertEquals("a quiet pond", parsed.imagePrompt());
+        assertEquals(Map.of("calm", 0.9), parsed.emotions());
+    }
+
+    @Test
+    void parse_returnsEmptyForTruncatedOrMissingJson() {
+        assertTrue(StructuredOutputParser.parse("{\"imagePrompt\": \"a garden at du", GenerateMemoryPlant.GeminiResponse.class).isEmpty());
+        assertTrue(StructuredOutputParser.parse("I cannot help with that.", GenerateMemoryPlant.GeminiResponse.class).isEmpty());
+        assertTrue(StructuredOutputParser.parse(null, GenerateMemoryPlant.GeminiResponse.class).isEmpty());
+    }
+}
@@ -0,0 +1,111 @@
+package com.cziczere.functions;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.grpc.GrpcStatusCode;
+import com.google.api.gax.rpc.FailedPreconditionException;
+import com.google.api.gax.rpc.UnavailableException;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.WriteBatch;
+import com.google.cloud.firestore.WriteResult;
+import io.grpc.Status;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class WriteBehindQueueTest {
+
+    @Mock private Firestore db;
+    @Mock private WriteBatch writeBatch;
+    @Mock private ApiFuture<List<WriteResult>> commitFuture;
+    @Mock private DocumentReference firstRef;
+    @Mock private DocumentReference secondRef;
+
+    private WriteBehindQueue queue;
+
+    @BeforeEach
+    void setUp() {
+        when(db.batch()).thenReturn(writeBatch);
+        when(writeBatch.commit()).thenReturn(commitFuture);
+        queue = new WriteBehindQueue(db, 100, 200);
+    }
+
+    @Test
+    void set_coalescesQueuedWritesIntoOneCommit() throws Exception {
+        // Arrange
+        when(commitFuture.get()).thenReturn(Collections.emptyList());
+
+        // Act
+        CompletableFuture<Void> first = queue.set(firstRef, "first");
+        CompletableFuture<Void> second = queue.set(secondRef, "second");
+        CompletableFuture.allOf(first, second).get(5, TimeUnit.SECONDS);
+
+        // Assert
+        verify(writeBatch).set(firstRef, "first");
+        verify(writeBatch).set(secondRef, "second");
+        verify(writeBatch, times(1)).commit();
+        assertEquals(0, queue.depth());
+        assertEquals(2, queue.committedWrites());
+    }
+
+    @Test
+    void set_retriesTransientCommitFailures() throws Exception {
+        // Arrange
+        UnavailableException unavailable = new UnavailableException(
+            new RuntimeException("backend unavailable"), GrpcStatusCode.of(Status.Code.UNAVAILABLE), true);
+        when(commitFuture.get())
+            .thenThrow(new ExecutionException(unavailable))
+            .thenReturn(Collections.emptyList());
+
+        // Act
+        queue.set(firstRef, "first").get(5, TimeUnit.SECONDS);
+
+        // Assert
+        verify(writeBatch, times(2)).commit();
+        assertTrue(queue.flush(1000));
+        assertEquals(0, queue.failedWrites());
+    }
+
+    @Test
+    void set_isolatesARejectedWrite_soOtherWritesInItsBatchStillCommit() throws Exception {
+        // Arrange
+        WriteBatch firstAlone = mock(WriteBatch.class);
+        WriteBatch secondAlone = mock(WriteBatch.class);
+        when(db.batch()).thenReturn(writeBatch, firstAlone, secondAlone);
+        FailedPreconditionException rejected = new FailedPreconditionException(
+            new RuntimeException("invalid document"), GrpcStatusCode.of(Status.Code.FAILED_PRECONDITION), false);
+        when(commitFuture.get()).thenThrow(new ExecutionException(rejected));
+        when(firstAlone.commit()).thenReturn(ApiFutures.immediateFuture(Collections.emptyList()));
+        when(secondAlone.commit()).thenReturn(ApiFutures.immediateFailedFuture(rejected));
+
+        // Act
+        CompletableFuture<Void> first = queue.set(firstRef, "first");
+        CompletableFuture<Void> second = queue.set(secondRef, "bad");
+        ExecutionException failure = assertThrows(ExecutionException.class, () -> second.get(5, TimeUnit.SECONDS));
+        first.get(5, TimeUnit.SECONDS);
+
+        // Assert
+        assertSame(rejected, failure.getCause());
+        verify(firstAlone).set(firstRef, "first");
+        verify(secondAlone).set(secondRef, "bad");
+        assertTrue(queue.flush(1000));
+        assertEquals(1, queue.committedWrites());
+        assertEquals(1, queue.failedWrites());
+    }
+}